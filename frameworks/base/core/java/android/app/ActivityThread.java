@@ -991,6 +991,24 @@ public final class ActivityThread extends ClientTransactionHandler {
                     sticky, sendingUser);
         }
 
+        // Batched form of scheduleRegisteredReceiver() for a broadcast going to several
+        // receivers in this process.  Each receiver still gets its own intent and extras,
+        // as it would have from separate calls.
+        public void scheduleRegisteredReceivers(List<IBinder> receivers, Intent intent,
+                int resultCode, String dataStr, Bundle extras, boolean ordered,
+                boolean sticky, int sendingUser, int processState) throws RemoteException {
+            updateProcessState(processState, false);
+            final int count = receivers.size();
+            for (int i = 0; i < count; i++) {
+                final IIntentReceiver receiver = IIntentReceiver.Stub.asInterface(
+                        receivers.get(i));
+                final boolean last = i == count - 1;
+                receiver.performReceive(last ? intent : new Intent(intent), resultCode, dataStr,
+                        last || extras == null ? extras : new Bundle(extras), ordered, sticky,
+                        sendingUser);
+            }
+        }
+
         @Override
         public void scheduleLowMemory() {
             sendMessage(H.LOW_MEMORY, null);
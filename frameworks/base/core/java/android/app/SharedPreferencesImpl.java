@@ -17,6 +17,7 @@
 package android.app;
 
 import android.annotation.Nullable;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.FileUtils;
 import android.os.Looper;
@@ -59,6 +60,12 @@ final class SharedPreferencesImpl implements SharedPreferences {
     /** If a fsync takes more than {@value #MAX_FSYNC_DURATION_MILLIS} ms, warn */
     private static final long MAX_FSYNC_DURATION_MILLIS = 256;
 
+    /**
+     * A journal is folded back into the snapshot once it grows past the larger of
+     * this and the size of the snapshot itself.
+     */
+    private static final long MIN_JOURNAL_COMPACT_BYTES = 16 * 1024;
+
     // Lock ordering rules:
     //  - acquire SharedPreferencesImpl.mLock before EditorImpl.mLock
     //  - acquire mWritingToDiskLock before EditorImpl.mLock
@@ -66,6 +73,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
     private final File mFile; // sp 文件
     private final File mBackupFile; // 后缀为 .bak 的备份文件
     private final int mMode; // 模式
+    private final File mJournalFile;
+    /** Whether writes go to {@link #mJournalFile}, see {@link SharedPreferencesJournal} */
+    private final boolean mJournaled;
     private final Object mLock = new Object();
     private final Object mWritingToDiskLock = new Object();
 
@@ -86,6 +96,20 @@ final class SharedPreferencesImpl implements SharedPreferences {
     @GuardedBy("mLock")
     private long mStatSize;
 
+    /** Length of the valid part of {@link #mJournalFile}, 0 if there is none */
+    @GuardedBy("mLock")
+    private long mJournalLength;
+
+    /**
+     * Changes committed to memory but not yet written to the journal: the new value
+     * of each modified key, or null for removed keys, applied after a clear if
+     * {@link #mJournalPendingClear} is set.
+     */
+    @GuardedBy("mLock")
+    private final Map<String, Object> mJournalPending = new HashMap<>();
+    @GuardedBy("mLock")
+    private boolean mJournalPendingClear;
+
     @GuardedBy("mLock")
     private final WeakHashMap<OnSharedPreferenceChangeListener, Object> mListeners =
             new WeakHashMap<OnSharedPreferenceChangeListener, Object>();
@@ -107,6 +131,11 @@ final class SharedPreferencesImpl implements SharedPreferences {
         mFile = file; // sp 文件
         mBackupFile = makeBackupFile(file); // 创建备份文件
         mMode = mode; 
+        mJournalFile = SharedPreferencesJournal.makeJournalFile(file);
+        // Other processes would not notice journal appends, so multi-process
+        // preferences always rewrite the snapshot.
+        mJournaled = (mode & Context.MODE_JOURNALED_PREFERENCES) != 0
+                && (mode & Context.MODE_MULTI_PROCESS) == 0;
         mLoaded = false; // 标识 sp 文件是否已经加载到内存
         mMap = null; // 存储 sp 文件中的键值对
         mThrowable = null;
@@ -146,6 +175,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
         Map<String, Object> map = null;
         StructStat stat = null;
+        long journalLength = 0;
         Throwable thrown = null;
         try { // 读取 sp 文件
             stat = Os.stat(mFile.getPath());
@@ -161,6 +191,12 @@ final class SharedPreferencesImpl implements SharedPreferences {
                     IoUtils.closeQuietly(str);
                 }
             }
+            // Replay any journal even if this instance doesn't use one, so that the
+            // changes are not lost; the next write will then fold them into the snapshot.
+            if (map != null && mJournalFile.exists()) {
+                journalLength = SharedPreferencesJournal.replay(mJournalFile, stat.st_mtim,
+                        stat.st_size, map);
+            }
         } catch (ErrnoException e) {
             // An errno exception means the stat failed. Treat as empty/non-existing by
             // ignoring.
@@ -184,6 +220,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                     } else {
                         mMap = new HashMap<>();
                     }
+                    mJournalLength = journalLength;
+                    mJournalPending.clear();
+                    mJournalPendingClear = false;
                 }
                 // In case of a thrown exception, we retain the old map. That allows
                 // any open editors to commit and store updates.
@@ -534,6 +573,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
                         if (!mapToWriteToDisk.isEmpty()) {
                             changesMade = true;
                             mapToWriteToDisk.clear();
+                            if (mJournaled) {
+                                mJournalPending.clear();
+                                mJournalPendingClear = true;
+                            }
                         }
                         mClear = false;
                     }
@@ -550,6 +593,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                                 continue;
                             }
                             mapToWriteToDisk.remove(k);
+                            if (mJournaled) {
+                                mJournalPending.put(k, null);
+                            }
                         } else {
                             if (mapToWriteToDisk.containsKey(k)) {
                                 Object existingValue = mapToWriteToDisk.get(k);
@@ -558,6 +604,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                                 }
                             }
                             mapToWriteToDisk.put(k, v);
+                            if (mJournaled) {
+                                mJournalPending.put(k, v);
+                            }
                         }
 
                         changesMade = true;
@@ -707,6 +756,79 @@ final class SharedPreferencesImpl implements SharedPreferences {
         return str;
     }
 
+    /**
+     * Append all changes not yet on disk to the journal instead of rewriting the
+     * snapshot.
+     *
+     * @return false if the journal is due for compaction or could not be written,
+     *         in which case the caller must write a full snapshot.
+     */
+    @GuardedBy("mWritingToDiskLock")
+    private boolean writeToJournal(MemoryCommitResult mcr) {
+        final long journalLength;
+        final StructTimespec statTimestamp;
+        final long statSize;
+        final boolean clear;
+        final Map<String, Object> delta;
+        final long generation;
+        synchronized (mLock) {
+            if (mStatTimestamp == null
+                    || mJournalLength > Math.max(MIN_JOURNAL_COMPACT_BYTES, mStatSize)) {
+                return false;
+            }
+            journalLength = mJournalLength;
+            statTimestamp = mStatTimestamp;
+            statSize = mStatSize;
+            clear = mJournalPendingClear;
+            delta = new HashMap<>(mJournalPending);
+            generation = mCurrentMemoryStateGeneration;
+            mJournalPending.clear();
+            mJournalPendingClear = false;
+        }
+
+        final long startTime = System.currentTimeMillis();
+        try {
+            final long newLength = SharedPreferencesJournal.append(mJournalFile, journalLength,
+                    statTimestamp, statSize, clear, delta);
+            final long fsyncDuration = System.currentTimeMillis() - startTime;
+            if (journalLength == 0) {
+                ContextImpl.setFilePermissionsFromMode(mJournalFile.getPath(), mMode, 0);
+            }
+            synchronized (mLock) {
+                mJournalLength = newLength;
+            }
+            mDiskStateGeneration = generation;
+            mcr.setDiskWriteResult(true, true);
+
+            if (DEBUG) {
+                Log.d(TAG, "journal: " + delta.size() + " keys, " + (newLength - journalLength)
+                        + " bytes in " + fsyncDuration + " ms");
+            }
+            mSyncTimes.add((int) fsyncDuration);
+            mNumSync++;
+            if (DEBUG || mNumSync % 1024 == 0 || fsyncDuration > MAX_FSYNC_DURATION_MILLIS) {
+                mSyncTimes.log(TAG, "Time required to fsync " + mJournalFile + ": ");
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "writeToJournal: Got exception:", e);
+        }
+
+        // Put the changes back so that they are not lost if the snapshot we fall
+        // back to predates some of them.  Anything committed since takes precedence.
+        synchronized (mLock) {
+            if (!mJournalPendingClear) {
+                for (Map.Entry<String, Object> e : delta.entrySet()) {
+                    if (!mJournalPending.containsKey(e.getKey())) {
+                        mJournalPending.put(e.getKey(), e.getValue());
+                    }
+                }
+                mJournalPendingClear = clear;
+            }
+        }
+        return false;
+    }
+
     @GuardedBy("mWritingToDiskLock")
     private void writeToFile(MemoryCommitResult mcr, boolean isFromSyncCommit) {
         long startTime = 0;
@@ -757,6 +879,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 return;
             }
 
+            if (mJournaled && writeToJournal(mcr)) {
+                return;
+            }
+
             boolean backupFileExists = mBackupFile.exists(); // 备份文件是否存在
 
             if (DEBUG) {
@@ -823,6 +949,19 @@ final class SharedPreferencesImpl implements SharedPreferences {
             // 写入成功，删除备份文件
             mBackupFile.delete();
 
+            // The new snapshot includes everything the journal held.  Changes made
+            // after this commit's generation must still go to the next journal.
+            synchronized (mLock) {
+                if (mJournaled || mJournalLength > 0) {
+                    mJournalFile.delete();
+                    mJournalLength = 0;
+                }
+                if (mCurrentMemoryStateGeneration == mcr.memoryStateGeneration) {
+                    mJournalPending.clear();
+                    mJournalPendingClear = false;
+                }
+            }
+
             if (DEBUG) {
                 deleteTime = System.currentTimeMillis();
             }
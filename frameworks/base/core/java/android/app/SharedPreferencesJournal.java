@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.system.StructTimespec;
+import android.util.Log;
+
+import com.android.internal.util.ChecksummedLog;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only journal of changes made on top of a {@link SharedPreferencesImpl}
+ * snapshot file, used when the preferences are opened with
+ * {@link android.content.Context#MODE_JOURNALED_PREFERENCES}.
+ *
+ * <p>The journal lives next to the snapshot as {@code <name>.journal}.  It starts
+ * with a header identifying the snapshot it applies to (its size and modification
+ * time), followed by one frame per disk write:
+ *
+ * <pre>
+ *   frame   := length:int payload crc32(payload):long
+ *   payload := clear:boolean count:int (type:byte key:string value)*
+ * </pre>
+ *
+ * Frames are read and written by {@link ChecksummedLog}: a frame that is truncated
+ * or fails its checksum ends the journal, and anything after it is discarded on the
+ * next append.  A journal whose header does not match the snapshot on disk is stale
+ * (the snapshot was rewritten after it) and is ignored.
+ */
+final class SharedPreferencesJournal {
+    private static final String TAG = "SharedPreferencesImpl";
+
+    private static final int MAGIC = 0x53504a4c; // "SPJL"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 4 + 4 + 8 + 8 + 8;
+
+    /** Refuse to read frames claiming to be larger than this. */
+    private static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private static final ChecksummedLog LOG = new ChecksummedLog(TAG, 0, MAX_FRAME_LENGTH);
+
+    private static final byte TYPE_REMOVE = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_FLOAT = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+    private static final byte TYPE_STRING_SET = 6;
+
+    private SharedPreferencesJournal() {
+    }
+
+    static File makeJournalFile(File prefsFile) {
+        return new File(prefsFile.getPath() + ".journal");
+    }
+
+    /**
+     * Apply the journal to <var>map</var>, which holds the contents of the snapshot
+     * described by <var>snapshotMtime</var> and <var>snapshotSize</var>.
+     *
+     * @return The length of the valid prefix of the journal, or 0 if there is no
+     *         journal for this snapshot.
+     */
+    static long replay(File journal, StructTimespec snapshotMtime, long snapshotSize,
+            Map<String, Object> map) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(journal), 16 * 1024));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || in.readLong() != snapshotSize
+                    || in.readLong() != snapshotMtime.tv_sec
+                    || in.readLong() != snapshotMtime.tv_nsec) {
+                Log.w(TAG, "Ignoring stale journal " + journal);
+                return 0;
+            }
+            return LOG.readFrames(in, HEADER_LENGTH, journal, payload -> {
+                applyFrame(payload, map);
+                return true;
+            });
+        } catch (FileNotFoundException | EOFException e) {
+            return 0;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read " + journal, e);
+            return 0;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Append a frame holding <var>delta</var> to the journal and sync it.  If
+     * <var>validLength</var> is 0 the journal is (re)started with a header for the
+     * given snapshot; otherwise anything past <var>validLength</var> is dropped first.
+     *
+     * @param delta The new value of each changed key, or null for removed keys.
+     * @return The new length of the journal.
+     */
+    static long append(File journal, long validLength, StructTimespec snapshotMtime,
+            long snapshotSize, boolean clear, Map<String, Object> delta) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        if (validLength == 0) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(snapshotSize);
+            out.writeLong(snapshotMtime.tv_sec);
+            out.writeLong(snapshotMtime.tv_nsec);
+        }
+        LOG.writeFrame(out, encodeFrame(clear, delta));
+        out.flush();
+        return ChecksummedLog.append(journal, validLength, bytes.toByteArray());
+    }
+
+    private static byte[] encodeFrame(boolean clear, Map<String, Object> delta)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeBoolean(clear);
+        out.writeInt(delta.size());
+        for (Map.Entry<String, Object> e : delta.entrySet()) {
+            final Object v = e.getValue();
+            if (v == null) {
+                out.writeByte(TYPE_REMOVE);
+                writeString(out, e.getKey());
+            } else if (v instanceof String) {
+                out.writeByte(TYPE_STRING);
+                writeString(out, e.getKey());
+                writeString(out, (String) v);
+            } else if (v instanceof Integer) {
+                out.writeByte(TYPE_INT);
+                writeString(out, e.getKey());
+                out.writeInt((Integer) v);
+            } else if (v instanceof Long) {
+                out.writeByte(TYPE_LONG);
+                writeString(out, e.getKey());
+                out.writeLong((Long) v);
+            } else if (v instanceof Float) {
+                out.writeByte(TYPE_FLOAT);
+                writeString(out, e.getKey());
+                out.writeFloat((Float) v);
+            } else if (v instanceof Boolean) {
+                out.writeByte(TYPE_BOOLEAN);
+                writeString(out, e.getKey());
+                out.writeBoolean((Boolean) v);
+            } else if (v instanceof Set) {
+                out.writeByte(TYPE_STRING_SET);
+                writeString(out, e.getKey());
+                final Set<?> set = (Set<?>) v;
+                out.writeInt(set.size());
+                for (Object s : set) {
+                    writeString(out, (String) s);
+                }
+            } else {
+                throw new IOException("Unsupported value type " + v.getClass().getName()
+                        + " for key " + e.getKey());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void applyFrame(byte[] payload, Map<String, Object> map) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        if (in.readBoolean()) {
+            map.clear();
+        }
+        final int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            final byte type = in.readByte();
+            final String key = readString(in);
+            switch (type) {
+                case TYPE_REMOVE:
+                    map.remove(key);
+                    break;
+                case TYPE_STRING:
+                    map.put(key, readString(in));
+                    break;
+                case TYPE_INT:
+                    map.put(key, in.readInt());
+                    break;
+                case TYPE_LONG:
+                    map.put(key, in.readLong());
+                    break;
+                case TYPE_FLOAT:
+                    map.put(key, in.readFloat());
+                    break;
+                case TYPE_BOOLEAN:
+                    map.put(key, in.readBoolean());
+                    break;
+                case TYPE_STRING_SET: {
+                    final int size = in.readInt();
+                    final Set<String> set = new HashSet<>(size);
+                    for (int j = 0; j < size; j++) {
+                        set.add(readString(in));
+                    }
+                    map.put(key, set);
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown journal record type " + type);
+            }
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+}
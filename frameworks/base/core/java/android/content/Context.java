@@ -105,6 +105,7 @@ public abstract class Context {
             MODE_WORLD_READABLE,
             MODE_WORLD_WRITEABLE,
             MODE_MULTI_PROCESS,
+            MODE_JOURNALED_PREFERENCES,
     })
     @Retention(RetentionPolicy.SOURCE)
     public @interface PreferencesMode {}
@@ -222,6 +223,17 @@ public abstract class Context {
      */
     public static final int MODE_NO_LOCALIZED_COLLATORS = 0x0010;
 
+    /**
+     * SharedPreference loading flag: when set, commits append only the changed
+     * keys to a journal next to the preferences file instead of rewriting the
+     * whole file.  The journal is folded back into the file once it grows larger
+     * than the file itself.  Ignored together with {@link #MODE_MULTI_PROCESS}.
+     *
+     * @see #getSharedPreferences
+     * @hide
+     */
+    public static final int MODE_JOURNALED_PREFERENCES = 0x0020;
+
     /** @hide */
     @IntDef(flag = true, prefix = { "BIND_" }, value = {
             BIND_AUTO_CREATE,
@@ -126,6 +126,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Parser for package files (APKs) on disk. This supports apps packaged either
@@ -232,6 +233,17 @@ public class PackageParser {
      */
     public static final AtomicInteger sCachedPackageReadCount = new AtomicInteger();
 
+    /**
+     * Total number of bytes read from package cache entries.  We use it only for logging.
+     */
+    public static final AtomicLong sCachedPackageReadBytes = new AtomicLong();
+
+    /**
+     * Total time spent unparcelling package cache entries, in nanoseconds.  We use it only
+     * for logging.
+     */
+    public static final AtomicLong sCachedPackageReadNanos = new AtomicLong();
+
     // Set of broadcast actions that are safe for manifest receivers
     private static final Set<String> SAFE_BROADCASTS = new ArraySet<>();
     static {
@@ -1061,6 +1073,7 @@ public class PackageParser {
     /** static version of {@link #fromCacheEntry} for unit tests. */
     @VisibleForTesting
     public static Package fromCacheEntryStatic(byte[] bytes) {
+        final long startTime = System.nanoTime();
         final Parcel p = Parcel.obtain();
         p.unmarshall(bytes, 0, bytes.length);
         p.setDataPosition(0);
@@ -1073,6 +1086,8 @@ public class PackageParser {
         p.recycle();
 
         sCachedPackageReadCount.incrementAndGet();
+        sCachedPackageReadBytes.addAndGet(bytes.length);
+        sCachedPackageReadNanos.addAndGet(System.nanoTime() - startTime);
 
         return pkg;
     }
@@ -18,6 +18,9 @@ package android.database;
 
 import android.net.Uri;
 import android.os.*;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
 
 
 /**
@@ -27,6 +30,12 @@ import android.os.*;
  * then it is assumed to own the window.  Otherwise, the adaptor provides a
  * window to be filled and ensures it gets closed as needed during deactivation
  * and requeries.
+ * </p><p>
+ * When streaming is enabled, such filled windows are double buffered: once the client
+ * has been handed a window and the remaining rows follow it, the next window's worth is
+ * filled into a second window in the background, so that a client scanning forward
+ * finds its next window ready instead of waiting for the fill.  Both windows are cleared
+ * and refilled rather than reallocated, so a scan reuses the same two ashmem regions.
  * </p>
  *
  * {@hide}
@@ -35,6 +44,11 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
         implements IBinder.DeathRecipient {
     private static final String TAG = "Cursor";
 
+    private static final boolean STREAM_WINDOWS =
+            SystemProperties.getBoolean("debug.cursor.stream_windows", false);
+
+    private static final Executor PREFETCH_EXECUTOR = AsyncTask.THREAD_POOL_EXECUTOR;
+
     private final Object mLock = new Object();
     private final String mProviderName;
     private ContentObserverProxy mObserver;
@@ -52,6 +66,31 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
      */
     private CursorWindow mFilledWindow;
 
+    /**
+     * The window that the rows following mFilledWindow are prefetched into, or null.
+     */
+    private CursorWindow mPrefetchWindow;
+
+    /**
+     * The position the prefetch has been requested for, or -1 if none.  The prefetch is
+     * complete once mPrefetchWindow starts at this position.
+     */
+    private int mPrefetchPosition = -1;
+
+    /**
+     * The position just past the last window handed out, where a forward scan continues.
+     */
+    private int mNextSequentialPosition;
+
+    private final Runnable mPrefetchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                fillPrefetchWindowLocked();
+            }
+        }
+    };
+
     private static final class ContentObserverProxy extends ContentObserver {
         protected IContentObserver mRemote;
 
@@ -104,6 +143,56 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
             mFilledWindow.close();
             mFilledWindow = null;
         }
+        if (mPrefetchWindow != null) {
+            mPrefetchWindow.close();
+            mPrefetchWindow = null;
+        }
+        mPrefetchPosition = -1;
+        mNextSequentialPosition = 0;
+    }
+
+    private boolean isPrefetchedLocked(int position) {
+        return mPrefetchWindow != null && mPrefetchPosition >= 0
+                && mPrefetchWindow.getStartPosition() == mPrefetchPosition
+                && position >= mPrefetchPosition
+                && position < mPrefetchPosition + mPrefetchWindow.getNumRows();
+    }
+
+    /**
+     * Starts filling the rows following <var>window</var> in the background if the client
+     * appears to be scanning forward.
+     */
+    private void maybePrefetchLocked(int position, CursorWindow window) {
+        final boolean sequential = position == mNextSequentialPosition;
+        final int next = window.getStartPosition() + window.getNumRows();
+        mNextSequentialPosition = next;
+        if (!sequential || window.getNumRows() == 0 || next >= mCursor.getCount()) {
+            mPrefetchPosition = -1;
+            return;
+        }
+        if (mPrefetchWindow == null) {
+            mPrefetchWindow = new CursorWindow(mProviderName);
+        }
+        mPrefetchPosition = next;
+        PREFETCH_EXECUTOR.execute(mPrefetchRunnable);
+    }
+
+    private void fillPrefetchWindowLocked() {
+        // The cursor may have been closed, or the client may have asked for the rows
+        // itself in the meantime.
+        if (mCursor == null || mPrefetchWindow == null || mPrefetchPosition < 0
+                || mPrefetchWindow.getStartPosition() == mPrefetchPosition) {
+            return;
+        }
+        try {
+            mPrefetchWindow.clear();
+            mCursor.fillWindow(mPrefetchPosition, mPrefetchWindow);
+        } catch (RuntimeException e) {
+            // Leave it to the client's own request to report the failure.
+            Log.w(TAG, "Failed to prefetch cursor window for " + mProviderName, e);
+            mPrefetchWindow.clear();
+            mPrefetchPosition = -1;
+        }
     }
 
     private void disposeLocked() {
@@ -166,6 +255,13 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
             CursorWindow window = mCursor.getWindow();
             if (window != null) {
                 closeFilledWindowLocked();
+            } else if (STREAM_WINDOWS && isPrefetchedLocked(position)) {
+                // Hand out the prefetched window; the one the client is done with will be
+                // refilled with the rows after it.
+                window = mPrefetchWindow;
+                mPrefetchWindow = mFilledWindow;
+                mFilledWindow = window;
+                maybePrefetchLocked(position, window);
             } else {
                 window = mFilledWindow;
                 if (window == null) {
@@ -176,6 +272,9 @@ public final class CursorToBulkCursorAdaptor extends BulkCursorNative
                     window.clear();
                 }
                 mCursor.fillWindow(position, window);
+                if (STREAM_WINDOWS) {
+                    maybePrefetchLocked(position, window);
+                }
             }
 
             if (window != null) {
@@ -36,6 +36,7 @@ import java.io.File;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 
@@ -104,6 +105,9 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     private final PreparedStatementCache mPreparedStatementCache;
     private PreparedStatement mPreparedStatementPool;
 
+    // Statistics shared with the other connections of the pool, or null if disabled.
+    private final SQLiteStatementStats mStatementStats;
+
     // The recent operations log.
     private final OperationLog mRecentOperations;
 
@@ -170,6 +174,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         mIsReadOnlyConnection = (configuration.openFlags & SQLiteDatabase.OPEN_READONLY) != 0;
         mPreparedStatementCache = new PreparedStatementCache(
                 mConfiguration.maxSqlCacheSize);
+        mStatementStats = pool.getStatementStats();
         mCloseGuard.open("close");
     }
 
@@ -500,6 +505,40 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         return mPreparedStatementCache.get(sql) != null;
     }
 
+    // Called by SQLiteConnectionPool only.
+    // Prepares and caches the given statements ahead of their first use, skipping any
+    // that fail to compile, and returns the number that were prepared.
+    int warmUpPreparedStatements(List<String> sqls) {
+        final int count = sqls.size();
+        if (count == 0) {
+            return 0;
+        }
+        int prepared = 0;
+        final int cookie = mRecentOperations.beginOperation("warmUp", null, null);
+        try {
+            for (int i = 0; i < count; i++) {
+                final String sql = sqls.get(i);
+                if (mPreparedStatementCache.get(sql) != null) {
+                    continue;
+                }
+                try {
+                    final PreparedStatement statement = acquirePreparedStatement(sql);
+                    statement.mStatsStartNanos = 0; // Not an execution.
+                    releasePreparedStatement(statement);
+                    prepared++;
+                } catch (SQLiteException ex) {
+                    // The schema may have changed since the statement was last run.
+                    if (DEBUG) {
+                        Log.d(TAG, "Could not warm up statement: " + trimSqlForDisplay(sql), ex);
+                    }
+                }
+            }
+        } finally {
+            mRecentOperations.endOperation(cookie);
+        }
+        return prepared;
+    }
+
     /**
      * Gets the unique id of this connection.
      * @return The connection id.
@@ -548,6 +587,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         final int cookie = mRecentOperations.beginOperation("prepare", sql, null);
         try {
             final PreparedStatement statement = acquirePreparedStatement(sql);
+            statement.mStatsStartNanos = 0; // Not an execution.
             try {
                 if (outStatementInfo != null) {
                     outStatementInfo.numParameters = statement.mNumParameters;
@@ -783,6 +823,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
                 try {
                     changedRows = nativeExecuteForChangedRowCount(
                             mConnectionPtr, statement.mStatementPtr);
+                    statement.mStatsRows = changedRows;
                     return changedRows;
                 } finally {
                     detachCancellationSignal(cancellationSignal);
@@ -898,6 +939,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
                         actualPos = (int)(result >> 32);
                         countedRows = (int)result;
                         filledRows = window.getNumRows();
+                        statement.mStatsRows = filledRows;
                         window.setStartPosition(actualPos);
                         return countedRows;
                     } finally {
@@ -928,6 +970,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         boolean skipCache = false;
         if (statement != null) {
             if (!statement.mInUse) {
+                noteStatementAcquired(statement, true /*cacheHit*/);
                 return statement;
             }
             // The statement is already in the cache but is in use (this statement appears
@@ -955,10 +998,28 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
             throw ex;
         }
         statement.mInUse = true;
+        noteStatementAcquired(statement, false /*cacheHit*/);
         return statement;
     }
 
+    private void noteStatementAcquired(PreparedStatement statement, boolean cacheHit) {
+        if (mStatementStats != null) {
+            if (statement.mStats == null) {
+                statement.mStats = mStatementStats.getEntry(statement.mSql);
+            }
+            statement.mStats.noteAcquired(cacheHit, statement.mReadOnly);
+            statement.mStatsRows = -1;
+            statement.mStatsStartNanos = SystemClock.elapsedRealtimeNanos();
+        }
+    }
+
     private void releasePreparedStatement(PreparedStatement statement) {
+        if (statement.mStats != null && statement.mStatsStartNanos != 0) {
+            statement.mStats.noteExecuted(
+                    (SystemClock.elapsedRealtimeNanos() - statement.mStatsStartNanos) / 1000,
+                    statement.mStatsRows);
+            statement.mStatsStartNanos = 0;
+        }
         statement.mInUse = false;
         if (statement.mInCache) {
             try {
@@ -1248,6 +1309,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
 
     private void recyclePreparedStatement(PreparedStatement statement) {
         statement.mSql = null;
+        statement.mStats = null;
         statement.mPoolNext = mPreparedStatementPool;
         mPreparedStatementPool = statement;
     }
@@ -1298,6 +1360,15 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         // possible for SQLite calls to be re-entrant.  Consequently we need to prevent
         // in use statements from being finalized until they are no longer in use.
         public boolean mInUse;
+
+        // The statistics entry for the statement's SQL, if statistics are enabled.
+        public SQLiteStatementStats.Entry mStats;
+
+        // When the current execution started, or 0 if it is not being timed.
+        public long mStatsStartNanos;
+
+        // The rows returned or changed by the current execution, or -1 if not known.
+        public int mStatsRows;
     }
 
     private final class PreparedStatementCache
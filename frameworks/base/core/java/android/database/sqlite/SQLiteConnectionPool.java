@@ -106,6 +106,12 @@ public final class SQLiteConnectionPool implements Closeable {
 
     private final AtomicLong mTotalExecutionTimeCounter = new AtomicLong(0);
 
+    // Per-statement statistics shared by all connections, or null if disabled.
+    private final SQLiteStatementStats mStatementStats;
+
+    // The number of hot statements prepared on each new non-primary connection.
+    private final int mStatementWarmUpCount;
+
     // Describes what should happen to an acquired connection when it is returned to the pool.
     enum AcquiredConnectionStatus {
         // The connection should be returned to the pool as usual.
@@ -126,6 +132,12 @@ public final class SQLiteConnectionPool implements Closeable {
     private final WeakHashMap<SQLiteConnection, AcquiredConnectionStatus> mAcquiredConnections =
             new WeakHashMap<SQLiteConnection, AcquiredConnectionStatus>();
 
+    // New non-primary connections whose statements are still to be warmed up by the
+    // thread that acquired them, outside of the lock.
+    @GuardedBy("mLock")
+    private final ArrayList<SQLiteConnection> mConnectionsToWarmUp =
+            new ArrayList<SQLiteConnection>();
+
     /**
      * Connection flag: Read-only.
      * <p>
@@ -160,6 +172,9 @@ public final class SQLiteConnectionPool implements Closeable {
 
     private SQLiteConnectionPool(SQLiteDatabaseConfiguration configuration) {
         mConfiguration = new SQLiteDatabaseConfiguration(configuration);
+        mStatementStats = SQLiteGlobal.isStatementStatsEnabled()
+                ? new SQLiteStatementStats() : null;
+        mStatementWarmUpCount = SQLiteGlobal.getStatementWarmUpCount();
         setMaxConnectionPoolSizeLocked();
         // If timeout is set, setup idle connection handler
         // In case of MAX_VALUE - idle connections are never closed
@@ -376,6 +391,13 @@ public final class SQLiteConnectionPool implements Closeable {
     public SQLiteConnection acquireConnection(String sql, int connectionFlags,
             CancellationSignal cancellationSignal) {
         SQLiteConnection con = waitForConnection(sql, connectionFlags, cancellationSignal);
+        final boolean warmUp;
+        synchronized (mLock) {
+            warmUp = mConnectionsToWarmUp.remove(con);
+        }
+        if (warmUp) {
+            warmUpConnection(con); // might throw
+        }
         synchronized (mLock) {
             if (mIdleConnectionHandler != null) {
                 mIdleConnectionHandler.connectionAcquired(con);
@@ -384,6 +406,27 @@ public final class SQLiteConnectionPool implements Closeable {
         return con;
     }
 
+    // Prepares the statements that readers run the most on a newly opened connection, so
+    // that the first queries sent to it do not all pay for compiling their SQL again.
+    // Might throw, in which case the connection is discarded.
+    private void warmUpConnection(SQLiteConnection connection) {
+        try {
+            final int warmedUp = connection.warmUpPreparedStatements(
+                    mStatementStats.getHotReadOnlyStatements(Math.min(mStatementWarmUpCount,
+                            mConfiguration.maxSqlCacheSize)));
+            mStatementStats.noteWarmedUp(warmedUp);
+        } catch (RuntimeException ex) {
+            Log.e(TAG, "Failed to warm up new connection, discarding it: " + connection, ex);
+            synchronized (mLock) {
+                if (mAcquiredConnections.containsKey(connection)) {
+                    mAcquiredConnections.put(connection, AcquiredConnectionStatus.DISCARD);
+                }
+            }
+            releaseConnection(connection);
+            throw ex; // rethrow!
+        }
+    }
+
     /**
      * Releases a connection back to the pool.
      * <p>
@@ -537,6 +580,11 @@ public final class SQLiteConnectionPool implements Closeable {
         mTotalExecutionTimeCounter.addAndGet(executionTimeMs);
     }
 
+    // Returns the statistics shared by the connections of this pool, or null if disabled.
+    SQLiteStatementStats getStatementStats() {
+        return mStatementStats;
+    }
+
     // Can't throw.
     @GuardedBy("mLock")
     private void closeAvailableConnectionsAndLogExceptionsLocked() {
@@ -987,6 +1035,11 @@ public final class SQLiteConnectionPool implements Closeable {
         connection = openConnectionLocked(mConfiguration,
                 false /*primaryConnection*/); // might throw
         finishAcquireConnectionLocked(connection, connectionFlags); // might throw
+        if (mStatementWarmUpCount > 0 && mStatementStats != null) {
+            // Warmed up by acquireConnection(), so that other threads can get connections
+            // meanwhile.
+            mConnectionsToWarmUp.add(connection);
+        }
         return connection;
     }
 
@@ -1131,6 +1184,9 @@ public final class SQLiteConnectionPool implements Closeable {
                 printer.println(
                         "  Idle connection timeout: " + mConfiguration.idleConnectionTimeoutMs);
             }
+            if (mStatementStats != null) {
+                mStatementStats.dump(printer);
+            }
             printer.println("  Available primary connection:");
             if (mAvailablePrimaryConnection != null) {
                 mAvailablePrimaryConnection.dump(indentedPrinter, verbose);
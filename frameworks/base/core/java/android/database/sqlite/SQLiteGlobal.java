@@ -164,6 +164,23 @@ public final class SQLiteGlobal {
                         com.android.internal.R.integer.db_default_idle_connection_timeout));
     }
 
+    /**
+     * Returns true if connection pools should keep per-statement statistics, which are
+     * reported by {@code dumpsys dbinfo}.
+     */
+    public static boolean isStatementStatsEnabled() {
+        return SystemProperties.getBoolean("debug.sqlite.statement_stats", false)
+                || getStatementWarmUpCount() > 0;
+    }
+
+    /**
+     * Gets the number of the most frequently executed read-only statements that are
+     * prepared on a new non-primary connection before it is first used, or 0 if none.
+     */
+    public static int getStatementWarmUpCount() {
+        return Math.max(0, SystemProperties.getInt("debug.sqlite.warmup_statements", 0));
+    }
+
     /**
      * When opening a database, if the WAL file is larger than this size, we'll truncate it.
      *
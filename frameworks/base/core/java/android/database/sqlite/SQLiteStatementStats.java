@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.util.Printer;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Per-statement statistics of a database, aggregated over all the connections of its
+ * {@link SQLiteConnectionPool}.
+ * <p>
+ * Each connection looks up the {@link Entry} for a SQL string once, when it first
+ * acquires a prepared statement for it, and keeps it with the prepared statement.
+ * Recording afterwards only takes the entry's lock.
+ * </p><p>
+ * Execution times are kept in a histogram: bucket 0 counts executions under 1us, bucket
+ * i those taking [2^(i-1), 2^i) us, and the last bucket everything from about half a
+ * second up.
+ * </p>
+ */
+final class SQLiteStatementStats {
+    static final int BUCKET_COUNT = 20;
+
+    /** Distinct statements tracked before new ones are folded into a single entry. */
+    private static final int MAX_STATEMENTS = 200;
+
+    private static final int MAX_DUMPED_STATEMENTS = 20;
+
+    private static final String OTHER_SQL = "<other statements>";
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+
+    @GuardedBy("mLock")
+    private Entry mOtherEntry;
+
+    @GuardedBy("mLock")
+    private long mWarmedUpStatements;
+
+    static final class Entry {
+        final String mSql;
+
+        // Whether the statement is read-only, as last reported by a connection acquiring it.
+        private boolean mReadOnly;
+
+        private long mPrepareCount;
+        private long mCacheHitCount;
+        private long mExecuteCount;
+        private long mTotalMicros;
+        private long mMaxMicros;
+        private long mRowCount;
+        private final long[] mHistogram = new long[BUCKET_COUNT];
+
+        Entry(String sql) {
+            mSql = sql;
+        }
+
+        synchronized void noteAcquired(boolean cacheHit, boolean readOnly) {
+            if (cacheHit) {
+                mCacheHitCount++;
+            } else {
+                mPrepareCount++;
+            }
+            mReadOnly = readOnly;
+        }
+
+        /**
+         * Records one execution of the statement, with the number of rows it returned or
+         * changed, or -1 if that is not known.
+         */
+        synchronized void noteExecuted(long micros, int rows) {
+            mExecuteCount++;
+            mTotalMicros += micros;
+            mMaxMicros = Math.max(mMaxMicros, micros);
+            mHistogram[bucketFor(micros)]++;
+            if (rows > 0) {
+                mRowCount += rows;
+            }
+        }
+
+        synchronized long getExecuteCount() {
+            return mExecuteCount;
+        }
+
+        synchronized long getTotalMicros() {
+            return mTotalMicros;
+        }
+
+        synchronized boolean isReadOnly() {
+            return mReadOnly;
+        }
+
+        /** Upper bound of the bucket holding the given fraction of executions, in micros. */
+        private long percentileMicrosLocked(double fraction) {
+            final long target = (long) Math.ceil(mExecuteCount * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += mHistogram[i];
+                if (seen >= target) {
+                    return i == BUCKET_COUNT - 1 ? mMaxMicros : 1L << i;
+                }
+            }
+            return mMaxMicros;
+        }
+
+        synchronized void dump(Printer printer) {
+            final long acquires = mPrepareCount + mCacheHitCount;
+            printer.println("    executions=" + mExecuteCount
+                    + ", prepares=" + mPrepareCount
+                    + ", cacheHitRate=" + (acquires > 0 ? mCacheHitCount * 100 / acquires : 0)
+                    + "%, rows=" + mRowCount
+                    + ", totalTime=" + mTotalMicros / 1000 + "ms"
+                    + ", avg=" + (mExecuteCount > 0 ? mTotalMicros / mExecuteCount : 0)
+                    + "us, max=" + mMaxMicros
+                    + "us, p50=" + percentileMicrosLocked(0.5)
+                    + "us, p90=" + percentileMicrosLocked(0.9)
+                    + "us, p99=" + percentileMicrosLocked(0.99) + "us"
+                    + ", sql=\"" + mSql.replaceAll("[\\s]*\\n+[\\s]*", " ") + "\"");
+        }
+    }
+
+    static int bucketFor(long micros) {
+        if (micros <= 0) {
+            return 0;
+        }
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT - 1);
+    }
+
+    /** Returns the entry that statistics about <var>sql</var> are recorded into. */
+    Entry getEntry(String sql) {
+        synchronized (mLock) {
+            Entry entry = mEntries.get(sql);
+            if (entry == null) {
+                if (mEntries.size() >= MAX_STATEMENTS) {
+                    if (mOtherEntry == null) {
+                        mOtherEntry = new Entry(OTHER_SQL);
+                    }
+                    return mOtherEntry;
+                }
+                entry = new Entry(sql);
+                mEntries.put(sql, entry);
+            }
+            return entry;
+        }
+    }
+
+    void noteWarmedUp(int statementCount) {
+        synchronized (mLock) {
+            mWarmedUpStatements += statementCount;
+        }
+    }
+
+    /**
+     * Returns up to <var>maxCount</var> read-only statements that have been executed more
+     * than once, most frequently executed first.
+     */
+    ArrayList<String> getHotReadOnlyStatements(int maxCount) {
+        final ArrayList<Entry> entries;
+        synchronized (mLock) {
+            entries = new ArrayList<>(mEntries.values());
+        }
+        final ArrayList<Entry> hot = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry entry = entries.get(i);
+            if (entry.isReadOnly() && entry.getExecuteCount() > 1) {
+                hot.add(entry);
+            }
+        }
+        Collections.sort(hot, (a, b) -> Long.compare(b.getExecuteCount(), a.getExecuteCount()));
+        final int count = Math.min(maxCount, hot.size());
+        final ArrayList<String> sql = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            sql.add(hot.get(i).mSql);
+        }
+        return sql;
+    }
+
+    void dump(Printer printer) {
+        final ArrayList<Entry> entries;
+        final long warmedUp;
+        synchronized (mLock) {
+            entries = new ArrayList<>(mEntries.values());
+            if (mOtherEntry != null) {
+                entries.add(mOtherEntry);
+            }
+            warmedUp = mWarmedUpStatements;
+        }
+        long prepares = 0;
+        long hits = 0;
+        long executions = 0;
+        for (int i = 0; i < entries.size(); i++) {
+            final Entry entry = entries.get(i);
+            synchronized (entry) {
+                prepares += entry.mPrepareCount;
+                hits += entry.mCacheHitCount;
+                executions += entry.mExecuteCount;
+            }
+        }
+        final long acquires = prepares + hits;
+        printer.println("  Statement stats: statements=" + entries.size()
+                + ", executions=" + executions
+                + ", prepares=" + prepares
+                + ", cacheHitRate=" + (acquires > 0 ? hits * 100 / acquires : 0) + "%"
+                + ", warmedUp=" + warmedUp);
+        if (entries.isEmpty()) {
+            return;
+        }
+        Collections.sort(entries, (a, b) -> Long.compare(b.getTotalMicros(), a.getTotalMicros()));
+        printer.println("  Top statements by total execution time:");
+        final int count = Math.min(MAX_DUMPED_STATEMENTS, entries.size());
+        for (int i = 0; i < count; i++) {
+            entries.get(i).dump(printer);
+        }
+    }
+}
@@ -25,6 +25,7 @@ import android.util.SparseIntArray;
 
 import com.android.internal.os.BinderCallsStats;
 import com.android.internal.os.BinderInternal;
+import com.android.internal.os.BinderLatencySampler;
 import com.android.internal.util.FastPrintWriter;
 import com.android.internal.util.FunctionalUtils.ThrowingRunnable;
 import com.android.internal.util.FunctionalUtils.ThrowingSupplier;
@@ -715,6 +716,8 @@ public class Binder implements IBinder {
             int flags) {
         BinderCallsStats binderCallsStats = BinderCallsStats.getInstance();
         BinderCallsStats.CallSession callSession = binderCallsStats.callStarted(this, code);
+        final BinderLatencySampler latencySampler = BinderLatencySampler.getInstance();
+        final long sampleStartNanos = latencySampler.sampleStart();
         Parcel data = Parcel.obtain(dataObj);
         Parcel reply = Parcel.obtain(replyObj);
         // theoretically, we should call transact, which will call onTransact,
@@ -760,6 +763,9 @@ public class Binder implements IBinder {
         // way, strict mode begone!
         StrictMode.clearGatheredViolations();
         binderCallsStats.callEnded(callSession);
+        if (sampleStartNanos != BinderLatencySampler.NOT_SAMPLED) {
+            latencySampler.sampleEnd(this, code, sampleStartNanos);
+        }
 
         return res;
     }
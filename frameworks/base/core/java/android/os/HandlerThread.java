@@ -28,6 +28,7 @@ public class HandlerThread extends Thread {
     int mTid = -1;
     Looper mLooper;
     private @Nullable Handler mHandler;
+    private boolean mIndexedQueue;
 
     public HandlerThread(String name) {
         super(name);
@@ -52,10 +53,27 @@ public class HandlerThread extends Thread {
     protected void onLooperPrepared() {
     }
 
+    /**
+     * Use an indexed message queue for this thread's looper, see
+     * {@link Looper#prepareIndexed()}.  Must be called before the thread is started.
+     *
+     * @hide
+     */
+    public void setIndexedMessageQueue(boolean indexed) {
+        if (getState() != State.NEW) {
+            throw new IllegalStateException("Thread already started");
+        }
+        mIndexedQueue = indexed;
+    }
+
     @Override
     public void run() {
         mTid = Process.myTid();
-        Looper.prepare();
+        if (mIndexedQueue) {
+            Looper.prepareIndexed();
+        } else {
+            Looper.prepare();
+        }
         synchronized (this) {
             mLooper = Looper.myLooper();
             notifyAll();
@@ -100,13 +100,30 @@ public final class Looper {
         prepare(true);
     }
 
+    /**
+     * Like {@link #prepare()}, but the looper's queue keeps its messages in a heap with a
+     * per-{@link Handler} index instead of a sorted list.  This makes enqueueing and removing
+     * messages logarithmic rather than linear in the number of pending messages, at the cost
+     * of some constant overhead, so it only pays off for loopers that routinely hold many
+     * delayed messages.
+     *
+     * @hide
+     */
+    public static void prepareIndexed() {
+        prepare(true, true);
+    }
+
     private static void prepare(boolean quitAllowed) {
+        prepare(quitAllowed, false);
+    }
+
+    private static void prepare(boolean quitAllowed, boolean indexedQueue) {
         // 每个线程只能执行一次 prepare()，否则会直接抛出异常
         if (sThreadLocal.get() != null) {
             throw new RuntimeException("Only one Looper may be created per thread");
         }
         // 将 Looper 存入 ThreadLocal
-        sThreadLocal.set(new Looper(quitAllowed));
+        sThreadLocal.set(new Looper(quitAllowed, indexedQueue));
     }
 
     /**
@@ -271,8 +288,8 @@ public final class Looper {
         return myLooper().mQueue;
     }
 
-    private Looper(boolean quitAllowed) {
-        mQueue = new MessageQueue(quitAllowed); // 创建 MessageQueue
+    private Looper(boolean quitAllowed, boolean indexedQueue) {
+        mQueue = new MessageQueue(quitAllowed, indexedQueue); // 创建 MessageQueue
         mThread = Thread.currentThread(); // 当前线程
     }
 
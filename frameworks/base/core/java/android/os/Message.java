@@ -109,6 +109,12 @@ public final class Message implements Parcelable {
     // sometimes we store linked lists of these things
     /*package*/ Message next;
 
+    // Position and index links of a message queued in a MessageHeap.
+    /*package*/ int heapIndex = -1;
+    /*package*/ long heapSeq;
+    /*package*/ Message indexPrev;
+    /*package*/ Message indexNext;
+
 
     /** @hide */
     public static final Object sPoolSync = new Object();
@@ -0,0 +1,413 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import android.util.SparseArray;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+
+/**
+ * Message storage used by an indexed {@link MessageQueue} in place of its sorted linked list.
+ *
+ * <p>Synchronous messages and barriers live in one binary min-heap and asynchronous messages
+ * in another, both ordered by (when, sequence), so that messages due at the same time keep
+ * the order in which they were enqueued, and messages posted at the front of the queue come
+ * before everything else, newest first, exactly like the list.  A barrier at the top of the
+ * synchronous heap stalls it, leaving the asynchronous heap to deliver.
+ *
+ * <p>Every message with a target is also linked into a per-{@link Handler} index, keyed by
+ * {@link Message#what} for plain messages and by {@link Message#callback} for posted
+ * {@link Runnable}s, so that removeMessages() and hasMessages() only visit candidates.  Both
+ * handlers and runnables are matched by identity, like the list walk does, never by equals().
+ *
+ * <p>Enqueue and dequeue are O(log n), removing a message is O(log n) once found, and the
+ * linear walks of the list are gone.  Not thread safe; the owning MessageQueue's lock
+ * guards every call.
+ */
+final class MessageHeap {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private Message[] mSync = new Message[INITIAL_CAPACITY];
+    private int mSyncSize;
+    private Message[] mAsync = new Message[INITIAL_CAPACITY];
+    private int mAsyncSize;
+
+    /** Next sequence number for ordinary messages, increasing. */
+    private long mNextSeq = 1;
+    /** Next sequence number for messages posted at the front, decreasing. */
+    private long mNextFrontSeq = -1;
+
+    /** Messages of each handler, see {@link HandlerMessages}. */
+    private final IdentityHashMap<Handler, HandlerMessages> mHandlers =
+            new IdentityHashMap<>();
+    /** Pending barriers by token. */
+    private final SparseArray<Message> mBarriers = new SparseArray<>();
+
+    /**
+     * Heads of the doubly linked lists, through {@link Message#indexNext} and
+     * {@link Message#indexPrev}, of the queued messages of one handler.
+     */
+    private static final class HandlerMessages {
+        final SparseArray<Message> whats = new SparseArray<>();
+        final IdentityHashMap<Runnable, Message> callbacks = new IdentityHashMap<>();
+        /** Number of queued callback messages whose what isn't 0. */
+        int callbacksWithWhat;
+        int count;
+    }
+
+    private static final Comparator<Message> ORDER = (a, b) -> compare(a, b);
+
+    int size() {
+        return mSyncSize + mAsyncSize;
+    }
+
+    /**
+     * Returns the message at the front of the queue, possibly a barrier, like the head of the
+     * list the queue would otherwise keep.
+     */
+    Message first() {
+        final Message sync = mSyncSize > 0 ? mSync[0] : null;
+        final Message async = mAsyncSize > 0 ? mAsync[0] : null;
+        return earlier(sync, async);
+    }
+
+    /**
+     * Returns the message that {@link MessageQueue#next} should deliver next, ignoring whether
+     * it is due yet.  Never a barrier.
+     */
+    Message peekNext() {
+        final Message sync = mSyncSize > 0 ? mSync[0] : null;
+        final Message async = mAsyncSize > 0 ? mAsync[0] : null;
+        if (sync != null && sync.target == null) {
+            // Stalled by a barrier.
+            return async;
+        }
+        return earlier(sync, async);
+    }
+
+    void insert(Message msg, boolean atFront) {
+        msg.heapSeq = atFront ? mNextFrontSeq-- : mNextSeq++;
+        if (msg.target == null) {
+            mBarriers.put(msg.arg1, msg);
+            mSync = offer(mSync, mSyncSize++, msg);
+        } else {
+            index(msg);
+            if (msg.isAsynchronous()) {
+                mAsync = offer(mAsync, mAsyncSize++, msg);
+            } else {
+                mSync = offer(mSync, mSyncSize++, msg);
+            }
+        }
+    }
+
+    Message getBarrier(int token) {
+        return mBarriers.get(token);
+    }
+
+    /**
+     * Removes a queued message from the heap and the index.  Doesn't recycle it.
+     */
+    void remove(Message msg) {
+        final int i = msg.heapIndex;
+        if (i < mAsyncSize && mAsync[i] == msg) {
+            removeAt(mAsync, --mAsyncSize, i);
+        } else {
+            removeAt(mSync, --mSyncSize, i);
+        }
+        if (msg.target == null) {
+            mBarriers.remove(msg.arg1);
+            clearLinks(msg);
+        } else {
+            unindex(msg);
+        }
+    }
+
+    boolean hasMessages(Handler h, int what, Object object) {
+        final HandlerMessages entry = mHandlers.get(h);
+        if (entry == null) {
+            return false;
+        }
+        for (Message p = entry.whats.get(what); p != null; p = p.indexNext) {
+            if (object == null || p.obj == object) {
+                return true;
+            }
+        }
+        if (what == 0 || entry.callbacksWithWhat > 0) {
+            for (Message head : entry.callbacks.values()) {
+                for (Message p = head; p != null; p = p.indexNext) {
+                    if (p.what == what && (object == null || p.obj == object)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    boolean hasMessages(Handler h, Runnable r, Object object) {
+        final HandlerMessages entry = mHandlers.get(h);
+        if (entry == null) {
+            return false;
+        }
+        for (Message p = entry.callbacks.get(r); p != null; p = p.indexNext) {
+            if (object == null || p.obj == object) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean hasMessages(Handler h) {
+        return mHandlers.containsKey(h);
+    }
+
+    void removeMessages(Handler h, int what, Object object) {
+        final HandlerMessages entry = mHandlers.get(h);
+        if (entry == null) {
+            return;
+        }
+        removeMatching(entry.whats.get(what), false, 0, object);
+        if (what == 0 || entry.callbacksWithWhat > 0) {
+            for (Message head : entry.callbacks.values().toArray(new Message[0])) {
+                removeMatching(head, true, what, object);
+            }
+        }
+    }
+
+    void removeMessages(Handler h, Runnable r, Object object) {
+        final HandlerMessages entry = mHandlers.get(h);
+        if (entry == null) {
+            return;
+        }
+        removeMatching(entry.callbacks.get(r), false, 0, object);
+    }
+
+    void removeCallbacksAndMessages(Handler h, Object object) {
+        final HandlerMessages entry = mHandlers.get(h);
+        if (entry == null) {
+            return;
+        }
+        final Message[] heads = new Message[entry.whats.size()];
+        for (int i = 0; i < heads.length; i++) {
+            heads[i] = entry.whats.valueAt(i);
+        }
+        for (Message head : heads) {
+            removeMatching(head, false, 0, object);
+        }
+        for (Message head : entry.callbacks.values().toArray(new Message[0])) {
+            removeMatching(head, false, 0, object);
+        }
+    }
+
+    /**
+     * Removes and recycles the messages of one index list that match <var>object</var> and,
+     * if <var>checkWhat</var> is set, <var>what</var>.
+     */
+    private void removeMatching(Message p, boolean checkWhat, int what, Object object) {
+        while (p != null) {
+            final Message n = p.indexNext;
+            if ((!checkWhat || p.what == what) && (object == null || p.obj == object)) {
+                remove(p);
+                p.recycleUnchecked();
+            }
+            p = n;
+        }
+    }
+
+    void removeAll() {
+        for (int i = 0; i < mSyncSize; i++) {
+            clearLinks(mSync[i]);
+            mSync[i].recycleUnchecked();
+            mSync[i] = null;
+        }
+        for (int i = 0; i < mAsyncSize; i++) {
+            clearLinks(mAsync[i]);
+            mAsync[i].recycleUnchecked();
+            mAsync[i] = null;
+        }
+        mSyncSize = 0;
+        mAsyncSize = 0;
+        mHandlers.clear();
+        mBarriers.clear();
+    }
+
+    /**
+     * Removes and recycles every message that isn't due by <var>now</var>.
+     */
+    void removeAllFuture(long now) {
+        for (Message msg : toArray(mSync, mSyncSize)) {
+            if (msg.when > now) {
+                remove(msg);
+                msg.recycleUnchecked();
+            }
+        }
+        for (Message msg : toArray(mAsync, mAsyncSize)) {
+            if (msg.when > now) {
+                remove(msg);
+                msg.recycleUnchecked();
+            }
+        }
+    }
+
+    /**
+     * Returns the queued messages, barriers included, in the order of the equivalent list.
+     * Allocates; only meant for dumping.
+     */
+    Message[] toSortedArray() {
+        final Message[] all = new Message[size()];
+        System.arraycopy(mSync, 0, all, 0, mSyncSize);
+        System.arraycopy(mAsync, 0, all, mSyncSize, mAsyncSize);
+        Arrays.sort(all, ORDER);
+        return all;
+    }
+
+    private void index(Message msg) {
+        HandlerMessages entry = mHandlers.get(msg.target);
+        if (entry == null) {
+            entry = new HandlerMessages();
+            mHandlers.put(msg.target, entry);
+        }
+        final Message head;
+        if (msg.callback != null) {
+            head = entry.callbacks.put(msg.callback, msg);
+            if (msg.what != 0) {
+                entry.callbacksWithWhat++;
+            }
+        } else {
+            head = entry.whats.get(msg.what);
+            entry.whats.put(msg.what, msg);
+        }
+        msg.indexPrev = null;
+        msg.indexNext = head;
+        if (head != null) {
+            head.indexPrev = msg;
+        }
+        entry.count++;
+    }
+
+    private void unindex(Message msg) {
+        final HandlerMessages entry = mHandlers.get(msg.target);
+        final Message prev = msg.indexPrev;
+        final Message next = msg.indexNext;
+        if (next != null) {
+            next.indexPrev = prev;
+        }
+        if (prev != null) {
+            prev.indexNext = next;
+        } else if (msg.callback != null) {
+            if (next != null) {
+                entry.callbacks.put(msg.callback, next);
+            } else {
+                entry.callbacks.remove(msg.callback);
+            }
+        } else {
+            if (next != null) {
+                entry.whats.put(msg.what, next);
+            } else {
+                entry.whats.remove(msg.what);
+            }
+        }
+        if (msg.callback != null && msg.what != 0) {
+            entry.callbacksWithWhat--;
+        }
+        clearLinks(msg);
+        if (--entry.count == 0) {
+            mHandlers.remove(msg.target);
+        }
+    }
+
+    private static void clearLinks(Message msg) {
+        msg.heapIndex = -1;
+        msg.indexPrev = null;
+        msg.indexNext = null;
+    }
+
+    private static Message[] toArray(Message[] heap, int size) {
+        return Arrays.copyOf(heap, size);
+    }
+
+    private static int compare(Message a, Message b) {
+        if (a.when != b.when) {
+            return a.when < b.when ? -1 : 1;
+        }
+        return Long.compare(a.heapSeq, b.heapSeq);
+    }
+
+    private static Message earlier(Message a, Message b) {
+        if (a == null) return b;
+        if (b == null) return a;
+        return compare(a, b) <= 0 ? a : b;
+    }
+
+    private static Message[] offer(Message[] heap, int size, Message msg) {
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        siftUp(heap, size, msg);
+        return heap;
+    }
+
+    private static void removeAt(Message[] heap, int last, int i) {
+        final Message moved = heap[last];
+        heap[last] = null;
+        if (i == last) {
+            return;
+        }
+        siftDown(heap, last, i, moved);
+        if (heap[i] == moved) {
+            siftUp(heap, i, moved);
+        }
+    }
+
+    private static void siftUp(Message[] heap, int i, Message msg) {
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            final Message p = heap[parent];
+            if (compare(msg, p) >= 0) {
+                break;
+            }
+            heap[i] = p;
+            p.heapIndex = i;
+            i = parent;
+        }
+        heap[i] = msg;
+        msg.heapIndex = i;
+    }
+
+    private static void siftDown(Message[] heap, int size, int i, Message msg) {
+        final int half = size >>> 1;
+        while (i < half) {
+            int child = (i << 1) + 1;
+            Message c = heap[child];
+            final int right = child + 1;
+            if (right < size && compare(heap[right], c) < 0) {
+                child = right;
+                c = heap[child];
+            }
+            if (compare(msg, c) <= 0) {
+                break;
+            }
+            heap[i] = c;
+            c.heapIndex = i;
+            i = child;
+        }
+        heap[i] = msg;
+        msg.heapIndex = i;
+    }
+}
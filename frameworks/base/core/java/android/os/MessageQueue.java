@@ -48,6 +48,8 @@ public final class MessageQueue {
     private long mPtr; // used by native code
 
     Message mMessages;
+    // When non-null, holds the queued messages instead of mMessages (which stays null).
+    private final MessageHeap mHeap;
     private final ArrayList<IdleHandler> mIdleHandlers = new ArrayList<IdleHandler>();
     private SparseArray<FileDescriptorRecord> mFileDescriptorRecords;
     private IdleHandler[] mPendingIdleHandlers;
@@ -68,7 +70,16 @@ public final class MessageQueue {
     private native static void nativeSetFileDescriptorEvents(long ptr, int fd, int events);
 
     MessageQueue(boolean quitAllowed) {
+        this(quitAllowed, false);
+    }
+
+    /**
+     * @param indexed Keep messages in a {@link MessageHeap} rather than a sorted list, for
+     *        loopers that hold many delayed messages.
+     */
+    MessageQueue(boolean quitAllowed, boolean indexed) {
         mQuitAllowed = quitAllowed;
+        mHeap = indexed ? new MessageHeap() : null;
         mPtr = nativeInit(); // native 方法，mPtr is used by native code
     }
 
@@ -100,7 +111,8 @@ public final class MessageQueue {
     public boolean isIdle() {
         synchronized (this) {
             final long now = SystemClock.uptimeMillis();
-            return mMessages == null || now < mMessages.when;
+            final Message first = firstLocked();
+            return first == null || now < first.when;
         }
     }
 
@@ -155,6 +167,18 @@ public final class MessageQueue {
         }
     }
 
+    /** @hide */
+    public boolean isIndexed() {
+        return mHeap != null;
+    }
+
+    /**
+     * Returns the message at the front of the queue, possibly a barrier.
+     */
+    private Message firstLocked() {
+        return mHeap != null ? mHeap.first() : mMessages;
+    }
+
     private boolean isPollingLocked() {
         // If the loop is quitting then it must not be idling.
         // We can assume mPtr != 0 when mQuitting is false.
@@ -332,8 +356,8 @@ public final class MessageQueue {
                 // Try to retrieve the next message.  Return if found.
                 final long now = SystemClock.uptimeMillis();
                 Message prevMsg = null;
-                Message msg = mMessages;
-                if (msg != null && msg.target == null) {
+                Message msg = mHeap != null ? mHeap.peekNext() : mMessages;
+                if (mHeap == null && msg != null && msg.target == null) {
                     // Stalled by a barrier.  Find the next asynchronous message in the queue.
                     // msg.target == null表示此消息为消息屏障（通过postSyncBarrier方法发送来的）
                     // 如果发现了一个消息屏障，会循环找出第一个异步消息（如果有异步消息的话），所有同步消息都将忽略（平常发送的一般都是同步消息）
@@ -351,7 +375,9 @@ public final class MessageQueue {
                         // Got a message.
                         // 得到 Message
                         mBlocked = false;
-                        if (prevMsg != null) {
+                        if (mHeap != null) {
+                            mHeap.remove(msg);
+                        } else if (prevMsg != null) {
                             prevMsg.next = msg.next;
                         } else {
                             mMessages = msg.next;
@@ -377,9 +403,11 @@ public final class MessageQueue {
                 // Idle handles only run if the queue is empty or if the first message
                 // in the queue (possibly a barrier) is due to be handled in the future.
                 // Idle handle 仅当队列为空或者队列中的第一个消息将要执行时才会运行
-                if (pendingIdleHandlerCount < 0
-                        && (mMessages == null || now < mMessages.when)) {
-                    pendingIdleHandlerCount = mIdleHandlers.size();
+                if (pendingIdleHandlerCount < 0) {
+                    final Message first = firstLocked();
+                    if (first == null || now < first.when) {
+                        pendingIdleHandlerCount = mIdleHandlers.size();
+                    }
                 }
                 if (pendingIdleHandlerCount <= 0) {
                     // No idle handlers to run.  Loop and wait some more.
@@ -486,6 +514,11 @@ public final class MessageQueue {
             msg.when = when;
             msg.arg1 = token;
 
+            if (mHeap != null) {
+                mHeap.insert(msg, false);
+                return token;
+            }
+
             Message prev = null;
             Message p = mMessages;
             if (when != 0) {
@@ -519,6 +552,10 @@ public final class MessageQueue {
         // Remove a sync barrier token from the queue.
         // If the queue is no longer stalled by a barrier then wake it.
         synchronized (this) {
+            if (mHeap != null) {
+                removeSyncBarrierIndexedLocked(token);
+                return;
+            }
             Message prev = null;
             Message p = mMessages;
             while (p != null && (p.target != null || p.arg1 != token)) {
@@ -547,6 +584,25 @@ public final class MessageQueue {
         }
     }
 
+    private void removeSyncBarrierIndexedLocked(int token) {
+        final Message p = mHeap.getBarrier(token);
+        if (p == null) {
+            throw new IllegalStateException("The specified message queue synchronization "
+                    + " barrier token has not been posted or has already been removed.");
+        }
+        final boolean wasFirst = mHeap.first() == p;
+        mHeap.remove(p);
+        final Message first = mHeap.first();
+        final boolean needWake = wasFirst && (first == null || first.target != null);
+        p.recycleUnchecked();
+
+        // If the loop is quitting then it is already awake.
+        // We can assume mPtr != 0 when mQuitting is false.
+        if (needWake && !mQuitting) {
+            nativeWake(mPtr);
+        }
+    }
+
     boolean enqueueMessage(Message msg, long when) {
         if (msg.target == null) { // msg 必须有 target
             throw new IllegalArgumentException("Message must have a target.");
@@ -566,6 +622,14 @@ public final class MessageQueue {
 
             msg.markInUse();
             msg.when = when;
+            if (mHeap != null) {
+                mHeap.insert(msg, when == 0);
+                // Wake up the event queue if blocked and this is now the message it waits for.
+                if (mBlocked && mHeap.peekNext() == msg) {
+                    nativeWake(mPtr);
+                }
+                return true;
+            }
             Message p = mMessages;
             boolean needWake;
             if (p == null || when == 0 || when < p.when) {
@@ -608,6 +672,9 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mHeap != null) {
+                return mHeap.hasMessages(h, what, object);
+            }
             Message p = mMessages;
             while (p != null) {
                 if (p.target == h && p.what == what && (object == null || p.obj == object)) {
@@ -625,6 +692,9 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mHeap != null) {
+                return mHeap.hasMessages(h, r, object);
+            }
             Message p = mMessages;
             while (p != null) {
                 if (p.target == h && p.callback == r && (object == null || p.obj == object)) {
@@ -642,6 +712,9 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mHeap != null) {
+                return mHeap.hasMessages(h);
+            }
             Message p = mMessages;
             while (p != null) {
                 if (p.target == h) {
@@ -659,6 +732,10 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mHeap != null) {
+                mHeap.removeMessages(h, what, object);
+                return;
+            }
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -693,6 +770,10 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mHeap != null) {
+                mHeap.removeMessages(h, r, object);
+                return;
+            }
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -727,6 +808,10 @@ public final class MessageQueue {
         }
 
         synchronized (this) {
+            if (mHeap != null) {
+                mHeap.removeCallbacksAndMessages(h, object);
+                return;
+            }
             Message p = mMessages;
 
             // Remove all messages at front.
@@ -755,6 +840,10 @@ public final class MessageQueue {
     }
 
     private void removeAllMessagesLocked() {
+        if (mHeap != null) {
+            mHeap.removeAll();
+            return;
+        }
         Message p = mMessages;
         while (p != null) {
             Message n = p.next;
@@ -766,6 +855,10 @@ public final class MessageQueue {
 
     private void removeAllFutureMessagesLocked() {
         final long now = SystemClock.uptimeMillis();
+        if (mHeap != null) {
+            mHeap.removeAllFuture(now);
+            return;
+        }
         Message p = mMessages;
         if (p != null) {
             if (p.when > now) {
@@ -796,6 +889,14 @@ public final class MessageQueue {
         synchronized (this) {
             long now = SystemClock.uptimeMillis();
             int n = 0;
+            if (mHeap != null) {
+                for (Message msg : mHeap.toSortedArray()) {
+                    if (h == null || h == msg.target) {
+                        pw.println(prefix + "Message " + n + ": " + msg.toString(now));
+                    }
+                    n++;
+                }
+            }
             for (Message msg = mMessages; msg != null; msg = msg.next) {
                 if (h == null || h == msg.target) {
                     pw.println(prefix + "Message " + n + ": " + msg.toString(now));
@@ -803,13 +904,18 @@ public final class MessageQueue {
                 n++;
             }
             pw.println(prefix + "(Total messages: " + n + ", polling=" + isPollingLocked()
-                    + ", quitting=" + mQuitting + ")");
+                    + ", quitting=" + mQuitting + (mHeap != null ? ", indexed" : "") + ")");
         }
     }
 
     void writeToProto(ProtoOutputStream proto, long fieldId) {
         final long messageQueueToken = proto.start(fieldId);
         synchronized (this) {
+            if (mHeap != null) {
+                for (Message msg : mHeap.toSortedArray()) {
+                    msg.writeToProto(proto, MessageQueueProto.MESSAGES);
+                }
+            }
             for (Message msg = mMessages; msg != null; msg = msg.next) {
                 msg.writeToProto(proto, MessageQueueProto.MESSAGES);
             }
@@ -0,0 +1,481 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A variant of {@link LruCache} for caches that are read from many threads at once.
+ *
+ * <p>{@link LruCache} keeps its entries in an access-ordered {@link LinkedHashMap}, so every
+ * {@link LruCache#get} has to take the cache lock to reorder the map, and concurrent readers
+ * serialize on it. This class instead keeps entries in a {@link ConcurrentHashMap} and finds
+ * eviction victims with the CLOCK algorithm: a hit only sets the entry's reference bit, so
+ * {@link #get} never takes a lock when the value is present. Entries are kept on a ring in
+ * insertion order; to evict, a hand sweeps the ring, clearing reference bits, and removes
+ * the first entry whose bit was already clear. Eviction is therefore an approximation of
+ * LRU order: an entry that was read since the hand last passed it survives one more sweep.
+ *
+ * <p>Insertions, removals and evictions are serialized on an internal lock. As with
+ * {@link LruCache}, {@link #create}, {@link #entryRemoved} and {@link #sizeOf} may be
+ * overridden; {@link #create} and {@link #entryRemoved} are called without holding the lock,
+ * while {@link #sizeOf} is called with it held.
+ *
+ * <p>Unlike {@link LruCache}, callers cannot perform several operations atomically by
+ * synchronizing on the cache.
+ *
+ * <p>This class does not allow null to be used as a key or value.
+ *
+ * @hide
+ */
+public class ConcurrentLruCache<K, V> {
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final int size;
+
+        /** Set on every hit, cleared as the clock hand passes. */
+        volatile boolean referenced;
+
+        // Ring links, guarded by mLock.
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int size) {
+            this.key = key;
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private final ConcurrentHashMap<K, Node<K, V>> mMap;
+
+    private final Object mLock = new Object();
+
+    /** Next entry to be considered for eviction; the newest entry sits just behind it. */
+    @GuardedBy("mLock")
+    private Node<K, V> mHand;
+
+    /** Size of this cache in units. Not necessarily the number of elements. */
+    @GuardedBy("mLock")
+    private int mSize;
+    @GuardedBy("mLock")
+    private int mMaxSize;
+
+    @GuardedBy("mLock")
+    private int mPutCount;
+    @GuardedBy("mLock")
+    private int mCreateCount;
+    @GuardedBy("mLock")
+    private int mEvictionCount;
+
+    // Updated on the lock-free read path.
+    private final LongAdder mHitCount = new LongAdder();
+    private final LongAdder mMissCount = new LongAdder();
+
+    /**
+     * @param maxSize for caches that do not override {@link #sizeOf}, this is
+     *     the maximum number of entries in the cache. For all other caches,
+     *     this is the maximum sum of the sizes of the entries in this cache.
+     */
+    public ConcurrentLruCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        mMap = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Sets the size of the cache.
+     *
+     * @param maxSize The new maximum size.
+     */
+    public void resize(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+
+        synchronized (mLock) {
+            mMaxSize = maxSize;
+        }
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache or can be
+     * created by {@code #create}. A returned value is marked as recently used.
+     * This returns null if a value is not cached and cannot be created.
+     */
+    public final V get(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        Node<K, V> node = mMap.get(key);
+        if (node != null) {
+            // Avoid dirtying the cache line when the bit is already set.
+            if (!node.referenced) {
+                node.referenced = true;
+            }
+            mHitCount.increment();
+            return node.value;
+        }
+        mMissCount.increment();
+
+        /*
+         * Attempt to create a value. This may take a long time, and the map
+         * may be different when create() returns. If a conflicting value was
+         * added to the map while create() was working, we leave that value in
+         * the map and release the created value.
+         */
+
+        V createdValue = create(key);
+        if (createdValue == null) {
+            return null;
+        }
+
+        V mapValue = null;
+        int maxSize;
+        synchronized (mLock) {
+            mCreateCount++;
+            node = mMap.get(key);
+            if (node != null) {
+                mapValue = node.value;
+            } else {
+                insertLocked(key, createdValue);
+            }
+            maxSize = mMaxSize;
+        }
+
+        if (mapValue != null) {
+            entryRemoved(false, key, createdValue, mapValue);
+            return mapValue;
+        } else {
+            trimToSize(maxSize);
+            return createdValue;
+        }
+    }
+
+    /**
+     * Caches {@code value} for {@code key}. The entry is treated as the most
+     * recently used one.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V put(K key, V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+
+        V previous;
+        int maxSize;
+        synchronized (mLock) {
+            mPutCount++;
+            Node<K, V> old = insertLocked(key, value);
+            previous = old != null ? old.value : null;
+            maxSize = mMaxSize;
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous, value);
+        }
+
+        trimToSize(maxSize);
+        return previous;
+    }
+
+    /**
+     * Remove entries, in clock order, until the total of remaining entries is
+     * at or below the requested size.
+     *
+     * @param maxSize the maximum size of the cache before returning. May be -1
+     *            to evict even 0-sized elements.
+     */
+    public void trimToSize(int maxSize) {
+        ArrayList<Node<K, V>> evicted = null;
+        synchronized (mLock) {
+            while (true) {
+                if (mSize < 0 || (mHand == null && mSize != 0)) {
+                    throw new IllegalStateException(getClass().getName()
+                            + ".sizeOf() is reporting inconsistent results!");
+                }
+
+                if (mSize <= maxSize || mHand == null) {
+                    break;
+                }
+
+                // Readers may set bits again behind the hand, so give up after
+                // one revolution and take the entry the hand started at.
+                final Node<K, V> start = mHand;
+                Node<K, V> victim = start;
+                while (victim.referenced) {
+                    victim.referenced = false;
+                    victim = victim.next;
+                    if (victim == start) {
+                        break;
+                    }
+                }
+                mHand = victim;
+
+                unlinkLocked(victim);
+                mMap.remove(victim.key, victim);
+                mSize -= victim.size;
+                mEvictionCount++;
+                if (evicted == null) {
+                    evicted = new ArrayList<>();
+                }
+                evicted.add(victim);
+            }
+        }
+
+        if (evicted != null) {
+            for (int i = 0, n = evicted.size(); i < n; i++) {
+                Node<K, V> node = evicted.get(i);
+                entryRemoved(true, node.key, node.value, null);
+            }
+        }
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}.
+     */
+    public final V remove(K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+
+        V previous = null;
+        synchronized (mLock) {
+            Node<K, V> node = mMap.remove(key);
+            if (node != null) {
+                unlinkLocked(node);
+                mSize -= node.size;
+                previous = node.value;
+            }
+        }
+
+        if (previous != null) {
+            entryRemoved(false, key, previous, null);
+        }
+
+        return previous;
+    }
+
+    /**
+     * Maps {@code key} to a new entry placed just behind the clock hand, so it
+     * is the last entry the hand reaches.
+     *
+     * @return the entry that was replaced, if any.
+     */
+    @GuardedBy("mLock")
+    private Node<K, V> insertLocked(K key, V value) {
+        Node<K, V> node = new Node<>(key, value, safeSizeOf(key, value));
+        Node<K, V> old = mMap.put(key, node);
+        if (old != null) {
+            unlinkLocked(old);
+            mSize -= old.size;
+        }
+        if (mHand == null) {
+            node.prev = node;
+            node.next = node;
+            mHand = node;
+        } else {
+            node.next = mHand;
+            node.prev = mHand.prev;
+            mHand.prev.next = node;
+            mHand.prev = node;
+        }
+        mSize += node.size;
+        return old;
+    }
+
+    @GuardedBy("mLock")
+    private void unlinkLocked(Node<K, V> node) {
+        if (node.next == node) {
+            mHand = null;
+        } else {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            if (mHand == node) {
+                mHand = node.next;
+            }
+        }
+        node.prev = null;
+        node.next = null;
+    }
+
+    /**
+     * Called for entries that have been evicted or removed. This method is
+     * invoked when a value is evicted to make space, removed by a call to
+     * {@link #remove}, or replaced by a call to {@link #put}. The default
+     * implementation does nothing.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     *
+     * @param evicted true if the entry is being removed to make space, false
+     *     if the removal was caused by a {@link #put} or {@link #remove}.
+     * @param newValue the new value for {@code key}, if it exists. If non-null,
+     *     this removal was caused by a {@link #put}. Otherwise it was caused by
+     *     an eviction or a {@link #remove}.
+     */
+    protected void entryRemoved(boolean evicted, K key, V oldValue, V newValue) {}
+
+    /**
+     * Called after a cache miss to compute a value for the corresponding key.
+     * Returns the computed value or null if no value can be computed. The
+     * default implementation returns null.
+     *
+     * <p>The method is called without synchronization: other threads may
+     * access the cache while this method is executing.
+     *
+     * <p>If a value for {@code key} exists in the cache when this method
+     * returns, the created value will be released with {@link #entryRemoved}
+     * and discarded.
+     */
+    protected V create(K key) {
+        return null;
+    }
+
+    private int safeSizeOf(K key, V value) {
+        int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the size of the entry for {@code key} and {@code value} in
+     * user-defined units.  The default implementation returns 1 so that size
+     * is the number of entries and max size is the maximum number of entries.
+     *
+     * <p>An entry's size must not change while it is in the cache. This is
+     * called with the cache's internal lock held.
+     */
+    protected int sizeOf(K key, V value) {
+        return 1;
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    public final void evictAll() {
+        trimToSize(-1); // -1 will evict 0-sized elements
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the number
+     * of entries in the cache. For all other caches, this returns the sum of
+     * the sizes of the entries in this cache.
+     */
+    public final int size() {
+        synchronized (mLock) {
+            return mSize;
+        }
+    }
+
+    /**
+     * For caches that do not override {@link #sizeOf}, this returns the maximum
+     * number of entries in the cache. For all other caches, this returns the
+     * maximum sum of the sizes of the entries in this cache.
+     */
+    public final int maxSize() {
+        synchronized (mLock) {
+            return mMaxSize;
+        }
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned a value that was
+     * already present in the cache.
+     */
+    public final int hitCount() {
+        return mHitCount.intValue();
+    }
+
+    /**
+     * Returns the number of times {@link #get} returned null or required a new
+     * value to be created.
+     */
+    public final int missCount() {
+        return mMissCount.intValue();
+    }
+
+    /**
+     * Returns the number of times {@link #create(Object)} returned a value.
+     */
+    public final int createCount() {
+        synchronized (mLock) {
+            return mCreateCount;
+        }
+    }
+
+    /**
+     * Returns the number of times {@link #put} was called.
+     */
+    public final int putCount() {
+        synchronized (mLock) {
+            return mPutCount;
+        }
+    }
+
+    /**
+     * Returns the number of values that have been evicted.
+     */
+    public final int evictionCount() {
+        synchronized (mLock) {
+            return mEvictionCount;
+        }
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache, in the order the
+     * clock hand will consider them for eviction.
+     */
+    public final Map<K, V> snapshot() {
+        synchronized (mLock) {
+            LinkedHashMap<K, V> result = new LinkedHashMap<>(mMap.size());
+            Node<K, V> node = mHand;
+            if (node != null) {
+                do {
+                    result.put(node.key, node.value);
+                    node = node.next;
+                } while (node != mHand);
+            }
+            return result;
+        }
+    }
+
+    @Override public final String toString() {
+        int hits = hitCount();
+        int misses = missCount();
+        int accesses = hits + misses;
+        int hitPercent = accesses != 0 ? (int) (100L * hits / accesses) : 0;
+        return String.format("ConcurrentLruCache[maxSize=%d,hits=%d,misses=%d,evictions=%d,"
+                + "hitRate=%d%%]", maxSize(), hits, misses, evictionCount(), hitPercent);
+    }
+}
@@ -0,0 +1,866 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import libcore.util.EmptyArray;
+
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * HashedArrayMap is a variant of {@link ArrayMap} for maps that usually stay small
+ * but may grow to thousands of entries.  Like ArrayMap it keeps its mappings in
+ * flat arrays -- an integer array of hash codes and an Object array of the key/value
+ * pairs -- and offers the same indexed API ({@link #keyAt}, {@link #valueAt},
+ * {@link #removeAt}).
+ *
+ * <p>Unlike ArrayMap the arrays are not sorted by hash code.  New entries are
+ * appended and removed entries are replaced by the last entry, so neither operation
+ * needs to shift the arrays.  While the map is small, lookups scan the hash array
+ * linearly.  Once it holds more than {@link #INDEX_THRESHOLD} items, an
+ * open-addressing (linear probing) table of indices into the arrays is built so that
+ * lookups, inserts and removes stay O(1) regardless of size.  The table is dropped
+ * again when the map shrinks well below that threshold.</p>
+ *
+ * <p>The order of entries is unspecified and may change when an entry is removed:
+ * removing the entry at index <var>i</var> moves the last entry to <var>i</var>.
+ * Iterating backwards while calling {@link #removeAt} therefore still visits every
+ * entry exactly once, as does the usual iterator-based removal.</p>
+ *
+ * @hide
+ */
+public final class HashedArrayMap<K, V> implements Map<K, V> {
+    private static final boolean DEBUG = false;
+    private static final String TAG = "HashedArrayMap";
+
+    /**
+     * Attempt to spot concurrent modifications to this data structure.
+     *
+     * @see ArrayMap
+     */
+    private static final boolean CONCURRENT_MODIFICATION_EXCEPTIONS = true;
+
+    /**
+     * The minimum amount by which the capacity of a HashedArrayMap will increase.
+     */
+    private static final int BASE_SIZE = 4;
+
+    /**
+     * Maximum number of entries to have in array caches.
+     */
+    private static final int CACHE_SIZE = 10;
+
+    /**
+     * Number of items above which lookups go through {@link #mIndex} instead of
+     * scanning {@link #mHashes}.
+     */
+    private static final int INDEX_THRESHOLD = BASE_SIZE * 4;
+
+    /**
+     * Smallest open-addressing table that will be allocated.
+     */
+    private static final int MIN_INDEX_SIZE = INDEX_THRESHOLD * 2;
+
+    /**
+     * Caches of small array objects to avoid spamming garbage, in the same
+     * format as those of {@link ArrayMap}: a linked list of Object[] arrays whose
+     * first entry points to the next array and whose second entry is the int[]
+     * hash code array for it.
+     */
+    static Object[] mBaseCache;
+    static int mBaseCacheSize;
+    static Object[] mTwiceBaseCache;
+    static int mTwiceBaseCacheSize;
+
+    final boolean mIdentityHashCode;
+    int[] mHashes;
+    Object[] mArray;
+    /**
+     * Open-addressing table mapping hash slots to (index + 1) in {@link #mHashes},
+     * with 0 marking an empty slot.  Its length is a power of two at least twice
+     * {@link #mSize}.  Null while the map is small.
+     */
+    int[] mIndex;
+    int mSize;
+    MapCollections<K, V> mCollections;
+
+    private static int slotOf(int hash, int mask) {
+        final int h = hash * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private static boolean keyEquals(Object key, Object other) {
+        return key == null ? other == null : (key == other || key.equals(other));
+    }
+
+    private int hashOf(Object key) {
+        return key == null ? 0
+                : (mIdentityHashCode ? System.identityHashCode(key) : key.hashCode());
+    }
+
+    int indexOf(Object key, int hash) {
+        final int N = mSize;
+        final int[] hashes = mHashes;
+        final Object[] array = mArray;
+        final int[] table = mIndex;
+
+        try {
+            if (table == null) {
+                for (int i=0; i<N; i++) {
+                    if (hashes[i] == hash && keyEquals(key, array[i<<1])) {
+                        return i;
+                    }
+                }
+                return -1;
+            }
+
+            final int mask = table.length - 1;
+            for (int slot = slotOf(hash, mask); ; slot = (slot + 1) & mask) {
+                final int i = table[slot] - 1;
+                if (i < 0) {
+                    return -1;
+                }
+                if (hashes[i] == hash && keyEquals(key, array[i<<1])) {
+                    return i;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            if (CONCURRENT_MODIFICATION_EXCEPTIONS) {
+                throw new ConcurrentModificationException();
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Rebuild {@link #mIndex} so that it can hold at least <var>capacity</var> items
+     * at a load factor of at most 1/2.
+     */
+    private void rebuildIndex(int capacity) {
+        int n = MIN_INDEX_SIZE;
+        while (n < capacity * 2) {
+            n <<= 1;
+        }
+        if (DEBUG) Log.d(TAG, "rebuildIndex: " + (mIndex != null ? mIndex.length : 0)
+                + " to " + n + " for " + mSize + " items");
+        final int[] table = new int[n];
+        final int mask = n - 1;
+        final int[] hashes = mHashes;
+        for (int i=0; i<mSize; i++) {
+            int slot = slotOf(hashes[i], mask);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+        mIndex = table;
+    }
+
+    private void indexInsert(int index) {
+        final int[] table = mIndex;
+        final int mask = table.length - 1;
+        int slot = slotOf(mHashes[index], mask);
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = index + 1;
+    }
+
+    private int indexFindSlot(int index) {
+        final int[] table = mIndex;
+        final int mask = table.length - 1;
+        int slot = slotOf(mHashes[index], mask);
+        while (table[slot] != index + 1) {
+            if (table[slot] == 0) {
+                throw new ConcurrentModificationException();
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Remove the slot referring to <var>index</var>, shifting back any later
+     * entries of the probe run so that no tombstones are needed.
+     */
+    private void indexRemove(int index) {
+        final int[] table = mIndex;
+        final int mask = table.length - 1;
+        int hole = indexFindSlot(index);
+        for (int slot = (hole + 1) & mask; ; slot = (slot + 1) & mask) {
+            final int value = table[slot];
+            if (value == 0) {
+                break;
+            }
+            // The entry may fill the hole only if its home slot is not
+            // cyclically within (hole, slot].
+            final int home = slotOf(mHashes[value - 1], mask);
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                table[hole] = value;
+                hole = slot;
+            }
+        }
+        table[hole] = 0;
+    }
+
+    private void allocArrays(final int size) {
+        if (size == (BASE_SIZE*2)) {
+            synchronized (HashedArrayMap.class) {
+                if (mTwiceBaseCache != null) {
+                    final Object[] array = mTwiceBaseCache;
+                    mArray = array;
+                    mTwiceBaseCache = (Object[])array[0];
+                    mHashes = (int[])array[1];
+                    array[0] = array[1] = null;
+                    mTwiceBaseCacheSize--;
+                    if (DEBUG) Log.d(TAG, "Retrieving 2x cache " + mHashes
+                            + " now have " + mTwiceBaseCacheSize + " entries");
+                    return;
+                }
+            }
+        } else if (size == BASE_SIZE) {
+            synchronized (HashedArrayMap.class) {
+                if (mBaseCache != null) {
+                    final Object[] array = mBaseCache;
+                    mArray = array;
+                    mBaseCache = (Object[])array[0];
+                    mHashes = (int[])array[1];
+                    array[0] = array[1] = null;
+                    mBaseCacheSize--;
+                    if (DEBUG) Log.d(TAG, "Retrieving 1x cache " + mHashes
+                            + " now have " + mBaseCacheSize + " entries");
+                    return;
+                }
+            }
+        }
+
+        mHashes = new int[size];
+        mArray = new Object[size<<1];
+    }
+
+    private static void freeArrays(final int[] hashes, final Object[] array, final int size) {
+        if (hashes.length == (BASE_SIZE*2)) {
+            synchronized (HashedArrayMap.class) {
+                if (mTwiceBaseCacheSize < CACHE_SIZE) {
+                    array[0] = mTwiceBaseCache;
+                    array[1] = hashes;
+                    for (int i=(size<<1)-1; i>=2; i--) {
+                        array[i] = null;
+                    }
+                    mTwiceBaseCache = array;
+                    mTwiceBaseCacheSize++;
+                    if (DEBUG) Log.d(TAG, "Storing 2x cache " + array
+                            + " now have " + mTwiceBaseCacheSize + " entries");
+                }
+            }
+        } else if (hashes.length == BASE_SIZE) {
+            synchronized (HashedArrayMap.class) {
+                if (mBaseCacheSize < CACHE_SIZE) {
+                    array[0] = mBaseCache;
+                    array[1] = hashes;
+                    for (int i=(size<<1)-1; i>=2; i--) {
+                        array[i] = null;
+                    }
+                    mBaseCache = array;
+                    mBaseCacheSize++;
+                    if (DEBUG) Log.d(TAG, "Storing 1x cache " + array
+                            + " now have " + mBaseCacheSize + " entries");
+                }
+            }
+        }
+    }
+
+    /**
+     * Create a new empty HashedArrayMap.  The default capacity is 0, and will grow
+     * once items are added to it.
+     */
+    public HashedArrayMap() {
+        this(0, false);
+    }
+
+    /**
+     * Create a new HashedArrayMap with a given initial capacity.
+     */
+    public HashedArrayMap(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * Create a new HashedArrayMap with a given initial capacity, optionally hashing
+     * keys by {@link System#identityHashCode} instead of {@link Object#hashCode}.
+     */
+    public HashedArrayMap(int capacity, boolean identityHashCode) {
+        mIdentityHashCode = identityHashCode;
+        if (capacity <= 0) {
+            mHashes = EmptyArray.INT;
+            mArray = EmptyArray.OBJECT;
+        } else {
+            allocArrays(capacity);
+        }
+        mSize = 0;
+    }
+
+    /**
+     * Create a new HashedArrayMap with the mappings from the given map.
+     */
+    public HashedArrayMap(Map<? extends K, ? extends V> map) {
+        this();
+        if (map != null) {
+            putAll(map);
+        }
+    }
+
+    /**
+     * Make the map empty.  All storage is released.
+     */
+    @Override
+    public void clear() {
+        if (mSize > 0) {
+            final int[] ohashes = mHashes;
+            final Object[] oarray = mArray;
+            final int osize = mSize;
+            mHashes = EmptyArray.INT;
+            mArray = EmptyArray.OBJECT;
+            mIndex = null;
+            mSize = 0;
+            freeArrays(ohashes, oarray, osize);
+        }
+        if (CONCURRENT_MODIFICATION_EXCEPTIONS && mSize > 0) {
+            throw new ConcurrentModificationException();
+        }
+    }
+
+    /**
+     * Ensure the map can hold at least <var>minimumCapacity</var> items.
+     */
+    public void ensureCapacity(int minimumCapacity) {
+        final int osize = mSize;
+        if (mHashes.length < minimumCapacity) {
+            final int[] ohashes = mHashes;
+            final Object[] oarray = mArray;
+            allocArrays(minimumCapacity);
+            if (osize > 0) {
+                System.arraycopy(ohashes, 0, mHashes, 0, osize);
+                System.arraycopy(oarray, 0, mArray, 0, osize<<1);
+            }
+            freeArrays(ohashes, oarray, osize);
+        }
+        if (CONCURRENT_MODIFICATION_EXCEPTIONS && mSize != osize) {
+            throw new ConcurrentModificationException();
+        }
+    }
+
+    /**
+     * Check whether a key exists in the map.
+     *
+     * @param key The key to search for.
+     * @return Returns true if the key exists, else false.
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOfKey(key) >= 0;
+    }
+
+    /**
+     * Returns the index of a key in the map.
+     *
+     * @param key The key to search for.
+     * @return Returns the index of the key if it exists, else a negative integer.
+     */
+    public int indexOfKey(Object key) {
+        return indexOf(key, hashOf(key));
+    }
+
+    int indexOfValue(Object value) {
+        final int N = mSize*2;
+        final Object[] array = mArray;
+        if (value == null) {
+            for (int i=1; i<N; i+=2) {
+                if (array[i] == null) {
+                    return i>>1;
+                }
+            }
+        } else {
+            for (int i=1; i<N; i+=2) {
+                if (value.equals(array[i])) {
+                    return i>>1;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Check whether a value exists in the map.  This requires a linear search
+     * through the entire array.
+     *
+     * @param value The value to search for.
+     * @return Returns true if the value exists, else false.
+     */
+    @Override
+    public boolean containsValue(Object value) {
+        return indexOfValue(value) >= 0;
+    }
+
+    /**
+     * Retrieve a value from the map.
+     * @param key The key of the value to retrieve.
+     * @return Returns the value associated with the given key,
+     * or null if there is no such key.
+     */
+    @Override
+    public V get(Object key) {
+        final int index = indexOfKey(key);
+        return index >= 0 ? (V)mArray[(index<<1)+1] : null;
+    }
+
+    /**
+     * Return the key at the given index in the array.
+     * @param index The desired index, must be between 0 and {@link #size()}-1.
+     * @return Returns the key stored at the given index.
+     */
+    public K keyAt(int index) {
+        return (K)mArray[index << 1];
+    }
+
+    /**
+     * Return the value at the given index in the array.
+     * @param index The desired index, must be between 0 and {@link #size()}-1.
+     * @return Returns the value stored at the given index.
+     */
+    public V valueAt(int index) {
+        return (V)mArray[(index << 1) + 1];
+    }
+
+    /**
+     * Set the value at a given index in the array.
+     * @param index The desired index, must be between 0 and {@link #size()}-1.
+     * @param value The new value to store at this index.
+     * @return Returns the previous value at the given index.
+     */
+    public V setValueAt(int index, V value) {
+        index = (index << 1) + 1;
+        V old = (V)mArray[index];
+        mArray[index] = value;
+        return old;
+    }
+
+    /**
+     * Return true if the map contains no items.
+     */
+    @Override
+    public boolean isEmpty() {
+        return mSize <= 0;
+    }
+
+    /**
+     * Add a new value to the map.
+     * @param key The key under which to store the value.  If
+     * this key already exists in the map, its value will be replaced.
+     * @param value The value to store for the given key.
+     * @return Returns the old value that was stored for the given key, or null if there
+     * was no such key.
+     */
+    @Override
+    public V put(K key, V value) {
+        final int osize = mSize;
+        final int hash = hashOf(key);
+        int index = indexOf(key, hash);
+        if (index >= 0) {
+            index = (index<<1) + 1;
+            final V old = (V)mArray[index];
+            mArray[index] = value;
+            return old;
+        }
+
+        if (osize >= mHashes.length) {
+            final int n = osize >= (BASE_SIZE*2) ? (osize+(osize>>1))
+                    : (osize >= BASE_SIZE ? (BASE_SIZE*2) : BASE_SIZE);
+
+            if (DEBUG) Log.d(TAG, "put: grow from " + mHashes.length + " to " + n);
+
+            final int[] ohashes = mHashes;
+            final Object[] oarray = mArray;
+            allocArrays(n);
+
+            if (CONCURRENT_MODIFICATION_EXCEPTIONS && osize != mSize) {
+                throw new ConcurrentModificationException();
+            }
+
+            if (osize > 0) {
+                System.arraycopy(ohashes, 0, mHashes, 0, osize);
+                System.arraycopy(oarray, 0, mArray, 0, osize<<1);
+            }
+
+            freeArrays(ohashes, oarray, osize);
+        }
+
+        if (CONCURRENT_MODIFICATION_EXCEPTIONS) {
+            if (osize != mSize || osize >= mHashes.length) {
+                throw new ConcurrentModificationException();
+            }
+        }
+        mHashes[osize] = hash;
+        mArray[osize<<1] = key;
+        mArray[(osize<<1)+1] = value;
+        mSize = osize + 1;
+
+        if (mIndex != null) {
+            if (mSize * 2 > mIndex.length) {
+                rebuildIndex(mSize);
+            } else {
+                indexInsert(osize);
+            }
+        } else if (mSize > INDEX_THRESHOLD) {
+            rebuildIndex(mSize);
+        }
+        return null;
+    }
+
+    /**
+     * Perform a {@link #put(Object, Object)} of all key/value pairs in <var>map</var>
+     * @param map The map whose contents are to be retrieved.
+     */
+    public void putAll(HashedArrayMap<? extends K, ? extends V> map) {
+        final int N = map.mSize;
+        ensureCapacity(mSize + N);
+        for (int i=0; i<N; i++) {
+            put(map.keyAt(i), map.valueAt(i));
+        }
+    }
+
+    /**
+     * Remove an existing key from the map.
+     * @param key The key of the mapping to remove.
+     * @return Returns the value that was stored under the key, or null if there
+     * was no such key.
+     */
+    @Override
+    public V remove(Object key) {
+        final int index = indexOfKey(key);
+        if (index >= 0) {
+            return removeAt(index);
+        }
+
+        return null;
+    }
+
+    /**
+     * Remove the key/value mapping at the given index.  The last entry of the map
+     * takes the place of the removed one.
+     * @param index The desired index, must be between 0 and {@link #size()}-1.
+     * @return Returns the value that was stored at this index.
+     */
+    public V removeAt(int index) {
+        final Object old = mArray[(index << 1) + 1];
+        final int osize = mSize;
+        final int nsize = osize - 1;
+        if (osize <= 1) {
+            // Now empty.
+            if (DEBUG) Log.d(TAG, "remove: shrink from " + mHashes.length + " to 0");
+            final int[] ohashes = mHashes;
+            final Object[] oarray = mArray;
+            mHashes = EmptyArray.INT;
+            mArray = EmptyArray.OBJECT;
+            mIndex = null;
+            freeArrays(ohashes, oarray, osize);
+        } else {
+            if (mIndex != null) {
+                indexRemove(index);
+                if (index < nsize) {
+                    mIndex[indexFindSlot(nsize)] = index + 1;
+                }
+            }
+            if (index < nsize) {
+                mHashes[index] = mHashes[nsize];
+                mArray[index << 1] = mArray[nsize << 1];
+                mArray[(index << 1) + 1] = mArray[(nsize << 1) + 1];
+            }
+            mArray[nsize << 1] = null;
+            mArray[(nsize << 1) + 1] = null;
+
+            if (mHashes.length > (BASE_SIZE*2) && nsize < mHashes.length/3) {
+                // Shrunk enough to reduce size of arrays.  As with ArrayMap we don't
+                // shrink smaller than (BASE_SIZE*2) to avoid flapping.
+                final int n = nsize > (BASE_SIZE*2) ? (nsize + (nsize>>1)) : (BASE_SIZE*2);
+
+                if (DEBUG) Log.d(TAG, "remove: shrink from " + mHashes.length + " to " + n);
+
+                final int[] ohashes = mHashes;
+                final Object[] oarray = mArray;
+                allocArrays(n);
+
+                if (CONCURRENT_MODIFICATION_EXCEPTIONS && osize != mSize) {
+                    throw new ConcurrentModificationException();
+                }
+
+                System.arraycopy(ohashes, 0, mHashes, 0, nsize);
+                System.arraycopy(oarray, 0, mArray, 0, nsize << 1);
+                freeArrays(ohashes, oarray, osize);
+            }
+        }
+        if (CONCURRENT_MODIFICATION_EXCEPTIONS && osize != mSize) {
+            throw new ConcurrentModificationException();
+        }
+        mSize = nsize;
+
+        if (mIndex != null) {
+            if (nsize < INDEX_THRESHOLD/2) {
+                if (DEBUG) Log.d(TAG, "remove: dropping index at " + nsize + " items");
+                mIndex = null;
+            } else if (mIndex.length > MIN_INDEX_SIZE && nsize * 8 < mIndex.length) {
+                rebuildIndex(nsize);
+            }
+        }
+        return (V)old;
+    }
+
+    /**
+     * Return the number of items in this map.
+     */
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>This implementation returns false if the object is not a map, or
+     * if the maps have different sizes. Otherwise, for each key in this map,
+     * values of both maps are compared. If the values for any key are not
+     * equal, the method returns false, otherwise it returns true.
+     */
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (object instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) object;
+            if (size() != map.size()) {
+                return false;
+            }
+
+            try {
+                for (int i=0; i<mSize; i++) {
+                    K key = keyAt(i);
+                    V mine = valueAt(i);
+                    Object theirs = map.get(key);
+                    if (mine == null) {
+                        if (theirs != null || !map.containsKey(key)) {
+                            return false;
+                        }
+                    } else if (!mine.equals(theirs)) {
+                        return false;
+                    }
+                }
+            } catch (NullPointerException ignored) {
+                return false;
+            } catch (ClassCastException ignored) {
+                return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        final int[] hashes = mHashes;
+        final Object[] array = mArray;
+        int result = 0;
+        for (int i = 0, v = 1, s = mSize; i < s; i++, v+=2) {
+            Object value = array[v];
+            result += hashes[i] ^ (value == null ? 0 : value.hashCode());
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>This implementation composes a string by iterating over its mappings. If
+     * this map contains itself as a key or a value, the string "(this Map)"
+     * will appear in its place.
+     */
+    @Override
+    public String toString() {
+        if (isEmpty()) {
+            return "{}";
+        }
+
+        StringBuilder buffer = new StringBuilder(mSize * 28);
+        buffer.append('{');
+        for (int i=0; i<mSize; i++) {
+            if (i > 0) {
+                buffer.append(", ");
+            }
+            Object key = keyAt(i);
+            if (key != this) {
+                buffer.append(key);
+            } else {
+                buffer.append("(this Map)");
+            }
+            buffer.append('=');
+            Object value = valueAt(i);
+            if (value != this) {
+                buffer.append(value);
+            } else {
+                buffer.append("(this Map)");
+            }
+        }
+        buffer.append('}');
+        return buffer.toString();
+    }
+
+    // ------------------------------------------------------------------------
+    // Interop with traditional Java containers.  Not as efficient as using
+    // specialized collection APIs.
+    // ------------------------------------------------------------------------
+
+    private MapCollections<K, V> getCollection() {
+        if (mCollections == null) {
+            mCollections = new MapCollections<K, V>() {
+                @Override
+                protected int colGetSize() {
+                    return mSize;
+                }
+
+                @Override
+                protected Object colGetEntry(int index, int offset) {
+                    return mArray[(index<<1) + offset];
+                }
+
+                @Override
+                protected int colIndexOfKey(Object key) {
+                    return indexOfKey(key);
+                }
+
+                @Override
+                protected int colIndexOfValue(Object value) {
+                    return indexOfValue(value);
+                }
+
+                @Override
+                protected Map<K, V> colGetMap() {
+                    return HashedArrayMap.this;
+                }
+
+                @Override
+                protected void colPut(K key, V value) {
+                    put(key, value);
+                }
+
+                @Override
+                protected V colSetValue(int index, V value) {
+                    return setValueAt(index, value);
+                }
+
+                @Override
+                protected void colRemoveAt(int index) {
+                    removeAt(index);
+                }
+
+                @Override
+                protected void colClear() {
+                    clear();
+                }
+            };
+        }
+        return mCollections;
+    }
+
+    /**
+     * Determine if the map contains all of the keys in the given collection.
+     * @param collection The collection whose contents are to be checked against.
+     * @return Returns true if this map contains a key for every entry
+     * in <var>collection</var>, else returns false.
+     */
+    public boolean containsAll(Collection<?> collection) {
+        return MapCollections.containsAllHelper(this, collection);
+    }
+
+    /**
+     * Perform a {@link #put(Object, Object)} of all key/value pairs in <var>map</var>
+     * @param map The map whose contents are to be retrieved.
+     */
+    @Override
+    public void putAll(Map<? extends K, ? extends V> map) {
+        ensureCapacity(mSize + map.size());
+        for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Remove all keys in the map that exist in the given collection.
+     * @param collection The collection whose contents are to be used to remove keys.
+     * @return Returns true if any keys were removed from the map, else false.
+     */
+    public boolean removeAll(Collection<?> collection) {
+        return MapCollections.removeAllHelper(this, collection);
+    }
+
+    /**
+     * Remove all keys in the map that do <b>not</b> exist in the given collection.
+     * @param collection The collection whose contents are to be used to determine which
+     * keys to keep.
+     * @return Returns true if any keys were removed from the map, else false.
+     */
+    public boolean retainAll(Collection<?> collection) {
+        return MapCollections.retainAllHelper(this, collection);
+    }
+
+    /**
+     * Return a {@link java.util.Set} for iterating over and interacting with all mappings
+     * in the map.
+     *
+     * <p><b>Note:</b> as with {@link ArrayMap#entrySet}, the
+     * {@link java.util.Map.Entry Map.Entry} object returned by its iterator is a single
+     * object that exists for the entire iterator, so you can <b>not</b> hold on to it
+     * after calling {@link java.util.Iterator#next() Iterator.next}.</p>
+     */
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        return getCollection().getEntrySet();
+    }
+
+    /**
+     * Return a {@link java.util.Set} for iterating over and interacting with all keys
+     * in the map.
+     */
+    @Override
+    public Set<K> keySet() {
+        return getCollection().getKeySet();
+    }
+
+    /**
+     * Return a {@link java.util.Collection} for iterating over and interacting with all values
+     * in the map.
+     */
+    @Override
+    public Collection<V> values() {
+        return getCollection().getValues();
+    }
+}
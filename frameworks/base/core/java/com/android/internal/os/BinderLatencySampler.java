@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.Binder;
+import android.util.proto.ProtoOutputStream;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Samples the latency of incoming binder transactions.
+ *
+ * <p>Unlike the detailed tracking of {@link BinderCallsStats}, which measures CPU time of
+ * every call, this times one in every {@link #setSamplingPeriod sampling period} calls on
+ * the wall clock and folds it into a latency histogram kept per (binder class, transaction
+ * code, calling uid).  Recording is lock-free: the per-key stats are atomics found through
+ * a {@link ConcurrentHashMap}, and calls that are not sampled cost one volatile read and a
+ * random number.
+ *
+ * <p>Histogram bucket 0 counts calls under 1us; bucket i counts calls taking
+ * [2^(i-1), 2^i) us, and the last bucket everything from about one second up.
+ */
+public final class BinderLatencySampler {
+    /** Returned by {@link #sampleStart} for calls that are not sampled. */
+    public static final long NOT_SAMPLED = -1;
+
+    public static final int BUCKET_COUNT = 22;
+
+    /** Keys kept before new callers of a method are folded into {@link #OVERFLOW_UID}. */
+    private static final int MAX_KEYS = 5000;
+
+    public static final int OVERFLOW_UID = -1;
+
+    // Field ids of the proto written by dumpProto().
+    //   BinderLatencyProto { int32 sampling_period = 1; repeated Entry entries = 2;
+    //                        int64 sampled_calls = 3; }
+    //   Entry { string binder_class = 1; int32 transaction_code = 2; int32 calling_uid = 3;
+    //           int64 count = 4; int64 total_micros = 5; int64 max_micros = 6;
+    //           repeated int64 histogram = 7 [packed = true]; }
+    private static final long SAMPLING_PERIOD = ProtoOutputStream.makeFieldId(1,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_INT32);
+    private static final long ENTRIES = ProtoOutputStream.makeFieldId(2,
+            ProtoOutputStream.FIELD_COUNT_REPEATED | ProtoOutputStream.FIELD_TYPE_MESSAGE);
+    private static final long SAMPLED_CALLS = ProtoOutputStream.makeFieldId(3,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+    private static final long ENTRY_BINDER_CLASS = ProtoOutputStream.makeFieldId(1,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_STRING);
+    private static final long ENTRY_TRANSACTION_CODE = ProtoOutputStream.makeFieldId(2,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_INT32);
+    private static final long ENTRY_CALLING_UID = ProtoOutputStream.makeFieldId(3,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_INT32);
+    private static final long ENTRY_COUNT = ProtoOutputStream.makeFieldId(4,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+    private static final long ENTRY_TOTAL_MICROS = ProtoOutputStream.makeFieldId(5,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+    private static final long ENTRY_MAX_MICROS = ProtoOutputStream.makeFieldId(6,
+            ProtoOutputStream.FIELD_COUNT_SINGLE | ProtoOutputStream.FIELD_TYPE_INT64);
+    private static final long ENTRY_HISTOGRAM = ProtoOutputStream.makeFieldId(7,
+            ProtoOutputStream.FIELD_COUNT_PACKED | ProtoOutputStream.FIELD_TYPE_INT64);
+
+    private static final BinderLatencySampler sInstance = new BinderLatencySampler();
+
+    private static final class CallKey {
+        final Class<? extends Binder> binderClass;
+        final int code;
+        final int uid;
+
+        CallKey(Class<? extends Binder> binderClass, int code, int uid) {
+            this.binderClass = binderClass;
+            this.code = code;
+            this.uid = uid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CallKey)) {
+                return false;
+            }
+            final CallKey other = (CallKey) o;
+            return binderClass == other.binderClass && code == other.code && uid == other.uid;
+        }
+
+        @Override
+        public int hashCode() {
+            return (binderClass.hashCode() * 31 + code) * 31 + uid;
+        }
+    }
+
+    private static final class CallStats {
+        final CallKey key;
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKET_COUNT);
+        final LongAdder count = new LongAdder();
+        final LongAdder totalMicros = new LongAdder();
+        final AtomicLong maxMicros = new AtomicLong();
+
+        CallStats(CallKey key) {
+            this.key = key;
+        }
+
+        void record(long micros) {
+            histogram.incrementAndGet(bucketFor(micros));
+            count.increment();
+            totalMicros.add(micros);
+            long max = maxMicros.get();
+            while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+                max = maxMicros.get();
+            }
+        }
+
+        /** Upper bound of the bucket holding the given fraction of calls, in micros. */
+        long percentileMicros(long total, double fraction) {
+            final long target = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += histogram.get(i);
+                if (seen >= target) {
+                    return i == BUCKET_COUNT - 1 ? maxMicros.get() : 1L << i;
+                }
+            }
+            return maxMicros.get();
+        }
+    }
+
+    /** 0 when disabled. */
+    private volatile int mSamplingPeriod;
+
+    private final ConcurrentHashMap<CallKey, CallStats> mStats = new ConcurrentHashMap<>();
+    private final LongAdder mSampledCalls = new LongAdder();
+
+    private BinderLatencySampler() {
+    }
+
+    public static BinderLatencySampler getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Samples one in every <var>period</var> incoming calls, or none if <var>period</var>
+     * is 0.
+     */
+    public void setSamplingPeriod(int period) {
+        mSamplingPeriod = Math.max(0, period);
+    }
+
+    public int getSamplingPeriod() {
+        return mSamplingPeriod;
+    }
+
+    /**
+     * Called when a transaction starts.
+     *
+     * @return The start time to pass to {@link #sampleEnd}, or {@link #NOT_SAMPLED}.
+     */
+    public long sampleStart() {
+        final int period = mSamplingPeriod;
+        if (period <= 0) {
+            return NOT_SAMPLED;
+        }
+        if (period > 1 && ThreadLocalRandom.current().nextInt(period) != 0) {
+            return NOT_SAMPLED;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Called when a sampled transaction ends, still holding the caller's identity.
+     */
+    public void sampleEnd(Binder binder, int code, long startNanos) {
+        final long micros = (System.nanoTime() - startNanos) / 1000;
+        CallKey key = new CallKey(binder.getClass(), code, Binder.getCallingUid());
+        CallStats stats = mStats.get(key);
+        if (stats == null) {
+            if (mStats.size() >= MAX_KEYS) {
+                key = new CallKey(key.binderClass, code, OVERFLOW_UID);
+            }
+            stats = mStats.computeIfAbsent(key, CallStats::new);
+        }
+        stats.record(micros);
+        mSampledCalls.increment();
+    }
+
+    public void reset() {
+        mStats.clear();
+        mSampledCalls.reset();
+    }
+
+    static int bucketFor(long micros) {
+        if (micros <= 0) {
+            return 0;
+        }
+        return Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKET_COUNT - 1);
+    }
+
+    private ArrayList<CallStats> getSortedStats() {
+        final ArrayList<CallStats> list = new ArrayList<>(mStats.values());
+        Collections.sort(list, (a, b) -> Long.compare(b.totalMicros.sum(), a.totalMicros.sum()));
+        return list;
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.print("Latency sampling: ");
+        final int period = mSamplingPeriod;
+        if (period > 0) {
+            pw.print("1 in "); pw.print(period);
+        } else {
+            pw.print("disabled");
+        }
+        pw.print(", sampled calls: "); pw.println(mSampledCalls.sum());
+        if (mStats.isEmpty()) {
+            return;
+        }
+        pw.println("Sampled latencies (by total time, times in us, percentiles are bucket"
+                + " upper bounds):");
+        pw.println("  class#code uid: count total avg max p50 p90 p99");
+        final ArrayList<CallStats> list = getSortedStats();
+        for (int i = 0, size = list.size(); i < size; i++) {
+            final CallStats stats = list.get(i);
+            final long count = stats.count.sum();
+            final long total = stats.totalMicros.sum();
+            pw.print("  "); pw.print(stats.key.binderClass.getName());
+            pw.print('#'); pw.print(stats.key.code);
+            pw.print(' ');
+            if (stats.key.uid == OVERFLOW_UID) {
+                pw.print("other");
+            } else {
+                pw.print(stats.key.uid);
+            }
+            pw.print(": "); pw.print(count);
+            pw.print(' '); pw.print(total);
+            pw.print(' '); pw.print(count > 0 ? total / count : 0);
+            pw.print(' '); pw.print(stats.maxMicros.get());
+            pw.print(' '); pw.print(stats.percentileMicros(count, 0.5));
+            pw.print(' '); pw.print(stats.percentileMicros(count, 0.9));
+            pw.print(' '); pw.println(stats.percentileMicros(count, 0.99));
+        }
+    }
+
+    public void dumpProto(ProtoOutputStream proto) {
+        proto.write(SAMPLING_PERIOD, mSamplingPeriod);
+        proto.write(SAMPLED_CALLS, mSampledCalls.sum());
+        final long[] histogram = new long[BUCKET_COUNT];
+        for (Map.Entry<CallKey, CallStats> entry : mStats.entrySet()) {
+            final CallKey key = entry.getKey();
+            final CallStats stats = entry.getValue();
+            final long token = proto.start(ENTRIES);
+            proto.write(ENTRY_BINDER_CLASS, key.binderClass.getName());
+            proto.write(ENTRY_TRANSACTION_CODE, key.code);
+            proto.write(ENTRY_CALLING_UID, key.uid);
+            proto.write(ENTRY_COUNT, stats.count.sum());
+            proto.write(ENTRY_TOTAL_MICROS, stats.totalMicros.sum());
+            proto.write(ENTRY_MAX_MICROS, stats.maxMicros.get());
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                histogram[i] = stats.histogram.get(i);
+            }
+            proto.writePackedInt64(ENTRY_HISTOGRAM, histogram);
+            proto.end(token);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import android.util.Log;
+
+import libcore.io.IoUtils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Framing and recovery for append-only logs of checksummed frames, following a header
+ * owned by the user of the log:
+ *
+ * <pre>
+ *   frame := length:int head payload crc32(head payload):long
+ * </pre>
+ *
+ * where {@code head} has the same fixed length in every frame of a log (possibly 0) and
+ * {@code length} is that of the payload.  A frame that is truncated, claims to be larger
+ * than the log allows, fails its checksum or is rejected by its reader ends the log;
+ * {@link #append} drops anything after it the next time the log is written.
+ */
+public final class ChecksummedLog {
+    private final String mTag;
+    private final int mHeadLength;
+    private final int mMaxLength;
+
+    /**
+     * Handles the frames of a log as they are read.
+     */
+    public interface FrameReader {
+        /**
+         * @param body The head of the frame followed by its payload.
+         * @return false if the frame isn't understood, which ends the log.
+         */
+        boolean onFrame(byte[] body) throws IOException;
+    }
+
+    /**
+     * @param tag Tag to log problems with the log under.
+     * @param headLength The fixed length of the head of every frame.
+     * @param maxLength Frames claiming a longer payload than this are taken as corrupt.
+     */
+    public ChecksummedLog(String tag, int headLength, int maxLength) {
+        mTag = tag;
+        mHeadLength = headLength;
+        mMaxLength = maxLength;
+    }
+
+    /**
+     * Writes a frame holding <var>body</var>, its head followed by its payload.
+     */
+    public void writeFrame(DataOutputStream out, byte[] body) throws IOException {
+        if (body.length < mHeadLength) {
+            throw new IllegalArgumentException("Frame shorter than its head");
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        out.writeInt(body.length - mHeadLength);
+        out.write(body);
+        out.writeLong(crc.getValue());
+    }
+
+    /**
+     * Reads the frames following the header of a log, up to the first one that ends it.
+     *
+     * @param in The log, positioned right after its header.
+     * @param headerLength The length of the header.
+     * @param source The log, for messages.
+     * @return The length of the valid prefix of the log, header included.
+     */
+    public long readFrames(DataInputStream in, long headerLength, Object source,
+            FrameReader reader) {
+        long validLength = headerLength;
+        try {
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 0 || length > mMaxLength) {
+                    Log.w(mTag, "Bad frame length " + length + " in " + source);
+                    break;
+                }
+                final byte[] body = new byte[mHeadLength + length];
+                in.readFully(body);
+                final long expected = in.readLong();
+                crc.reset();
+                crc.update(body, 0, body.length);
+                if (crc.getValue() != expected) {
+                    Log.w(mTag, "Checksum mismatch in " + source + " at " + validLength);
+                    break;
+                }
+                if (!reader.onFrame(body)) {
+                    Log.w(mTag, "Unknown frame in " + source + " at " + validLength);
+                    break;
+                }
+                validLength += 4 + body.length + 8;
+            }
+        } catch (EOFException e) {
+            // Torn write at the end of the log; keep what we have.
+        } catch (IOException e) {
+            Log.w(mTag, "Cannot read " + source, e);
+        }
+        return validLength;
+    }
+
+    /**
+     * Appends <var>data</var> to the log and syncs it, first dropping anything past
+     * <var>validLength</var>.
+     *
+     * @return The new length of the log.
+     */
+    public static long append(File file, long validLength, byte[] data) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(validLength);
+            raf.seek(validLength);
+            raf.write(data);
+            raf.getFD().sync();
+        } finally {
+            IoUtils.closeQuietly(raf);
+        }
+        return validLength + data.length;
+    }
+}
@@ -495,6 +495,7 @@ class AlarmManagerService extends SystemService {
         long start;     // These endpoints are always in ELAPSED
         long end;
         int flags;      // Flags for alarms, such as FLAG_STANDALONE.
+        BatchIndex.Node indexNode;  // Our entry in mBatchIndex, if it is enabled.
 
         final ArrayList<Alarm> alarms = new ArrayList<Alarm>();
 
@@ -662,6 +663,192 @@ class AlarmManagerService extends SystemService {
         }
     }
 
+    /**
+     * Index over the batches in {@link #mAlarmBatches} answering "which is the earliest
+     * batch whose window overlaps [whenElapsed, maxWhen]" in O(log n) instead of the
+     * linear scan in {@link #attemptCoalesceLocked}.
+     *
+     * <p>This is a treap ordered by batch start time, where every node also carries the
+     * largest end time of the non-standalone batches in its subtree.  The index keeps a
+     * copy of each batch's bounds, so it must be told (via {@link #update}) whenever a
+     * batch gains or loses alarms.
+     */
+    static final class BatchIndex {
+        static final class Node {
+            final Batch batch;
+            final long seq;
+            final int priority;
+            long start;
+            long end;
+            boolean standalone;
+            long maxEnd;
+            Node left;
+            Node right;
+
+            Node(Batch batch, long seq, int priority) {
+                this.batch = batch;
+                this.seq = seq;
+                this.priority = priority;
+            }
+        }
+
+        private final Random mRandom = new Random();
+        private Node mRoot;
+        private long mNextSeq;
+        private int mSize;
+
+        // Results of split(), to avoid allocating a pair per call.
+        private Node mSplitLeft;
+        private Node mSplitRight;
+
+        int size() {
+            return mSize;
+        }
+
+        void clear() {
+            mRoot = null;
+            mSize = 0;
+        }
+
+        void add(Batch batch) {
+            final Node node = new Node(batch, mNextSeq++, mRandom.nextInt());
+            batch.indexNode = node;
+            copyBounds(node);
+            insert(node);
+            mSize++;
+        }
+
+        void remove(Batch batch) {
+            final Node node = batch.indexNode;
+            if (node == null) {
+                return;
+            }
+            mRoot = delete(mRoot, node);
+            batch.indexNode = null;
+            mSize--;
+        }
+
+        /**
+         * Re-reads the bounds of a batch that is already in the index; cheap if they
+         * have not changed.
+         */
+        void update(Batch batch) {
+            final Node node = batch.indexNode;
+            if (node == null || (node.start == batch.start && node.end == batch.end
+                    && node.standalone == ((batch.flags & AlarmManager.FLAG_STANDALONE) != 0))) {
+                return;
+            }
+            mRoot = delete(mRoot, node);
+            node.left = node.right = null;
+            copyBounds(node);
+            insert(node);
+        }
+
+        /**
+         * @return The earliest non-standalone batch that can hold an alarm with the given
+         *         window, or null if there is none.
+         */
+        Batch findCoalescible(long whenElapsed, long maxWhen) {
+            Node node = mRoot;
+            while (node != null) {
+                if (node.left != null && node.left.maxEnd >= whenElapsed) {
+                    node = node.left;
+                } else if (!node.standalone && node.end >= whenElapsed) {
+                    // Everything after this in start order begins no earlier, so if this
+                    // one starts too late, so does every other candidate.
+                    return (node.start <= maxWhen) ? node.batch : null;
+                } else {
+                    node = node.right;
+                }
+            }
+            return null;
+        }
+
+        private static void copyBounds(Node node) {
+            node.start = node.batch.start;
+            node.end = node.batch.end;
+            node.standalone = (node.batch.flags & AlarmManager.FLAG_STANDALONE) != 0;
+            node.maxEnd = node.standalone ? Long.MIN_VALUE : node.end;
+        }
+
+        private static int compare(Node a, Node b) {
+            if (a.start != b.start) {
+                return (a.start < b.start) ? -1 : 1;
+            }
+            return Long.compare(a.seq, b.seq);
+        }
+
+        private static void recompute(Node node) {
+            long maxEnd = node.standalone ? Long.MIN_VALUE : node.end;
+            if (node.left != null && node.left.maxEnd > maxEnd) {
+                maxEnd = node.left.maxEnd;
+            }
+            if (node.right != null && node.right.maxEnd > maxEnd) {
+                maxEnd = node.right.maxEnd;
+            }
+            node.maxEnd = maxEnd;
+        }
+
+        private void insert(Node node) {
+            split(mRoot, node);
+            final Node right = mSplitRight;
+            mRoot = merge(merge(mSplitLeft, node), right);
+        }
+
+        /** Splits <var>t</var> into nodes ordered before <var>key</var> and the rest. */
+        private void split(Node t, Node key) {
+            if (t == null) {
+                mSplitLeft = mSplitRight = null;
+                return;
+            }
+            if (compare(t, key) < 0) {
+                split(t.right, key);
+                t.right = mSplitLeft;
+                recompute(t);
+                mSplitLeft = t;
+            } else {
+                split(t.left, key);
+                t.left = mSplitRight;
+                recompute(t);
+                mSplitRight = t;
+            }
+        }
+
+        private static Node merge(Node a, Node b) {
+            if (a == null) {
+                return b;
+            }
+            if (b == null) {
+                return a;
+            }
+            if (a.priority > b.priority) {
+                a.right = merge(a.right, b);
+                recompute(a);
+                return a;
+            } else {
+                b.left = merge(a, b.left);
+                recompute(b);
+                return b;
+            }
+        }
+
+        private static Node delete(Node t, Node node) {
+            if (t == null) {
+                return null;
+            }
+            if (t == node) {
+                return merge(t.left, t.right);
+            }
+            if (compare(node, t) < 0) {
+                t.left = delete(t.left, node);
+            } else {
+                t.right = delete(t.right, node);
+            }
+            recompute(t);
+            return t;
+        }
+    }
+
     final Comparator<Alarm> mAlarmDispatchComparator = new Comparator<Alarm>() {
         @Override
         public int compare(Alarm lhs, Alarm rhs) {
@@ -728,6 +915,13 @@ class AlarmManagerService extends SystemService {
     static final BatchTimeOrder sBatchOrder = new BatchTimeOrder();
     final ArrayList<Batch> mAlarmBatches = new ArrayList<>();
 
+    // When set, coalescing a new alarm into an existing batch goes through mBatchIndex
+    // rather than scanning mAlarmBatches, which keeps rebatching of many inexact alarms
+    // from going quadratic.
+    static final boolean USE_BATCH_INDEX =
+            SystemProperties.getBoolean("persist.sys.alarm.batch_index", false);
+    final BatchIndex mBatchIndex = USE_BATCH_INDEX ? new BatchIndex() : null;
+
     // set to non-null if in idle mode; while in this mode, any alarms we don't want
     // to run during this time are placed in mPendingWhileIdleAlarms
     Alarm mPendingIdleUntil = null;
@@ -775,7 +969,77 @@ class AlarmManagerService extends SystemService {
         return (index == 0);
     }
 
+    private void addBatchLocked(Batch batch) {
+        addBatchLocked(mAlarmBatches, batch);
+        if (mBatchIndex != null) {
+            mBatchIndex.add(batch);
+        }
+    }
+
+    private void removeBatchLocked(int index) {
+        final Batch batch = mAlarmBatches.remove(index);
+        if (mBatchIndex != null) {
+            mBatchIndex.remove(batch);
+        }
+    }
+
+    private void clearBatchesLocked() {
+        mAlarmBatches.clear();
+        if (mBatchIndex != null) {
+            mBatchIndex.clear();
+        }
+    }
+
+    /**
+     * Called after alarms were removed from a batch that stays in the list, since
+     * that can move its start and end.
+     */
+    private void onBatchShrunkLocked(Batch batch) {
+        if (mBatchIndex != null && batch.size() > 0) {
+            mBatchIndex.update(batch);
+        }
+    }
+
+    /**
+     * Finds the position of <var>batch</var> in mAlarmBatches, relying on the list
+     * being ordered by start time and falling back to a scan if it is not.
+     */
+    private int indexOfBatchLocked(Batch batch) {
+        final int N = mAlarmBatches.size();
+        final int found = Collections.binarySearch(mAlarmBatches, batch, sBatchOrder);
+        if (found >= 0) {
+            for (int i = found; i >= 0 && mAlarmBatches.get(i).start == batch.start; i--) {
+                if (mAlarmBatches.get(i) == batch) {
+                    return i;
+                }
+            }
+            for (int i = found + 1; i < N && mAlarmBatches.get(i).start == batch.start; i++) {
+                if (mAlarmBatches.get(i) == batch) {
+                    return i;
+                }
+            }
+        }
+        return mAlarmBatches.indexOf(batch);
+    }
+
     private void insertAndBatchAlarmLocked(Alarm alarm) {
+        if (mBatchIndex != null) {
+            final Batch batch = ((alarm.flags & AlarmManager.FLAG_STANDALONE) != 0) ? null
+                    : mBatchIndex.findCoalescible(alarm.whenElapsed, alarm.maxWhenElapsed);
+            if (batch == null) {
+                addBatchLocked(new Batch(alarm));
+            } else {
+                // Look the batch up before add() moves its start.
+                final int whichBatch = indexOfBatchLocked(batch);
+                if (batch.add(alarm)) {
+                    mAlarmBatches.remove(whichBatch);
+                    addBatchLocked(mAlarmBatches, batch);
+                }
+                mBatchIndex.update(batch);
+            }
+            return;
+        }
+
         final int whichBatch = ((alarm.flags & AlarmManager.FLAG_STANDALONE) != 0) ? -1
                 : attemptCoalesceLocked(alarm.whenElapsed, alarm.maxWhenElapsed);
 
@@ -852,7 +1116,7 @@ class AlarmManagerService extends SystemService {
                 || haveAlarmsTimeTickAlarm(mPendingWhileIdleAlarms);
 
         ArrayList<Batch> oldSet = (ArrayList<Batch>) mAlarmBatches.clone();
-        mAlarmBatches.clear();
+        clearBatchesLocked();
         Alarm oldPendingIdleUntil = mPendingIdleUntil;
         final long nowElapsed = SystemClock.elapsedRealtime();
         final int oldBatches = oldSet.size();
@@ -914,7 +1178,9 @@ class AlarmManagerService extends SystemService {
                 }
             }
             if (batch.size() == 0) {
-                mAlarmBatches.remove(batchIndex);
+                removeBatchLocked(batchIndex);
+            } else {
+                onBatchShrunkLocked(batch);
             }
         }
         for (int i = 0; i < rescheduledAlarms.size(); i++) {
@@ -2702,7 +2968,9 @@ class AlarmManagerService extends SystemService {
             Batch b = mAlarmBatches.get(i);
             didRemove |= b.remove(whichAlarms);
             if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+                removeBatchLocked(i);
+            } else {
+                onBatchShrunkLocked(b);
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -2754,7 +3022,9 @@ class AlarmManagerService extends SystemService {
             Batch b = mAlarmBatches.get(i);
             didRemove |= b.remove(whichAlarms);
             if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+                removeBatchLocked(i);
+            } else {
+                onBatchShrunkLocked(b);
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -2801,7 +3071,9 @@ class AlarmManagerService extends SystemService {
             Batch b = mAlarmBatches.get(i);
             didRemove |= b.remove(whichAlarms);
             if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+                removeBatchLocked(i);
+            } else {
+                onBatchShrunkLocked(b);
             }
         }
         final boolean newHasTick = haveBatchesTimeTickAlarm(mAlarmBatches);
@@ -2856,7 +3128,9 @@ class AlarmManagerService extends SystemService {
             Batch b = mAlarmBatches.get(i);
             didRemove |= b.remove(whichAlarms);
             if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+                removeBatchLocked(i);
+            } else {
+                onBatchShrunkLocked(b);
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -2893,7 +3167,9 @@ class AlarmManagerService extends SystemService {
             Batch b = mAlarmBatches.get(i);
             didRemove |= b.remove(whichAlarms);
             if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+                removeBatchLocked(i);
+            } else {
+                onBatchShrunkLocked(b);
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -3090,7 +3366,7 @@ class AlarmManagerService extends SystemService {
 
             // We will (re)schedule some alarms now; don't let that interfere
             // with delivery of this current batch
-            mAlarmBatches.remove(0);
+            removeBatchLocked(0);
 
             final int N = batch.size();
             for (int i = 0; i < N; i++) {
@@ -44,6 +44,7 @@ import android.os.ServiceManager;
 import android.os.ShellCallback;
 import android.os.ShellCommand;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageManagerInternal;
@@ -77,12 +78,17 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
@@ -94,6 +100,8 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
 
 import static android.app.AppOpsManager._NUM_UID_STATE;
 import static android.app.AppOpsManager.UID_STATE_BACKGROUND;
@@ -116,6 +124,48 @@ public class AppOpsService extends IAppOpsService.Stub {
     // Write at most every 30 minutes.
     static final long WRITE_DELAY = DEBUG ? 1000 : 30*60*1000;
 
+    static final long FAST_WRITE_DELAY = 10*1000;
+
+    /**
+     * Hand writes of appops.xml to the shared {@link GroupCommitWriter}, so they are
+     * committed together with other services' files instead of on their own.
+     */
+    private static final boolean USE_GROUP_COMMIT =
+            SystemProperties.getBoolean("persist.sys.group_commit_writes", false);
+
+    /**
+     * Answer repeated {@link #checkOperation} calls from {@link #mCheckCache} without
+     * taking the service lock.
+     */
+    private static final boolean USE_CHECK_CACHE =
+            SystemProperties.getBoolean("persist.sys.appops.check_cache", false);
+
+    private static final int CHECK_CACHE_SIZE = 1024;
+
+    /**
+     * Persist state to appops.bin in the format described at {@link #writeBinaryState}
+     * instead of appops.xml.  Whichever of the two files is newer is read at boot, so
+     * flipping this migrates in either direction.
+     */
+    private static final boolean USE_BINARY_STATE =
+            SystemProperties.getBoolean("persist.sys.appops.binary_state", false);
+
+    private static final int BINARY_MAGIC = 0x414f5053; // "AOPS"
+    private static final int BINARY_VERSION = 1;
+
+    // Flags of an op record in appops.bin.
+    private static final int OP_HAS_MODE = 1 << 0;
+    private static final int OP_HAS_DURATION = 1 << 1;
+    private static final int OP_HAS_PROXY_UID = 1 << 2;
+    private static final int OP_HAS_PROXY_PACKAGE = 1 << 3;
+
+    // Counts in appops.bin beyond these mean the file is corrupt.
+    private static final int MAX_BINARY_UIDS = 1 << 16;
+    private static final int MAX_BINARY_PACKAGES_PER_UID = 1 << 12;
+
+    // Returned by readStateFileLocked() when the file couldn't be parsed.
+    private static final int READ_FAILED = Integer.MIN_VALUE;
+
     // Constant meaning that any UID should be matched when dispatching callbacks
     private static final int UID_ANY = -2;
 
@@ -171,7 +221,32 @@ public class AppOpsService extends IAppOpsService.Stub {
     };
 
     Context mContext;
+    /** appops.xml; also the lock serializing reads and writes of either state file. */
     final AtomicFile mFile;
+    /** appops.bin, the binary form of the same state. */
+    final AtomicFile mBinaryFile;
+    /** The file state is written to, depending on {@link #USE_BINARY_STATE}. */
+    final AtomicFile mStateFile;
+
+    /**
+     * Guards the state file statistics below.  Never held while taking another lock, so that
+     * dump can read them without waiting on a write in progress.
+     */
+    private final Object mStateStatsLock = new Object();
+    @GuardedBy("mStateStatsLock")
+    private int mStateWriteCount;
+    @GuardedBy("mStateStatsLock")
+    private long mLastStateWriteBytes;
+    @GuardedBy("mStateStatsLock")
+    private long mLastStateWriteMs;
+    @GuardedBy("mStateStatsLock")
+    private long mMaxStateWriteMs;
+    @GuardedBy("mStateStatsLock")
+    private long mLastStateReadBytes;
+    @GuardedBy("mStateStatsLock")
+    private long mLastStateReadMs;
+    @GuardedBy("mStateStatsLock")
+    private String mLastStateReadFrom;
     final Handler mHandler;
 
     private final AppOpsManagerInternalImpl mAppOpsManagerInternal
@@ -195,6 +270,32 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     };
 
+    /** Non-null when appops.xml is written through the group commit writer. */
+    final GroupCommitWriter mGroupCommit;
+
+    final GroupCommitWriter.WriteCallback mGroupCommitCallback =
+            new GroupCommitWriter.WriteCallback() {
+        @Override
+        public void writeTo(FileOutputStream out) throws IOException {
+            synchronized (AppOpsService.this) {
+                mWriteScheduled = false;
+                mFastWriteScheduled = false;
+            }
+            synchronized (mFile) {
+                final long start = SystemClock.uptimeMillis();
+                writeStateToStream(out);
+                noteStateWritten(out.getChannel().position(), start);
+            }
+        }
+
+        @Override
+        public void onWriteCommitted() {
+            synchronized (mFile) {
+                deleteStaleStateFileLocked();
+            }
+        }
+    };
+
     @VisibleForTesting
     final SparseArray<UidState> mUidStates = new SparseArray<>();
 
@@ -440,6 +541,38 @@ public class AppOpsService extends IAppOpsService.Stub {
     final ArrayMap<IBinder, SparseArray<ActiveCallback>> mActiveWatchers = new ArrayMap<>();
     final SparseArray<SparseArray<Restriction>> mAudioRestrictions = new SparseArray<>();
 
+    /** A result of {@link #checkOperation}, valid while the mode generation is unchanged. */
+    private static final class CheckResult {
+        final int uid;
+        final int code;
+        final String packageName;
+        final int mode;
+        final int generation;
+
+        CheckResult(int uid, int code, String packageName, int mode, int generation) {
+            this.uid = uid;
+            this.code = code;
+            this.packageName = packageName;
+            this.mode = mode;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Direct-mapped cache of immutable {@link CheckResult}s, read without the service lock
+     * and filled with it held; null if disabled.  Every change that can alter the result of
+     * {@link #checkOperation} (op modes, uid modes, user restrictions, removed packages or
+     * uids) bumps {@link #mModeGeneration}, which invalidates all entries at once.
+     */
+    private final AtomicReferenceArray<CheckResult> mCheckCache =
+            USE_CHECK_CACHE ? new AtomicReferenceArray<>(CHECK_CACHE_SIZE) : null;
+
+    /** Written with the service lock held, read without it. */
+    private volatile int mModeGeneration;
+
+    private final LongAdder mCheckCacheHits = new LongAdder();
+    private final LongAdder mCheckCacheMisses = new LongAdder();
+
     final class ModeCallback implements DeathRecipient {
         final IAppOpsCallback mCallback;
         final int mWatchingUid;
@@ -576,7 +709,11 @@ public class AppOpsService extends IAppOpsService.Stub {
     public AppOpsService(File storagePath, Handler handler) {
         LockGuard.installLock(this, LockGuard.INDEX_APP_OPS);
         mFile = new AtomicFile(storagePath, "appops");
+        mBinaryFile = new AtomicFile(new File(storagePath.getParentFile(), "appops.bin"),
+                "appops");
+        mStateFile = USE_BINARY_STATE ? mBinaryFile : mFile;
         mHandler = handler;
+        mGroupCommit = USE_GROUP_COMMIT ? GroupCommitWriter.get() : null;
         mConstants = new Constants(mHandler);
         readState();
     }
@@ -591,6 +728,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         mConstants.startMonitoring(mContext.getContentResolver());
 
         synchronized (this) {
+            invalidateCheckCacheLocked();
             boolean changed = false;
             for (int i = mUidStates.size() - 1; i >= 0; i--) {
                 UidState uidState = mUidStates.valueAt(i);
@@ -685,6 +823,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     public void packageRemoved(int uid, String packageName) {
         synchronized (this) {
+            invalidateCheckCacheLocked();
             UidState uidState = mUidStates.get(uid);
             if (uidState == null) {
                 return;
@@ -741,6 +880,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     public void uidRemoved(int uid) {
         synchronized (this) {
+            invalidateCheckCacheLocked();
             if (mUidStates.indexOfKey(uid) >= 0) {
                 mUidStates.remove(uid);
                 scheduleFastWriteLocked();
@@ -793,6 +933,10 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     public void shutdown() {
         Slog.w(TAG, "Writing app ops before shutdown...");
+        if (mGroupCommit != null) {
+            mGroupCommit.flush();
+            return;
+        }
         boolean doWrite = false;
         synchronized (this) {
             if (mWriteScheduled) {
@@ -990,6 +1134,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         code = AppOpsManager.opToSwitch(code);
 
         synchronized (this) {
+            invalidateCheckCacheLocked();
             final int defaultMode = AppOpsManager.opToDefaultMode(code);
 
             UidState uidState = getUidStateLocked(uid, false);
@@ -1093,6 +1238,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         ArraySet<ModeCallback> repCbs = null;
         code = AppOpsManager.opToSwitch(code);
         synchronized (this) {
+            invalidateCheckCacheLocked();
             UidState uidState = getUidStateLocked(uid, false);
             Op op = getOpLocked(code, uid, packageName, true);
             if (op != null) {
@@ -1224,6 +1370,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
         HashMap<ModeCallback, ArrayList<ChangeRec>> callbacks = null;
         synchronized (this) {
+            invalidateCheckCacheLocked();
             boolean changed = false;
             for (int i = mUidStates.size() - 1; i >= 0; i--) {
                 UidState uidState = mUidStates.valueAt(i);
@@ -1419,22 +1566,58 @@ public class AppOpsService extends IAppOpsService.Stub {
         if (resolvedPackageName == null) {
             return AppOpsManager.MODE_IGNORED;
         }
-        synchronized (this) {
-            if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
-                return AppOpsManager.MODE_IGNORED;
+        final AtomicReferenceArray<CheckResult> cache = mCheckCache;
+        int index = 0;
+        if (cache != null) {
+            final int generation = mModeGeneration;
+            index = checkCacheIndex(uid, code, resolvedPackageName);
+            final CheckResult cached = cache.get(index);
+            if (cached != null && cached.generation == generation && cached.uid == uid
+                    && cached.code == code && cached.packageName.equals(resolvedPackageName)) {
+                mCheckCacheHits.increment();
+                return cached.mode;
             }
-            code = AppOpsManager.opToSwitch(code);
-            UidState uidState = getUidStateLocked(uid, false);
-            if (uidState != null && uidState.opModes != null
-                    && uidState.opModes.indexOfKey(code) >= 0) {
-                return uidState.opModes.get(code);
-            }
-            Op op = getOpLocked(code, uid, resolvedPackageName, false);
-            if (op == null) {
-                return AppOpsManager.opToDefaultMode(code);
+            mCheckCacheMisses.increment();
+        }
+        synchronized (this) {
+            final int mode = checkOperationLocked(code, uid, resolvedPackageName);
+            if (cache != null) {
+                cache.set(index, new CheckResult(uid, code, resolvedPackageName, mode,
+                        mModeGeneration));
             }
-            return op.mode;
+            return mode;
+        }
+    }
+
+    private int checkOperationLocked(int code, int uid, String resolvedPackageName) {
+        if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
+            return AppOpsManager.MODE_IGNORED;
         }
+        code = AppOpsManager.opToSwitch(code);
+        UidState uidState = getUidStateLocked(uid, false);
+        if (uidState != null && uidState.opModes != null
+                && uidState.opModes.indexOfKey(code) >= 0) {
+            return uidState.opModes.get(code);
+        }
+        Op op = getOpLocked(code, uid, resolvedPackageName, false);
+        if (op == null) {
+            return AppOpsManager.opToDefaultMode(code);
+        }
+        return op.mode;
+    }
+
+    private static int checkCacheIndex(int uid, int code, String packageName) {
+        int hash = (uid * 31 + code) * 31 + packageName.hashCode();
+        hash ^= hash >>> 16;
+        return hash & (CHECK_CACHE_SIZE - 1);
+    }
+
+    /**
+     * Must be called with the lock held by anything that changes what
+     * {@link #checkOperationLocked} returns.
+     */
+    private void invalidateCheckCacheLocked() {
+        mModeGeneration++;
     }
 
     @Override
@@ -2002,6 +2185,10 @@ public class AppOpsService extends IAppOpsService.Stub {
     private void scheduleWriteLocked() {
         if (!mWriteScheduled) {
             mWriteScheduled = true;
+            if (mGroupCommit != null) {
+                mGroupCommit.scheduleWrite(mStateFile, WRITE_DELAY, mGroupCommitCallback);
+                return;
+            }
             mHandler.postDelayed(mWriteRunner, WRITE_DELAY);
         }
     }
@@ -2010,8 +2197,12 @@ public class AppOpsService extends IAppOpsService.Stub {
         if (!mFastWriteScheduled) {
             mWriteScheduled = true;
             mFastWriteScheduled = true;
+            if (mGroupCommit != null) {
+                mGroupCommit.scheduleWrite(mStateFile, FAST_WRITE_DELAY, mGroupCommitCallback);
+                return;
+            }
             mHandler.removeCallbacks(mWriteRunner);
-            mHandler.postDelayed(mWriteRunner, 10*1000);
+            mHandler.postDelayed(mWriteRunner, FAST_WRITE_DELAY);
         }
     }
 
@@ -2068,77 +2259,239 @@ public class AppOpsService extends IAppOpsService.Stub {
         int oldVersion = NO_VERSION;
         synchronized (mFile) {
             synchronized (this) {
-                FileInputStream stream;
+                invalidateCheckCacheLocked();
+                final AtomicFile file = pickStateFileToRead();
                 try {
-                    stream = mFile.openRead();
+                    oldVersion = readStateFileLocked(file);
                 } catch (FileNotFoundException e) {
-                    Slog.i(TAG, "No existing app ops " + mFile.getBaseFile() + "; starting empty");
+                    Slog.i(TAG, "No existing app ops " + file.getBaseFile() + "; starting empty");
                     return;
                 }
-                boolean success = false;
-                mUidStates.clear();
-                try {
-                    XmlPullParser parser = Xml.newPullParser();
-                    parser.setInput(stream, StandardCharsets.UTF_8.name());
-                    int type;
-                    while ((type = parser.next()) != XmlPullParser.START_TAG
-                            && type != XmlPullParser.END_DOCUMENT) {
-                        ;
+                if (oldVersion == READ_FAILED && file == mBinaryFile && mFile.exists()) {
+                    Slog.w(TAG, "Falling back to " + mFile.getBaseFile());
+                    try {
+                        oldVersion = readStateFileLocked(mFile);
+                    } catch (FileNotFoundException e) {
+                        Slog.w(TAG, "Failed reading " + mFile.getBaseFile() + ": " + e);
                     }
+                }
+                if (oldVersion == READ_FAILED) {
+                    oldVersion = NO_VERSION;
+                }
+            }
+        }
+        synchronized (this) {
+            invalidateCheckCacheLocked();
+            upgradeLocked(oldVersion);
+        }
+    }
 
-                    if (type != XmlPullParser.START_TAG) {
-                        throw new IllegalStateException("no start tag found");
-                    }
+    /**
+     * Replaces {@link #mUidStates} with the state in the given file, or leaves it empty if the
+     * file can't be parsed.
+     *
+     * @return The version of the state, or {@link #READ_FAILED}.
+     */
+    private int readStateFileLocked(AtomicFile file) throws FileNotFoundException {
+        final long start = SystemClock.uptimeMillis();
+        final FileInputStream stream = file.openRead();
+        int version = READ_FAILED;
+        boolean success = false;
+        mUidStates.clear();
+        try {
+            if (file == mBinaryFile) {
+                version = readBinaryStateLocked(stream);
+            } else {
+                version = readXmlStateLocked(stream);
+            }
+            success = true;
+        } catch (IllegalStateException e) {
+            Slog.w(TAG, "Failed parsing " + e);
+        } catch (NullPointerException e) {
+            Slog.w(TAG, "Failed parsing " + e);
+        } catch (NumberFormatException e) {
+            Slog.w(TAG, "Failed parsing " + e);
+        } catch (XmlPullParserException e) {
+            Slog.w(TAG, "Failed parsing " + e);
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed parsing " + e);
+        } catch (IndexOutOfBoundsException e) {
+            Slog.w(TAG, "Failed parsing " + e);
+        } finally {
+            if (!success) {
+                mUidStates.clear();
+                version = READ_FAILED;
+            }
+            long readBytes = 0;
+            try {
+                readBytes = stream.getChannel().position();
+                stream.close();
+            } catch (IOException e) {
+            }
+            synchronized (mStateStatsLock) {
+                mLastStateReadBytes = readBytes;
+                mLastStateReadMs = SystemClock.uptimeMillis() - start;
+                mLastStateReadFrom = file.getBaseFile().getName();
+            }
+        }
+        return version;
+    }
 
-                    final String versionString = parser.getAttributeValue(null, "v");
-                    if (versionString != null) {
-                        oldVersion = Integer.parseInt(versionString);
-                    }
+    private int readXmlStateLocked(InputStream stream)
+            throws XmlPullParserException, IOException {
+        XmlPullParser parser = Xml.newPullParser();
+        parser.setInput(stream, StandardCharsets.UTF_8.name());
+        int type;
+        while ((type = parser.next()) != XmlPullParser.START_TAG
+                && type != XmlPullParser.END_DOCUMENT) {
+            ;
+        }
 
-                    int outerDepth = parser.getDepth();
-                    while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
-                            && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
-                        if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
-                            continue;
-                        }
+        if (type != XmlPullParser.START_TAG) {
+            throw new IllegalStateException("no start tag found");
+        }
 
-                        String tagName = parser.getName();
-                        if (tagName.equals("pkg")) {
-                            readPackage(parser);
-                        } else if (tagName.equals("uid")) {
-                            readUidOps(parser);
-                        } else {
-                            Slog.w(TAG, "Unknown element under <app-ops>: "
-                                    + parser.getName());
-                            XmlUtils.skipCurrentTag(parser);
-                        }
-                    }
-                    success = true;
-                } catch (IllegalStateException e) {
-                    Slog.w(TAG, "Failed parsing " + e);
-                } catch (NullPointerException e) {
-                    Slog.w(TAG, "Failed parsing " + e);
-                } catch (NumberFormatException e) {
-                    Slog.w(TAG, "Failed parsing " + e);
-                } catch (XmlPullParserException e) {
-                    Slog.w(TAG, "Failed parsing " + e);
-                } catch (IOException e) {
-                    Slog.w(TAG, "Failed parsing " + e);
-                } catch (IndexOutOfBoundsException e) {
-                    Slog.w(TAG, "Failed parsing " + e);
-                } finally {
-                    if (!success) {
-                        mUidStates.clear();
+        int version = NO_VERSION;
+        final String versionString = parser.getAttributeValue(null, "v");
+        if (versionString != null) {
+            version = Integer.parseInt(versionString);
+        }
+
+        int outerDepth = parser.getDepth();
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+            if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
+                continue;
+            }
+
+            String tagName = parser.getName();
+            if (tagName.equals("pkg")) {
+                readPackage(parser);
+            } else if (tagName.equals("uid")) {
+                readUidOps(parser);
+            } else {
+                Slog.w(TAG, "Unknown element under <app-ops>: "
+                        + parser.getName());
+                XmlUtils.skipCurrentTag(parser);
+            }
+        }
+        return version;
+    }
+
+    /**
+     * Picks the newer of appops.xml and appops.bin, so state written in one format survives
+     * a switch to the other.
+     */
+    private AtomicFile pickStateFileToRead() {
+        final AtomicFile other = mStateFile == mFile ? mBinaryFile : mFile;
+        if (!other.exists()) {
+            return mStateFile;
+        }
+        if (!mStateFile.exists()
+                || other.getLastModifiedTime() > mStateFile.getLastModifiedTime()) {
+            return other;
+        }
+        return mStateFile;
+    }
+
+    /**
+     * Reads state written by {@link #writeBinaryState}.
+     *
+     * @return The version of the state, to be passed to {@link #upgradeLocked}.
+     */
+    private int readBinaryStateLocked(InputStream stream) throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != BINARY_MAGIC) {
+            throw new IllegalStateException("bad magic");
+        }
+        final int binaryVersion = in.readInt();
+        if (binaryVersion != BINARY_VERSION) {
+            throw new IllegalStateException("unknown binary version " + binaryVersion);
+        }
+        final int stateVersion = in.readInt();
+        final int uidCount = readBinaryCount(in, MAX_BINARY_UIDS);
+        for (int i = 0; i < uidCount; i++) {
+            final int uid = in.readInt();
+            final UidState uidState = getUidStateLocked(uid, true);
+            final int modeCount = readBinaryCount(in, AppOpsManager._NUM_OP);
+            if (modeCount > 0) {
+                uidState.opModes = new SparseIntArray(modeCount);
+                for (int j = 0; j < modeCount; j++) {
+                    final int code = readBinaryOpCode(in.readInt());
+                    uidState.opModes.put(code, in.readInt());
+                }
+            }
+            final int pkgCount = readBinaryCount(in, MAX_BINARY_PACKAGES_PER_UID);
+            if (pkgCount > 0) {
+                uidState.pkgOps = new ArrayMap<>(pkgCount);
+            }
+            for (int j = 0; j < pkgCount; j++) {
+                final String pkgName = in.readUTF();
+                final Ops ops = new Ops(pkgName, uidState, in.readBoolean());
+                final int opCount = readBinaryCount(in, AppOpsManager._NUM_OP);
+                for (int k = 0; k < opCount; k++) {
+                    final Op op = new Op(uidState, pkgName,
+                            readBinaryOpCode(in.readUnsignedShort()));
+                    final int flags = in.readUnsignedByte();
+                    if ((flags & OP_HAS_MODE) != 0) {
+                        op.mode = in.readInt();
                     }
-                    try {
-                        stream.close();
-                    } catch (IOException e) {
+                    if ((flags & OP_HAS_DURATION) != 0) {
+                        op.duration = in.readInt();
+                    }
+                    if ((flags & OP_HAS_PROXY_UID) != 0) {
+                        op.proxyUid = in.readInt();
                     }
+                    if ((flags & OP_HAS_PROXY_PACKAGE) != 0) {
+                        op.proxyPackageName = in.readUTF();
+                    }
+                    readTimes(in, op.time);
+                    readTimes(in, op.rejectTime);
+                    ops.put(op.op, op);
                 }
+                uidState.pkgOps.put(pkgName, ops);
             }
+            uidState.evalForegroundOps(mOpModeWatchers);
         }
-        synchronized (this) {
-            upgradeLocked(oldVersion);
+        return stateVersion;
+    }
+
+    private static int readBinaryCount(DataInputStream in, int max) throws IOException {
+        final int count = in.readInt();
+        if (count < 0 || count > max) {
+            throw new IllegalStateException("bad count " + count);
+        }
+        return count;
+    }
+
+    private static int readBinaryOpCode(int code) {
+        if (code < 0 || code >= AppOpsManager._NUM_OP) {
+            throw new IllegalStateException("bad op code " + code);
+        }
+        return code;
+    }
+
+    private static void readTimes(DataInputStream in, long[] times) throws IOException {
+        final int mask = in.readUnsignedByte();
+        for (int i = 0; i < times.length; i++) {
+            if ((mask & (1 << i)) != 0) {
+                times[i] = in.readLong();
+            }
+        }
+    }
+
+    private static void writeTimes(DataOutputStream out, long[] times) throws IOException {
+        int mask = 0;
+        for (int i = 0; i < times.length; i++) {
+            if (times[i] != 0) {
+                mask |= 1 << i;
+            }
+        }
+        out.writeByte(mask);
+        for (int i = 0; i < times.length; i++) {
+            if (times[i] != 0) {
+                out.writeLong(times[i]);
+            }
         }
     }
 
@@ -2377,118 +2730,241 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     void writeState() {
+        if (mGroupCommit != null) {
+            mGroupCommit.writeNow(mStateFile, mGroupCommitCallback);
+            return;
+        }
         synchronized (mFile) {
+            final long start = SystemClock.uptimeMillis();
             FileOutputStream stream;
             try {
-                stream = mFile.startWrite();
+                stream = mStateFile.startWrite();
             } catch (IOException e) {
                 Slog.w(TAG, "Failed to write state: " + e);
                 return;
             }
 
-            List<AppOpsManager.PackageOps> allOps = getPackagesForOps(null);
-
             try {
-                XmlSerializer out = new FastXmlSerializer();
-                out.setOutput(stream, StandardCharsets.UTF_8.name());
-                out.startDocument(null, true);
-                out.startTag(null, "app-ops");
-                out.attribute(null, "v", String.valueOf(CURRENT_VERSION));
-
-                final int uidStateCount = mUidStates.size();
-                for (int i = 0; i < uidStateCount; i++) {
-                    UidState uidState = mUidStates.valueAt(i);
-                    if (uidState.opModes != null && uidState.opModes.size() > 0) {
-                        out.startTag(null, "uid");
-                        out.attribute(null, "n", Integer.toString(uidState.uid));
-                        SparseIntArray uidOpModes = uidState.opModes;
-                        final int opCount = uidOpModes.size();
-                        for (int j = 0; j < opCount; j++) {
-                            final int op = uidOpModes.keyAt(j);
-                            final int mode = uidOpModes.valueAt(j);
-                            out.startTag(null, "op");
-                            out.attribute(null, "n", Integer.toString(op));
-                            out.attribute(null, "m", Integer.toString(mode));
-                            out.endTag(null, "op");
-                        }
-                        out.endTag(null, "uid");
-                    }
-                }
-
-                if (allOps != null) {
-                    String lastPkg = null;
-                    for (int i=0; i<allOps.size(); i++) {
-                        AppOpsManager.PackageOps pkg = allOps.get(i);
-                        if (!pkg.getPackageName().equals(lastPkg)) {
-                            if (lastPkg != null) {
-                                out.endTag(null, "pkg");
-                            }
-                            lastPkg = pkg.getPackageName();
-                            out.startTag(null, "pkg");
-                            out.attribute(null, "n", lastPkg);
-                        }
-                        out.startTag(null, "uid");
-                        out.attribute(null, "n", Integer.toString(pkg.getUid()));
-                        synchronized (this) {
-                            Ops ops = getOpsRawLocked(pkg.getUid(), pkg.getPackageName(),
-                                    false /* edit */, false /* uidMismatchExpected */);
-                            // Should always be present as the list of PackageOps is generated
-                            // from Ops.
-                            if (ops != null) {
-                                out.attribute(null, "p", Boolean.toString(ops.isPrivileged));
-                            } else {
-                                out.attribute(null, "p", Boolean.toString(false));
-                            }
+                writeStateToStream(stream);
+                noteStateWritten(stream.getChannel().position(), start);
+                mStateFile.finishWrite(stream);
+                deleteStaleStateFileLocked();
+            } catch (IOException e) {
+                Slog.w(TAG, "Failed to write state, restoring backup.", e);
+                mStateFile.failWrite(stream);
+            }
+        }
+    }
+
+    /** Records the size of a state write and the time it took, not counting the sync. */
+    private void noteStateWritten(long size, long start) {
+        final long duration = SystemClock.uptimeMillis() - start;
+        synchronized (mStateStatsLock) {
+            mStateWriteCount++;
+            mLastStateWriteBytes = size;
+            mLastStateWriteMs = duration;
+            mMaxStateWriteMs = Math.max(mMaxStateWriteMs, duration);
+        }
+    }
+
+    /**
+     * Once state has been committed in the current format, the file in the other format is
+     * stale.  Must only be called after the current file's write has been finished, so there
+     * is always one complete copy of the state on disk.
+     */
+    @GuardedBy("mFile")
+    private void deleteStaleStateFileLocked() {
+        final AtomicFile other = mStateFile == mFile ? mBinaryFile : mFile;
+        if (other.exists()) {
+            other.delete();
+        }
+    }
+
+    private void writeStateToStream(FileOutputStream stream) throws IOException {
+        if (mStateFile == mBinaryFile) {
+            writeBinaryState(stream);
+        } else {
+            writeXmlState(stream);
+        }
+    }
+
+    /**
+     * Writes state in the binary form of appops.xml:
+     *
+     * <pre>
+     *   file := MAGIC:int BINARY_VERSION:int CURRENT_VERSION:int uidCount:int uid*
+     *   uid  := uid:int modeCount:int (op:int mode:int)* pkgCount:int pkg*
+     *   pkg  := name:utf privileged:boolean opCount:int op*
+     *   op   := op:short flags:byte [mode:int] [duration:int] [proxyUid:int] [proxyPackage:utf]
+     *           times rejectTimes
+     *   times := mask:byte time:long*   (one time per set bit, by uid state)
+     * </pre>
+     *
+     * Unlike the XML path, the whole state is encoded with the service lock held; it is
+     * cheap enough that this is shorter than the many lock round trips the XML path makes.
+     */
+    private void writeBinaryState(FileOutputStream stream) throws IOException {
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+        synchronized (this) {
+            out.writeInt(BINARY_MAGIC);
+            out.writeInt(BINARY_VERSION);
+            out.writeInt(CURRENT_VERSION);
+            final int uidStateCount = mUidStates.size();
+            out.writeInt(uidStateCount);
+            for (int i = 0; i < uidStateCount; i++) {
+                final UidState uidState = mUidStates.valueAt(i);
+                out.writeInt(uidState.uid);
+                final SparseIntArray opModes = uidState.opModes;
+                final int modeCount = opModes != null ? opModes.size() : 0;
+                out.writeInt(modeCount);
+                for (int j = 0; j < modeCount; j++) {
+                    out.writeInt(opModes.keyAt(j));
+                    out.writeInt(opModes.valueAt(j));
+                }
+                final ArrayMap<String, Ops> pkgOps = uidState.pkgOps;
+                final int pkgCount = pkgOps != null ? pkgOps.size() : 0;
+                out.writeInt(pkgCount);
+                for (int j = 0; j < pkgCount; j++) {
+                    final Ops ops = pkgOps.valueAt(j);
+                    out.writeUTF(ops.packageName);
+                    out.writeBoolean(ops.isPrivileged);
+                    final int opCount = ops.size();
+                    out.writeInt(opCount);
+                    for (int k = 0; k < opCount; k++) {
+                        final Op op = ops.valueAt(k);
+                        int flags = 0;
+                        if (op.mode != AppOpsManager.opToDefaultMode(op.op)) {
+                            flags |= OP_HAS_MODE;
                         }
-                        List<AppOpsManager.OpEntry> ops = pkg.getOps();
-                        for (int j=0; j<ops.size(); j++) {
-                            AppOpsManager.OpEntry op = ops.get(j);
-                            out.startTag(null, "op");
-                            out.attribute(null, "n", Integer.toString(op.getOp()));
-                            if (op.getMode() != AppOpsManager.opToDefaultMode(op.getOp())) {
-                                out.attribute(null, "m", Integer.toString(op.getMode()));
-                            }
-                            for (int k = 0; k < _NUM_UID_STATE; k++) {
-                                final long time = op.getLastTimeFor(k);
-                                if (time != 0) {
-                                    out.attribute(null, UID_STATE_TIME_ATTRS[k],
-                                            Long.toString(time));
-                                }
-                                final long rejectTime = op.getLastRejectTimeFor(k);
-                                if (rejectTime != 0) {
-                                    out.attribute(null, UID_STATE_REJECT_ATTRS[k],
-                                            Long.toString(rejectTime));
-                                }
-                            }
-                            int dur = op.getDuration();
-                            if (dur != 0) {
-                                out.attribute(null, "d", Integer.toString(dur));
-                            }
-                            int proxyUid = op.getProxyUid();
-                            if (proxyUid != -1) {
-                                out.attribute(null, "pu", Integer.toString(proxyUid));
-                            }
-                            String proxyPackageName = op.getProxyPackageName();
-                            if (proxyPackageName != null) {
-                                out.attribute(null, "pp", proxyPackageName);
-                            }
-                            out.endTag(null, "op");
+                        if (op.duration != 0) {
+                            flags |= OP_HAS_DURATION;
+                        }
+                        if (op.proxyUid != -1) {
+                            flags |= OP_HAS_PROXY_UID;
+                        }
+                        if (op.proxyPackageName != null) {
+                            flags |= OP_HAS_PROXY_PACKAGE;
                         }
-                        out.endTag(null, "uid");
+                        out.writeShort(op.op);
+                        out.writeByte(flags);
+                        if ((flags & OP_HAS_MODE) != 0) {
+                            out.writeInt(op.mode);
+                        }
+                        if ((flags & OP_HAS_DURATION) != 0) {
+                            out.writeInt(op.duration);
+                        }
+                        if ((flags & OP_HAS_PROXY_UID) != 0) {
+                            out.writeInt(op.proxyUid);
+                        }
+                        if ((flags & OP_HAS_PROXY_PACKAGE) != 0) {
+                            out.writeUTF(op.proxyPackageName);
+                        }
+                        writeTimes(out, op.time);
+                        writeTimes(out, op.rejectTime);
                     }
+                }
+            }
+        }
+        out.flush();
+    }
+
+    private void writeXmlState(FileOutputStream stream) throws IOException {
+        List<AppOpsManager.PackageOps> allOps = getPackagesForOps(null);
+
+        XmlSerializer out = new FastXmlSerializer();
+        out.setOutput(stream, StandardCharsets.UTF_8.name());
+        out.startDocument(null, true);
+        out.startTag(null, "app-ops");
+        out.attribute(null, "v", String.valueOf(CURRENT_VERSION));
+
+        final int uidStateCount = mUidStates.size();
+        for (int i = 0; i < uidStateCount; i++) {
+            UidState uidState = mUidStates.valueAt(i);
+            if (uidState.opModes != null && uidState.opModes.size() > 0) {
+                out.startTag(null, "uid");
+                out.attribute(null, "n", Integer.toString(uidState.uid));
+                SparseIntArray uidOpModes = uidState.opModes;
+                final int opCount = uidOpModes.size();
+                for (int j = 0; j < opCount; j++) {
+                    final int op = uidOpModes.keyAt(j);
+                    final int mode = uidOpModes.valueAt(j);
+                    out.startTag(null, "op");
+                    out.attribute(null, "n", Integer.toString(op));
+                    out.attribute(null, "m", Integer.toString(mode));
+                    out.endTag(null, "op");
+                }
+                out.endTag(null, "uid");
+            }
+        }
+
+        if (allOps != null) {
+            String lastPkg = null;
+            for (int i=0; i<allOps.size(); i++) {
+                AppOpsManager.PackageOps pkg = allOps.get(i);
+                if (!pkg.getPackageName().equals(lastPkg)) {
                     if (lastPkg != null) {
                         out.endTag(null, "pkg");
                     }
+                    lastPkg = pkg.getPackageName();
+                    out.startTag(null, "pkg");
+                    out.attribute(null, "n", lastPkg);
                 }
-
-                out.endTag(null, "app-ops");
-                out.endDocument();
-                mFile.finishWrite(stream);
-            } catch (IOException e) {
-                Slog.w(TAG, "Failed to write state, restoring backup.", e);
-                mFile.failWrite(stream);
+                out.startTag(null, "uid");
+                out.attribute(null, "n", Integer.toString(pkg.getUid()));
+                synchronized (this) {
+                    Ops ops = getOpsRawLocked(pkg.getUid(), pkg.getPackageName(),
+                            false /* edit */, false /* uidMismatchExpected */);
+                    // Should always be present as the list of PackageOps is generated
+                    // from Ops.
+                    if (ops != null) {
+                        out.attribute(null, "p", Boolean.toString(ops.isPrivileged));
+                    } else {
+                        out.attribute(null, "p", Boolean.toString(false));
+                    }
+                }
+                List<AppOpsManager.OpEntry> ops = pkg.getOps();
+                for (int j=0; j<ops.size(); j++) {
+                    AppOpsManager.OpEntry op = ops.get(j);
+                    out.startTag(null, "op");
+                    out.attribute(null, "n", Integer.toString(op.getOp()));
+                    if (op.getMode() != AppOpsManager.opToDefaultMode(op.getOp())) {
+                        out.attribute(null, "m", Integer.toString(op.getMode()));
+                    }
+                    for (int k = 0; k < _NUM_UID_STATE; k++) {
+                        final long time = op.getLastTimeFor(k);
+                        if (time != 0) {
+                            out.attribute(null, UID_STATE_TIME_ATTRS[k],
+                                    Long.toString(time));
+                        }
+                        final long rejectTime = op.getLastRejectTimeFor(k);
+                        if (rejectTime != 0) {
+                            out.attribute(null, UID_STATE_REJECT_ATTRS[k],
+                                    Long.toString(rejectTime));
+                        }
+                    }
+                    int dur = op.getDuration();
+                    if (dur != 0) {
+                        out.attribute(null, "d", Integer.toString(dur));
+                    }
+                    int proxyUid = op.getProxyUid();
+                    if (proxyUid != -1) {
+                        out.attribute(null, "pu", Integer.toString(proxyUid));
+                    }
+                    String proxyPackageName = op.getProxyPackageName();
+                    if (proxyPackageName != null) {
+                        out.attribute(null, "pp", proxyPackageName);
+                    }
+                    out.endTag(null, "op");
+                }
+                out.endTag(null, "uid");
+            }
+            if (lastPkg != null) {
+                out.endTag(null, "pkg");
             }
         }
+
+        out.endTag(null, "app-ops");
+        out.endDocument();
     }
 
     static class Shell extends ShellCommand {
@@ -3038,6 +3514,29 @@ public class AppOpsService extends IAppOpsService.Stub {
             pw.println("Current AppOps Service state:");
             mConstants.dump(pw);
             pw.println();
+            if (mGroupCommit != null) {
+                mGroupCommit.dump(pw, "  ");
+                pw.println();
+            }
+            synchronized (mStateStatsLock) {
+                pw.print("  State file: "); pw.print(mStateFile.getBaseFile().getName());
+                pw.print(", writes="); pw.print(mStateWriteCount);
+                pw.print(", last write "); pw.print(mLastStateWriteBytes);
+                pw.print(" bytes in "); pw.print(mLastStateWriteMs);
+                pw.print("ms, max "); pw.print(mMaxStateWriteMs); pw.println("ms");
+                if (mLastStateReadFrom != null) {
+                    pw.print("  Read "); pw.print(mLastStateReadBytes);
+                    pw.print(" bytes from "); pw.print(mLastStateReadFrom);
+                    pw.print(" in "); pw.print(mLastStateReadMs); pw.println("ms");
+                }
+                pw.println();
+            }
+            if (mCheckCache != null) {
+                pw.print("  checkOperation cache: hits="); pw.print(mCheckCacheHits.sum());
+                pw.print(" misses="); pw.print(mCheckCacheMisses.sum());
+                pw.print(" generation="); pw.println(mModeGeneration);
+                pw.println();
+            }
             final long now = System.currentTimeMillis();
             final long nowElapsed = SystemClock.elapsedRealtime();
             final long nowUptime = SystemClock.uptimeMillis();
@@ -3476,6 +3975,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     private void setUserRestrictionNoCheck(int code, boolean restricted, IBinder token,
             int userHandle, String[] exceptionPackages) {
         synchronized (AppOpsService.this) {
+            invalidateCheckCacheLocked();
             ClientRestrictionState restrictionState = mOpUserRestrictions.get(token);
 
             if (restrictionState == null) {
@@ -3516,6 +4016,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     public void removeUser(int userHandle) throws RemoteException {
         checkSystemUid("removeUser");
         synchronized (AppOpsService.this) {
+            invalidateCheckCacheLocked();
             final int tokenCount = mOpUserRestrictions.size();
             for (int i = tokenCount - 1; i >= 0; i--) {
                 ClientRestrictionState opRestrictions = mOpUserRestrictions.valueAt(i);
@@ -3733,6 +4234,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         @Override
         public void binderDied() {
             synchronized (AppOpsService.this) {
+                invalidateCheckCacheLocked();
                 mOpUserRestrictions.remove(token);
                 if (perUserRestrictions == null) {
                     return;
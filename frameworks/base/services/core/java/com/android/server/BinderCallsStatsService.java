@@ -20,8 +20,10 @@ import android.os.Binder;
 import android.os.ServiceManager;
 import android.os.SystemProperties;
 import android.util.Slog;
+import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.os.BinderCallsStats;
+import com.android.internal.os.BinderLatencySampler;
 
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
@@ -33,6 +35,12 @@ public class BinderCallsStatsService extends Binder {
     private static final String PERSIST_SYS_BINDER_CALLS_DETAILED_TRACKING
             = "persist.sys.binder_calls_detailed_tracking";
 
+    private static final String PERSIST_SYS_BINDER_CALLS_SAMPLING_PERIOD
+            = "persist.sys.binder_calls_sampling_period";
+
+    /** Sampling period used by --enable-sampling when none is configured. */
+    private static final int DEFAULT_SAMPLING_PERIOD = 100;
+
     public static void start() {
         BinderCallsStatsService service = new BinderCallsStatsService();
         ServiceManager.addService("binder_calls_stats", service);
@@ -45,11 +53,21 @@ public class BinderCallsStatsService extends Binder {
                     + " or via dumpsys binder_calls_stats --enable-detailed-tracking");
             BinderCallsStats.getInstance().setDetailedTracking(true);
         }
+
+        final int samplingPeriod = SystemProperties.getInt(
+                PERSIST_SYS_BINDER_CALLS_SAMPLING_PERIOD, 0);
+        if (samplingPeriod > 0) {
+            Slog.i(TAG, "Sampling latency of 1 in " + samplingPeriod + " binder calls. Controlled"
+                    + " by " + PERSIST_SYS_BINDER_CALLS_SAMPLING_PERIOD
+                    + " or via dumpsys binder_calls_stats --enable-sampling");
+            BinderLatencySampler.getInstance().setSamplingPeriod(samplingPeriod);
+        }
     }
 
     public static void reset() {
         Slog.i(TAG, "Resetting stats");
         BinderCallsStats.getInstance().reset();
+        BinderLatencySampler.getInstance().reset();
     }
 
     @Override
@@ -73,11 +91,37 @@ public class BinderCallsStatsService extends Binder {
                     BinderCallsStats.getInstance().setDetailedTracking(false);
                     pw.println("Detailed tracking disabled");
                     return;
+                } else if ("--enable-sampling".equals(arg)) {
+                    int period = SystemProperties.getInt(
+                            PERSIST_SYS_BINDER_CALLS_SAMPLING_PERIOD, 0);
+                    if (period <= 0) {
+                        period = DEFAULT_SAMPLING_PERIOD;
+                        SystemProperties.set(PERSIST_SYS_BINDER_CALLS_SAMPLING_PERIOD,
+                                Integer.toString(period));
+                    }
+                    BinderLatencySampler.getInstance().setSamplingPeriod(period);
+                    pw.println("Latency sampling enabled, 1 in " + period + " calls");
+                    return;
+                } else if ("--disable-sampling".equals(arg)) {
+                    SystemProperties.set(PERSIST_SYS_BINDER_CALLS_SAMPLING_PERIOD, "");
+                    BinderLatencySampler.getInstance().setSamplingPeriod(0);
+                    pw.println("Latency sampling disabled");
+                    return;
+                } else if ("--proto".equals(arg)) {
+                    final ProtoOutputStream proto = new ProtoOutputStream(fd);
+                    BinderLatencySampler.getInstance().dumpProto(proto);
+                    proto.flush();
+                    return;
                 } else if ("-h".equals(arg)) {
                     pw.println("binder_calls_stats commands:");
                     pw.println("  --reset: Reset stats");
                     pw.println("  --enable-detailed-tracking: Enables detailed tracking");
                     pw.println("  --disable-detailed-tracking: Disables detailed tracking");
+                    pw.println("  --enable-sampling: Enables latency sampling of 1 in N calls,"
+                            + " N being " + PERSIST_SYS_BINDER_CALLS_SAMPLING_PERIOD
+                            + " if set, else " + DEFAULT_SAMPLING_PERIOD);
+                    pw.println("  --disable-sampling: Disables latency sampling");
+                    pw.println("  --proto: Dumps sampled latencies as a proto");
                     return;
                 } else {
                     pw.println("Unknown option: " + arg);
@@ -85,5 +129,7 @@ public class BinderCallsStatsService extends Binder {
             }
         }
         BinderCallsStats.getInstance().dump(pw);
+        pw.println();
+        BinderLatencySampler.getInstance().dump(pw);
     }
 }
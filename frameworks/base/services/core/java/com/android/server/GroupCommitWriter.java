@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.os.Handler;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Slog;
+import android.util.TimeUtils;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Shared writer that commits {@link AtomicFile}s for several system services together.
+ *
+ * <p>An owner calls {@link #scheduleWrite} with the longest it is willing to wait before its
+ * data is on disk. Requests are keyed by file, so scheduling a file that is already pending
+ * only replaces its callback and pulls its deadline in. When the earliest deadline passes,
+ * every pending file is committed in one go: all of them are written out first and only then
+ * synced, so the file system can fold their journal commits together rather than paying for
+ * one per file. The write callback runs on the writer thread at commit time, which means it
+ * always serializes the owner's latest state.
+ *
+ * <p>Once a file is handed to this writer, its owner must not write it directly; use
+ * {@link #writeNow} for writes that have to complete before returning.
+ */
+public final class GroupCommitWriter {
+    private static final String TAG = "GroupCommitWriter";
+
+    /** Serializes an owner's state into the new contents of a file. */
+    public interface WriteCallback {
+        void writeTo(FileOutputStream out) throws IOException;
+
+        /** Called after the file written by this callback has been synced. */
+        default void onWriteCommitted() {
+        }
+    }
+
+    private static final class PendingWrite {
+        final AtomicFile file;
+        WriteCallback callback;
+        long deadline;
+        FileOutputStream stream;
+
+        PendingWrite(AtomicFile file) {
+            this.file = file;
+        }
+    }
+
+    private static GroupCommitWriter sInstance;
+
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+
+    /** Serializes commits; held while files are written and synced. */
+    private final Object mCommitLock = new Object();
+
+    @GuardedBy("mLock")
+    private final ArrayMap<File, PendingWrite> mPending = new ArrayMap<>();
+
+    /** Uptime at which the commit runnable is posted to run, or 0 if it is not posted. */
+    @GuardedBy("mLock")
+    private long mScheduledCommit;
+
+    private final Runnable mCommitRunner = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mScheduledCommit = 0;
+            }
+            commit(false);
+        }
+    };
+
+    @GuardedBy("mLock")
+    private long mScheduleCount;
+    @GuardedBy("mLock")
+    private long mDedupCount;
+    @GuardedBy("mLock")
+    private long mCommitCount;
+    @GuardedBy("mLock")
+    private long mFileWriteCount;
+    @GuardedBy("mLock")
+    private long mFailedWriteCount;
+    @GuardedBy("mLock")
+    private int mMaxFilesPerCommit;
+    @GuardedBy("mLock")
+    private long mFsyncCount;
+    @GuardedBy("mLock")
+    private long mFsyncTotalMs;
+    @GuardedBy("mLock")
+    private long mFsyncMaxMs;
+    @GuardedBy("mLock")
+    private long mCommitTotalMs;
+    @GuardedBy("mLock")
+    private long mCommitMaxMs;
+
+    private GroupCommitWriter(Handler handler) {
+        mHandler = handler;
+    }
+
+    public static GroupCommitWriter get() {
+        synchronized (GroupCommitWriter.class) {
+            if (sInstance == null) {
+                final ServiceThread thread = new ServiceThread("android.groupcommit",
+                        Process.THREAD_PRIORITY_BACKGROUND, true /*allowIo*/);
+                thread.start();
+                sInstance = new GroupCommitWriter(new Handler(thread.getLooper()));
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * Asks for <var>file</var> to be rewritten by <var>callback</var> within
+     * <var>maxDelayMs</var>.  If the file is already pending, the new callback replaces
+     * the old one and the earlier of the two deadlines is kept.
+     */
+    public void scheduleWrite(AtomicFile file, long maxDelayMs, WriteCallback callback) {
+        final long deadline = SystemClock.uptimeMillis() + Math.max(0, maxDelayMs);
+        synchronized (mLock) {
+            mScheduleCount++;
+            final File key = file.getBaseFile();
+            PendingWrite pending = mPending.get(key);
+            if (pending == null) {
+                pending = new PendingWrite(file);
+                pending.deadline = deadline;
+                mPending.put(key, pending);
+            } else {
+                mDedupCount++;
+                pending.deadline = Math.min(pending.deadline, deadline);
+            }
+            pending.callback = callback;
+
+            if (mScheduledCommit == 0 || pending.deadline < mScheduledCommit) {
+                mHandler.removeCallbacks(mCommitRunner);
+                mHandler.postAtTime(mCommitRunner, pending.deadline);
+                mScheduledCommit = pending.deadline;
+            }
+        }
+    }
+
+    /**
+     * Writes <var>file</var> with <var>callback</var> before returning, committing anything
+     * else that is pending along with it.
+     */
+    public void writeNow(AtomicFile file, WriteCallback callback) {
+        synchronized (mLock) {
+            final File key = file.getBaseFile();
+            PendingWrite pending = mPending.get(key);
+            if (pending == null) {
+                pending = new PendingWrite(file);
+                mPending.put(key, pending);
+            }
+            pending.callback = callback;
+        }
+        commit(true);
+    }
+
+    /** Commits every pending write before returning, e.g. on shutdown. */
+    public void flush() {
+        commit(true);
+    }
+
+    private void commit(boolean sync) {
+        synchronized (mCommitLock) {
+            final ArrayList<PendingWrite> writes;
+            synchronized (mLock) {
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                writes = new ArrayList<>(mPending.values());
+                mPending.clear();
+                if (sync && mScheduledCommit != 0) {
+                    mHandler.removeCallbacks(mCommitRunner);
+                    mScheduledCommit = 0;
+                }
+            }
+
+            final long start = SystemClock.uptimeMillis();
+            final int count = writes.size();
+
+            // Write everything out first, so the syncs below can share journal commits.
+            int failed = 0;
+            for (int i = 0; i < count; i++) {
+                final PendingWrite pending = writes.get(i);
+                FileOutputStream stream = null;
+                try {
+                    stream = pending.file.startWrite();
+                    pending.callback.writeTo(stream);
+                    pending.stream = stream;
+                } catch (IOException | RuntimeException e) {
+                    Slog.w(TAG, "Failed to write " + pending.file.getBaseFile(), e);
+                    pending.file.failWrite(stream);
+                    failed++;
+                }
+            }
+
+            long fsyncTotal = 0;
+            long fsyncMax = 0;
+            int synced = 0;
+            for (int i = 0; i < count; i++) {
+                final PendingWrite pending = writes.get(i);
+                if (pending.stream == null) {
+                    continue;
+                }
+                final long syncStart = SystemClock.uptimeMillis();
+                pending.file.finishWrite(pending.stream);
+                final long syncTime = SystemClock.uptimeMillis() - syncStart;
+                pending.stream = null;
+                fsyncTotal += syncTime;
+                fsyncMax = Math.max(fsyncMax, syncTime);
+                synced++;
+                try {
+                    pending.callback.onWriteCommitted();
+                } catch (RuntimeException e) {
+                    Slog.w(TAG, "Post-commit callback failed for " + pending.file.getBaseFile(), e);
+                }
+            }
+
+            final long commitTime = SystemClock.uptimeMillis() - start;
+            synchronized (mLock) {
+                mCommitCount++;
+                mFileWriteCount += synced;
+                mFailedWriteCount += failed;
+                mMaxFilesPerCommit = Math.max(mMaxFilesPerCommit, count);
+                mFsyncCount += synced;
+                mFsyncTotalMs += fsyncTotal;
+                mFsyncMaxMs = Math.max(mFsyncMaxMs, fsyncMax);
+                mCommitTotalMs += commitTime;
+                mCommitMaxMs = Math.max(mCommitMaxMs, commitTime);
+            }
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.print(prefix); pw.println("Group commit writer:");
+            pw.print(prefix); pw.print("  Pending files: "); pw.print(mPending.size());
+            if (mScheduledCommit != 0) {
+                pw.print(", next commit in ");
+                TimeUtils.formatDuration(mScheduledCommit - SystemClock.uptimeMillis(), pw);
+            }
+            pw.println();
+            for (int i = 0; i < mPending.size(); i++) {
+                pw.print(prefix); pw.print("    "); pw.println(mPending.keyAt(i));
+            }
+            pw.print(prefix); pw.print("  Requests: "); pw.print(mScheduleCount);
+            pw.print(", deduplicated: "); pw.println(mDedupCount);
+            pw.print(prefix); pw.print("  Commits: "); pw.print(mCommitCount);
+            pw.print(", files written: "); pw.print(mFileWriteCount);
+            pw.print(", failed: "); pw.print(mFailedWriteCount);
+            pw.print(", max files/commit: "); pw.println(mMaxFilesPerCommit);
+            pw.print(prefix); pw.print("  Fsyncs: "); pw.print(mFsyncCount);
+            pw.print(", avg "); pw.print(mFsyncCount > 0 ? mFsyncTotalMs / mFsyncCount : 0);
+            pw.print("ms, max "); pw.print(mFsyncMaxMs); pw.println("ms");
+            pw.print(prefix); pw.print("  Commit time: avg ");
+            pw.print(mCommitCount > 0 ? mCommitTotalMs / mCommitCount : 0);
+            pw.print("ms, max "); pw.print(mCommitMaxMs); pw.println("ms");
+        }
+    }
+}
@@ -23,6 +23,7 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 
 import android.net.Uri;
@@ -30,6 +31,7 @@ import android.util.FastImmutableArraySet;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.MutableInt;
 import android.util.PrintWriterPrinter;
 import android.util.Slog;
@@ -51,6 +53,12 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
     final private static boolean localLOGV = DEBUG || false;
     final private static boolean localVerificationLOGV = DEBUG || false;
 
+    /**
+     * Maximum number of distinct queries whose filter matches are remembered
+     * in {@link #mResolutionCache}.
+     */
+    private static final int MAX_RESOLUTION_CACHE_SIZE = 128;
+
     public void addFilter(F f) {
         if (localLOGV) {
             Slog.v(TAG, "Adding filter: " + f);
@@ -58,6 +66,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             Slog.v(TAG, "    Building Lookup Maps:");
         }
 
+        invalidateResolutionCache();
         mFilters.add(f);
         int numS = register_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
@@ -195,6 +204,16 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         mFilters.remove(f);
     }
 
+    /**
+     * Drops every cached resolution, as adding or removing a filter can change the result
+     * of any query.  The entries would be ignored anyway once the generation moves on, but
+     * they would keep their filters, and the packages that own them, reachable.
+     */
+    private void invalidateResolutionCache() {
+        mResolutionGeneration++;
+        mResolutionCache.evictAll();
+    }
+
     void removeFilterInternal(F f) {
         if (localLOGV) {
             Slog.v(TAG, "Removing filter: " + f);
@@ -202,6 +221,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             Slog.v(TAG, "    Cleaning Lookup Maps:");
         }
 
+        invalidateResolutionCache();
         int numS = unregister_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = unregister_mime_types(f, "      Type: ");
@@ -335,6 +355,15 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
                 mTypedActionToFilter, packageName, printFilter, collapseDuplicates)) {
             curPrefix = sepPrefix;
         }
+        if (packageName == null && (mResolutionCacheHits != 0 || mResolutionCacheMisses != 0)) {
+            out.print(curPrefix); out.println("Resolution Cache:");
+            out.print(innerPrefix); out.print("size="); out.print(mResolutionCache.size());
+                    out.print(" generation="); out.println(mResolutionGeneration);
+            out.print(innerPrefix); out.print("hits="); out.print(mResolutionCacheHits);
+                    out.print(" misses="); out.print(mResolutionCacheMisses);
+                    out.print(" stale="); out.println(mResolutionCacheStale);
+            curPrefix = sepPrefix;
+        }
         return curPrefix == sepPrefix;
     }
 
@@ -409,6 +438,25 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             TAG, "Resolving type=" + resolvedType + " scheme=" + scheme
             + " defaultOnly=" + defaultOnly + " userId=" + userId + " of " + intent);
 
+        // Debug resolution wants to log every filter it looks at, so it always
+        // goes the slow way.
+        final ResolutionKey key = debug ? null : new ResolutionKey(intent.getAction(),
+                resolvedType, scheme, intent.getData(), intent.getCategories());
+        if (key != null) {
+            final ResolutionEntry<F> entry = mResolutionCache.get(key);
+            if (entry != null && entry.generation == mResolutionGeneration) {
+                mResolutionCacheHits++;
+                buildResolveListFromEntry(intent, defaultOnly, entry, finalList, userId);
+                filterResults(finalList);
+                sortResults(finalList);
+                return finalList;
+            }
+            if (entry != null) {
+                mResolutionCacheStale++;
+            }
+            mResolutionCacheMisses++;
+        }
+
         F[] firstTypeCut = null;
         F[] secondTypeCut = null;
         F[] thirdTypeCut = null;
@@ -469,21 +517,31 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
-        if (firstTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, firstTypeCut, finalList, userId);
-        }
-        if (secondTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, secondTypeCut, finalList, userId);
-        }
-        if (thirdTypeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, thirdTypeCut, finalList, userId);
-        }
-        if (schemeCut != null) {
-            buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
-                    scheme, schemeCut, finalList, userId);
+        if (key != null) {
+            final ResolutionEntry<F> entry = new ResolutionEntry<>(mResolutionGeneration);
+            collectMatches(intent, categories, resolvedType, scheme, firstTypeCut, entry);
+            collectMatches(intent, categories, resolvedType, scheme, secondTypeCut, entry);
+            collectMatches(intent, categories, resolvedType, scheme, thirdTypeCut, entry);
+            collectMatches(intent, categories, resolvedType, scheme, schemeCut, entry);
+            mResolutionCache.put(key.copy(), entry);
+            buildResolveListFromEntry(intent, defaultOnly, entry, finalList, userId);
+        } else {
+            if (firstTypeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, firstTypeCut, finalList, userId);
+            }
+            if (secondTypeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, secondTypeCut, finalList, userId);
+            }
+            if (thirdTypeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, thirdTypeCut, finalList, userId);
+            }
+            if (schemeCut != null) {
+                buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
+                        scheme, schemeCut, finalList, userId);
+            }
         }
         filterResults(finalList);
         sortResults(finalList);
@@ -823,6 +881,140 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
     }
 
+    /**
+     * Appends to <var>entry</var> every filter in <var>src</var> that matches the
+     * intent, along with its match quality.  Only {@link IntentFilter#match} is
+     * evaluated here; everything that depends on the caller or on package state
+     * is left to {@link #buildResolveListFromEntry}.
+     */
+    private void collectMatches(Intent intent, FastImmutableArraySet<String> categories,
+            String resolvedType, String scheme, F[] src, ResolutionEntry<F> entry) {
+        final String action = intent.getAction();
+        final Uri data = intent.getData();
+        final int N = src != null ? src.length : 0;
+        F filter;
+        for (int i=0; i<N && (filter=src[i]) != null; i++) {
+            final int match = filter.match(action, resolvedType, scheme, data, categories, TAG);
+            if (match >= 0) {
+                entry.add(filter, match);
+            }
+        }
+    }
+
+    /**
+     * Equivalent of {@link #buildResolveList} for filters whose match against
+     * the intent is already known.
+     */
+    private void buildResolveListFromEntry(Intent intent, boolean defaultOnly,
+            ResolutionEntry<F> entry, List<R> dest, int userId) {
+        final String packageName = intent.getPackage();
+        final boolean excludingStopped = intent.isExcludingStopped();
+
+        final int N = entry.filters.size();
+        for (int i=0; i<N; i++) {
+            final F filter = entry.filters.get(i);
+            if (excludingStopped && isFilterStopped(filter, userId)) {
+                continue;
+            }
+            if (packageName != null && !isPackageForFilter(packageName, filter)) {
+                continue;
+            }
+            if (!allowFilterResult(filter, dest)) {
+                continue;
+            }
+            if (!defaultOnly || filter.hasCategory(Intent.CATEGORY_DEFAULT)) {
+                final R oneResult = newResult(filter, entry.matches[i], userId);
+                if (oneResult != null) {
+                    dest.add(oneResult);
+                }
+            }
+        }
+    }
+
+    /**
+     * Key of {@link #mResolutionCache}: everything that {@link IntentFilter#match}
+     * looks at.  Flags, target package and user are deliberately not part of it,
+     * since they are applied to the cached matches on every query.
+     */
+    private static final class ResolutionKey {
+        final String action;
+        final String resolvedType;
+        final String scheme;
+        final Uri data;
+        final Set<String> categories;
+        final int hashCode;
+
+        ResolutionKey(String action, String resolvedType, String scheme, Uri data,
+                Set<String> categories) {
+            this.action = action;
+            this.resolvedType = resolvedType;
+            this.scheme = scheme;
+            this.data = data;
+            this.categories = categories;
+            int h = Objects.hashCode(action);
+            h = 31 * h + Objects.hashCode(resolvedType);
+            h = 31 * h + Objects.hashCode(scheme);
+            h = 31 * h + Objects.hashCode(data);
+            h = 31 * h + Objects.hashCode(categories);
+            hashCode = h;
+        }
+
+        /**
+         * Returns a key that does not share the (mutable) category set of the
+         * intent it was built from, suitable for storing in the cache.
+         */
+        ResolutionKey copy() {
+            return new ResolutionKey(action, resolvedType, scheme, data,
+                    categories != null ? new ArraySet<>(categories) : null);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ResolutionKey)) {
+                return false;
+            }
+            final ResolutionKey other = (ResolutionKey) o;
+            return hashCode == other.hashCode
+                    && Objects.equals(action, other.action)
+                    && Objects.equals(resolvedType, other.resolvedType)
+                    && Objects.equals(scheme, other.scheme)
+                    && Objects.equals(data, other.data)
+                    && Objects.equals(categories, other.categories);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    /**
+     * Filters that matched a {@link ResolutionKey}, in the order
+     * {@link #queryIntent} visits them.  Only valid while {@link #generation}
+     * equals {@link #mResolutionGeneration}.
+     */
+    private static final class ResolutionEntry<F> {
+        final int generation;
+        final ArrayList<F> filters = new ArrayList<>();
+        int[] matches = new int[4];
+
+        ResolutionEntry(int generation) {
+            this.generation = generation;
+        }
+
+        void add(F filter, int match) {
+            final int N = filters.size();
+            if (N == matches.length) {
+                matches = Arrays.copyOf(matches, (N*3)/2);
+            }
+            matches[N] = match;
+            filters.add(filter);
+        }
+    }
+
     // Sorts a List of IntentFilter objects into descending priority order.
     @SuppressWarnings("rawtypes")
     private static final Comparator mResolvePrioritySorter = new Comparator() {
@@ -875,4 +1067,16 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
      * All of the actions that have been registered and specified a MIME type.
      */
     private final ArrayMap<String, F[]> mTypedActionToFilter = new ArrayMap<String, F[]>();
+
+    /**
+     * Recently resolved queries and the filters that matched them.  Emptied, and
+     * {@link #mResolutionGeneration} bumped, whenever a filter is added or removed.
+     */
+    private final LruCache<ResolutionKey, ResolutionEntry<F>> mResolutionCache =
+            new LruCache<>(MAX_RESOLUTION_CACHE_SIZE);
+
+    private int mResolutionGeneration;
+    private long mResolutionCacheHits;
+    private long mResolutionCacheMisses;
+    private long mResolutionCacheStale;
 }
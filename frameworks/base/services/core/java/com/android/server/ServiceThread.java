@@ -19,6 +19,7 @@ package com.android.server;
 import android.os.HandlerThread;
 import android.os.Process;
 import android.os.StrictMode;
+import android.os.SystemProperties;
 
 /**
  * Special handler thread that we create for system services that require their own loopers.
@@ -26,11 +27,19 @@ import android.os.StrictMode;
 public class ServiceThread extends HandlerThread {
     private static final String TAG = "ServiceThread";
 
+    /**
+     * Give service loopers an indexed message queue; they are the ones that pile up
+     * thousands of delayed messages.
+     */
+    private static final boolean USE_INDEXED_MESSAGE_QUEUE =
+            SystemProperties.getBoolean("persist.sys.indexed_message_queue", false);
+
     private final boolean mAllowIo;
 
     public ServiceThread(String name, int priority, boolean allowIo) {
         super(name, priority);
         mAllowIo = allowIo;
+        setIndexedMessageQueue(USE_INDEXED_MESSAGE_QUEUE);
     }
 
     @Override
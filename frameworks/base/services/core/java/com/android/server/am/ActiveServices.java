@@ -1755,6 +1755,9 @@ public final class ActiveServices {
 
         final long origId = Binder.clearCallingIdentity();
         try {
+            final ArraySet<ProcessRecord> changedApps = ActivityManagerService.INCREMENTAL_OOM_ADJ
+                    ? new ArraySet<>() : null;
+            final int lruSeq = mAm.mLruSeq;
             while (clist.size() > 0) {
                 ConnectionRecord r = clist.get(0);
                 removeConnectionLocked(r, null, null);
@@ -1775,11 +1778,23 @@ public final class ActiveServices {
                                 r.binding.service.app.hasClientActivities
                                 || r.binding.service.app.treatLikeActivity, null);
                     }
-                    mAm.updateOomAdjLocked(r.binding.service.app, false);
+                    if (changedApps != null) {
+                        changedApps.add(r.binding.service.app);
+                    } else {
+                        mAm.updateOomAdjLocked(r.binding.service.app, false);
+                    }
                 }
             }
 
-            mAm.updateOomAdjLocked();
+            // Moving a process in the LRU list changes cached slots and trimming, which
+            // only a full update takes care of.
+            if (changedApps != null && !changedApps.isEmpty() && mAm.mLruSeq == lruSeq) {
+                for (int i = changedApps.size() - 1; i >= 0; i--) {
+                    mAm.updateOomAdjLocked(changedApps.valueAt(i));
+                }
+            } else {
+                mAm.updateOomAdjLocked();
+            }
 
         } finally {
             Binder.restoreCallingIdentity(origId);
@@ -21,6 +21,8 @@ import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Handler;
 import android.provider.Settings;
+import android.text.TextUtils;
+import android.util.ArraySet;
 import android.util.KeyValueListParser;
 import android.util.Slog;
 
@@ -68,6 +70,7 @@ final class ActivityManagerConstants extends ContentObserver {
     static final String KEY_BOUND_SERVICE_CRASH_MAX_RETRY = "service_crash_max_retry";
     static final String KEY_PROCESS_START_ASYNC = "process_start_async";
     static final String KEY_TOP_TO_FGS_GRACE_DURATION = "top_to_fgs_grace_duration";
+    static final String KEY_BROADCAST_COALESCE_ACTIONS = "broadcast_coalesce_actions";
 
     private static final int DEFAULT_MAX_CACHED_PROCESSES = 32;
     private static final long DEFAULT_BACKGROUND_SETTLE_TIME = 60*1000;
@@ -97,6 +100,7 @@ final class ActivityManagerConstants extends ContentObserver {
     private static final int DEFAULT_BOUND_SERVICE_CRASH_MAX_RETRY = 16;
     private static final boolean DEFAULT_PROCESS_START_ASYNC = true;
     private static final long DEFAULT_TOP_TO_FGS_GRACE_DURATION = 15 * 1000;
+    private static final String DEFAULT_BROADCAST_COALESCE_ACTIONS = "";
 
     // Maximum number of cached processes we will allow.
     public int MAX_CACHED_PROCESSES = DEFAULT_MAX_CACHED_PROCESSES;
@@ -212,6 +216,12 @@ final class ActivityManagerConstants extends ContentObserver {
     // this long.
     public long TOP_TO_FGS_GRACE_DURATION = DEFAULT_TOP_TO_FGS_GRACE_DURATION;
 
+    // Broadcast actions, separated by ':', for which a broadcast waiting in the ordered queue
+    // is superseded by an identical one from the same sender, as if it had been sent with
+    // FLAG_RECEIVER_REPLACE_PENDING.  Only broadcasts that were not sent ordered and have no
+    // result receiver are coalesced.
+    public ArraySet<String> BROADCAST_COALESCE_ACTIONS = new ArraySet<>();
+
     // Indicates whether the activity starts logging is enabled.
     // Controlled by Settings.Global.ACTIVITY_STARTS_LOGGING_ENABLED
     boolean mFlagActivityStartsLoggingEnabled;
@@ -355,11 +365,26 @@ final class ActivityManagerConstants extends ContentObserver {
                     DEFAULT_PROCESS_START_ASYNC);
             TOP_TO_FGS_GRACE_DURATION = mParser.getDurationMillis(KEY_TOP_TO_FGS_GRACE_DURATION,
                     DEFAULT_TOP_TO_FGS_GRACE_DURATION);
+            BROADCAST_COALESCE_ACTIONS = parseActions(mParser.getString(
+                    KEY_BROADCAST_COALESCE_ACTIONS, DEFAULT_BROADCAST_COALESCE_ACTIONS));
 
             updateMaxCachedProcesses();
         }
     }
 
+    private static ArraySet<String> parseActions(String value) {
+        final ArraySet<String> actions = new ArraySet<>();
+        if (!TextUtils.isEmpty(value)) {
+            for (String action : value.split(":")) {
+                action = action.trim();
+                if (!action.isEmpty()) {
+                    actions.add(action);
+                }
+            }
+        }
+        return actions;
+    }
+
     private void updateActivityStartsLoggingEnabled() {
         mFlagActivityStartsLoggingEnabled = Settings.Global.getInt(mResolver,
                 Settings.Global.ACTIVITY_STARTS_LOGGING_ENABLED, 0) == 1;
@@ -432,6 +457,8 @@ final class ActivityManagerConstants extends ContentObserver {
         pw.println(BG_START_TIMEOUT);
         pw.print("  "); pw.print(KEY_TOP_TO_FGS_GRACE_DURATION); pw.print("=");
         pw.println(TOP_TO_FGS_GRACE_DURATION);
+        pw.print("  "); pw.print(KEY_BROADCAST_COALESCE_ACTIONS); pw.print("=");
+        pw.println(TextUtils.join(":", BROADCAST_COALESCE_ACTIONS));
 
         pw.println();
         if (mOverrideMaxCachedProcesses >= 0) {
@@ -1003,6 +1003,12 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     final ArrayList<ProcessRecord> mLruProcesses = new ArrayList<ProcessRecord>();
 
+    /**
+     * Number of LRU index lookups that found ProcessRecord.lruIndex stale and had to scan
+     * mLruProcesses, for dumpsys.
+     */
+    long mLruIndexMisses;
+
     /**
      * Where in mLruProcesses that the processes hosting activities start.
      */
@@ -1568,6 +1574,21 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     int mAdjSeq = 0;
 
+    /**
+     * If set, {@link #updateOomAdjLocked(ProcessRecord)} only recomputes the processes whose
+     * importance can follow from the given one, instead of doing a full pass.
+     */
+    static final boolean INCREMENTAL_OOM_ADJ =
+            SystemProperties.getBoolean("persist.sys.am.incremental_oom_adj", false);
+
+    /**
+     * Oom adj pass statistics, for dumpsys.
+     */
+    long mFullOomAdjPasses;
+    long mIncrementalOomAdjPasses;
+    long mIncrementalOomAdjProcs;
+    long mIncrementalOomAdjFallbacks;
+
     /**
      * Current sequence id for process LRU updating.
      */
@@ -3773,7 +3794,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             return index;
         }
 
-        int lrui = mLruProcesses.lastIndexOf(app);
+        int lrui = getLruIndexLocked(app);
         if (lrui < 0) {
             Slog.wtf(TAG, "Adding dependent process " + app + " not on LRU list: "
                     + what + " " + obj + " from " + srcApp);
@@ -3798,9 +3819,46 @@ public class ActivityManagerService extends IActivityManager.Stub
         if (DEBUG_LRU) Slog.d(TAG_LRU, "Moving dep from " + lrui + " to " + index
                 + " in LRU list: " + app);
         mLruProcesses.add(index, app);
+        updateLruIndicesLocked(index, lrui);
         return index;
     }
 
+    /**
+     * Returns the position of <var>app</var> in mLruProcesses, or -1 if it is not there.
+     * This is normally answered by {@link ProcessRecord#lruIndex}, which is kept up to date
+     * by the code that reorders the list; a stale value is detected and fixed by a scan.
+     */
+    final int getLruIndexLocked(ProcessRecord app) {
+        final int index = app.lruIndex;
+        final int N = mLruProcesses.size();
+        if (index >= 0 && index < N && mLruProcesses.get(index) == app) {
+            return index;
+        }
+        // In the middle of a move, the process may have shifted by one.
+        if (index > 0 && index <= N && mLruProcesses.get(index - 1) == app) {
+            return app.lruIndex = index - 1;
+        }
+        if (index >= 0 && index + 1 < N && mLruProcesses.get(index + 1) == app) {
+            return app.lruIndex = index + 1;
+        }
+        mLruIndexMisses++;
+        final int lrui = mLruProcesses.lastIndexOf(app);
+        app.lruIndex = lrui;
+        return lrui;
+    }
+
+    /**
+     * Updates {@link ProcessRecord#lruIndex} of the processes between two positions of
+     * mLruProcesses, inclusive, after processes between them were moved.
+     */
+    private void updateLruIndicesLocked(int from, int to) {
+        final int start = Math.max(0, Math.min(from, to));
+        final int end = Math.min(mLruProcesses.size() - 1, Math.max(from, to));
+        for (int i = start; i <= end; i++) {
+            mLruProcesses.get(i).lruIndex = i;
+        }
+    }
+
     static void killProcessGroup(int uid, int pid) {
         if (sKillHandler != null) {
             sKillHandler.sendMessage(
@@ -3812,7 +3870,7 @@ public class ActivityManagerService extends IActivityManager.Stub
     }
 
     final void removeLruProcessLocked(ProcessRecord app) {
-        int lrui = mLruProcesses.lastIndexOf(app);
+        int lrui = getLruIndexLocked(app);
         if (lrui >= 0) {
             if (!app.killed) {
                 if (app.persistent) {
@@ -3834,6 +3892,8 @@ public class ActivityManagerService extends IActivityManager.Stub
                 mLruProcessServiceStart--;
             }
             mLruProcesses.remove(lrui);
+            app.lruIndex = -1;
+            updateLruIndicesLocked(lrui, mLruProcesses.size() - 1);
         }
     }
 
@@ -3870,7 +3930,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             }
         }
 
-        int lrui = mLruProcesses.lastIndexOf(app);
+        int lrui = getLruIndexLocked(app);
 
         if (app.persistent && lrui >= 0) {
             // We don't care about the position of persistent processes, as long as
@@ -3941,6 +4001,9 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
         */
 
+        // The range of positions whose process may have changed, to update their lruIndex.
+        int movedStart;
+        int movedEnd;
         int nextIndex;
         if (hasActivity) {
             final int N = mLruProcesses.size();
@@ -3952,6 +4015,8 @@ public class ActivityManagerService extends IActivityManager.Stub
                 if (DEBUG_LRU) Slog.d(TAG_LRU,
                         "Adding to second-top of LRU activity list: " + app);
                 mLruProcesses.add(N - 1, app);
+                movedStart = Math.min(mLruProcessActivityStart, N - 1);
+                movedEnd = N;
                 // To keep it from spamming the LRU list (by making a bunch of clients),
                 // we will push down any other entries owned by the app.
                 final int uid = app.info.uid;
@@ -3979,12 +4044,14 @@ public class ActivityManagerService extends IActivityManager.Stub
                 // Process has activities, put it at the very tipsy-top.
                 if (DEBUG_LRU) Slog.d(TAG_LRU, "Adding to top of LRU activity list: " + app);
                 mLruProcesses.add(app);
+                movedStart = movedEnd = N;
             }
             nextIndex = mLruProcessServiceStart;
         } else if (hasService) {
             // Process has services, put it at the top of the service list.
             if (DEBUG_LRU) Slog.d(TAG_LRU, "Adding to top of LRU service list: " + app);
             mLruProcesses.add(mLruProcessActivityStart, app);
+            movedStart = movedEnd = mLruProcessActivityStart;
             nextIndex = mLruProcessServiceStart;
             mLruProcessActivityStart++;
         } else  {
@@ -3993,7 +4060,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             if (client != null) {
                 // If there is a client, don't allow the process to be moved up higher
                 // in the list than that client.
-                int clientIndex = mLruProcesses.lastIndexOf(client);
+                int clientIndex = getLruIndexLocked(client);
                 if (DEBUG_LRU && clientIndex < 0) Slog.d(TAG_LRU, "Unknown client " + client
                         + " when updating " + app);
                 if (clientIndex <= lrui) {
@@ -4007,10 +4074,18 @@ public class ActivityManagerService extends IActivityManager.Stub
             }
             if (DEBUG_LRU) Slog.d(TAG_LRU, "Adding at " + index + " of LRU list: " + app);
             mLruProcesses.add(index, app);
+            movedStart = movedEnd = index;
             nextIndex = index-1;
             mLruProcessActivityStart++;
             mLruProcessServiceStart++;
         }
+        if (lrui >= 0) {
+            // Everything between the old and new position shifted by one.
+            updateLruIndicesLocked(Math.min(movedStart, lrui), Math.max(movedEnd, lrui));
+        } else {
+            // Everything after the new position shifted up by one.
+            updateLruIndicesLocked(movedStart, mLruProcesses.size() - 1);
+        }
 
         // If the app is currently using a content provider or service,
         // bump those processes as well.
@@ -17289,7 +17364,12 @@ public class ActivityManagerService extends IActivityManager.Stub
                         pw.println("");
                 pw.println("  mGoingToSleep=" + mStackSupervisor.mGoingToSleep);
                 pw.println("  mLaunchingActivity=" + mStackSupervisor.mLaunchingActivity);
-                pw.println("  mAdjSeq=" + mAdjSeq + " mLruSeq=" + mLruSeq);
+                pw.println("  mAdjSeq=" + mAdjSeq + " mLruSeq=" + mLruSeq
+                        + " mLruIndexMisses=" + mLruIndexMisses);
+                pw.println("  mFullOomAdjPasses=" + mFullOomAdjPasses
+                        + " mIncrementalOomAdjPasses=" + mIncrementalOomAdjPasses
+                        + " (" + mIncrementalOomAdjProcs + " procs, "
+                        + mIncrementalOomAdjFallbacks + " fell back to full)");
                 pw.println("  mNumNonCachedProcs=" + mNumNonCachedProcs
                         + " (" + mLruProcesses.size() + " total)"
                         + " mNumCachedHiddenProcs=" + mNumCachedHiddenProcs
@@ -21968,8 +22048,12 @@ public class ActivityManagerService extends IActivityManager.Stub
             if (DEBUG_BROADCAST) Slog.i(TAG_BROADCAST,
                     "Enqueueing broadcast " + r.intent.getAction());
 
-            final BroadcastRecord oldRecord =
+            BroadcastRecord oldRecord =
                     replacePending ? queue.replaceOrderedBroadcastLocked(r) : null;
+            if (oldRecord == null
+                    && mConstants.BROADCAST_COALESCE_ACTIONS.contains(intent.getAction())) {
+                oldRecord = queue.coalesceOrderedBroadcastLocked(r);
+            }
             if (oldRecord != null) {
                 // Replaced, fire the result-to receiver.
                 if (oldRecord.resultTo != null) {
@@ -25104,8 +25188,93 @@ public class ActivityManagerService extends IActivityManager.Stub
         return success;
     }
 
+    /**
+     * Update OomAdj for a process whose bindings or state changed, and for the processes
+     * it is a client of, directly or through other processes, as far as their adj
+     * changes.  Falls back to a full update if incremental updates are disabled, if
+     * a process moves in or out of the cached range, since cached adj values are handed
+     * out by LRU position across all processes, or if a process's state change could
+     * change the state of its uid, since uid state is only computed and dispatched to uid
+     * observers by the full update.
+     * @param app The process that changed
+     */
+    @GuardedBy("this")
+    final void updateOomAdjLocked(ProcessRecord app) {
+        if (!INCREMENTAL_OOM_ADJ || app == null || app.thread == null) {
+            updateOomAdjLocked();
+            return;
+        }
+        final ActivityRecord TOP_ACT = resumedAppLocked();
+        final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
+        final long now = SystemClock.uptimeMillis();
+
+        final ArrayList<ProcessRecord> queue = new ArrayList<>();
+        final ArraySet<ProcessRecord> visited = new ArraySet<>();
+        queue.add(app);
+        visited.add(app);
+        for (int i = 0; i < queue.size(); i++) {
+            final ProcessRecord proc = queue.get(i);
+            if (proc.thread == null) {
+                continue;
+            }
+            final boolean wasCached = proc.cached;
+            final int oldAdj = proc.curRawAdj;
+            final int oldProcState = proc.curProcState;
+            final int oldSchedGroup = proc.curSchedGroup;
+
+            mAdjSeq++;
+            final int cachedAdj = proc.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
+                    ? proc.curRawAdj : ProcessList.UNKNOWN_ADJ;
+            updateOomAdjLocked(proc, cachedAdj, TOP_APP, false, now);
+            if (wasCached != proc.cached || proc.curRawAdj == ProcessList.UNKNOWN_ADJ
+                    || mayChangeUidProcStateLocked(proc, oldProcState)) {
+                mIncrementalOomAdjFallbacks++;
+                updateOomAdjLocked();
+                return;
+            }
+            if (oldAdj == proc.curRawAdj && oldProcState == proc.curProcState
+                    && oldSchedGroup == proc.curSchedGroup) {
+                // Nothing that its services and providers derive their state from changed.
+                continue;
+            }
+            for (int j = proc.connections.size() - 1; j >= 0; j--) {
+                final ProcessRecord service = proc.connections.valueAt(j).binding.service.app;
+                if (service != null && visited.add(service)) {
+                    queue.add(service);
+                }
+            }
+            for (int j = proc.conProviders.size() - 1; j >= 0; j--) {
+                final ProcessRecord provider = proc.conProviders.get(j).provider.proc;
+                if (provider != null && visited.add(provider)) {
+                    queue.add(provider);
+                }
+            }
+        }
+        mIncrementalOomAdjPasses++;
+        mIncrementalOomAdjProcs += queue.size();
+    }
+
+    /**
+     * Returns whether <var>proc</var> moving from <var>oldProcState</var> to its current
+     * process state could change the process state of its uid, which is the most important
+     * state of any of the uid's processes.
+     */
+    @GuardedBy("this")
+    private boolean mayChangeUidProcStateLocked(ProcessRecord proc, int oldProcState) {
+        if (proc.curProcState == oldProcState) {
+            return false;
+        }
+        final UidRecord uidRec = proc.uidRecord;
+        if (uidRec == null) {
+            return true;
+        }
+        // It now sets the uid's state, or it may have been the process that did.
+        return proc.curProcState < uidRec.curProcState || oldProcState <= uidRec.curProcState;
+    }
+
     @GuardedBy("this")
     final void updateOomAdjLocked() {
+        mFullOomAdjPasses++;
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
         final long now = SystemClock.uptimeMillis();
@@ -47,7 +47,9 @@ import android.os.Message;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
+import android.util.ArrayMap;
 import android.util.EventLog;
 import android.util.Slog;
 import android.util.TimeUtils;
@@ -70,6 +72,13 @@ public final class BroadcastQueue {
     static final int MAX_BROADCAST_SUMMARY_HISTORY
             = ActivityManager.isLowRamDeviceStatic() ? 25 : 300;
 
+    /**
+     * Deliver a parallel broadcast to all registered receivers in one process with a single
+     * scheduleRegisteredReceivers() call, instead of one call per receiver.
+     */
+    static final boolean BATCH_PARALLEL_DELIVERY =
+            SystemProperties.getBoolean("persist.sys.am.batch_parallel_broadcasts", false);
+
     final ActivityManagerService mService;
 
     /**
@@ -97,6 +106,25 @@ public final class BroadcastQueue {
      */
     final ArrayList<BroadcastRecord> mParallelBroadcasts = new ArrayList<>();
 
+    /**
+     * While a parallel broadcast is being dispatched with {@link #BATCH_PARALLEL_DELIVERY},
+     * the registered receivers it still has to be sent to, by hosting process; null
+     * otherwise.
+     */
+    ArrayMap<ProcessRecord, ArrayList<IBinder>> mParallelBatch;
+    private final ArrayMap<ProcessRecord, ArrayList<IBinder>> mParallelBatchStorage =
+            new ArrayMap<>();
+
+    // Stats of parallel broadcast dispatch.  Receivers are those actually delivered to; the
+    // difference between them and binder calls is the calls saved by batching.
+    long mParallelDispatchCount;
+    long mParallelReceiverCount;
+    long mParallelBinderCalls;
+    long mParallelDispatchTotalUs;
+    long mParallelDispatchMaxUs;
+    long mParallelQueueTotalMs;
+    long mParallelQueueMaxMs;
+
     /**
      * List of all active broadcasts that are to be executed one at a time.
      * The object at the top of the list is the currently activity broadcasts;
@@ -106,6 +134,19 @@ public final class BroadcastQueue {
      */
     final ArrayList<BroadcastRecord> mOrderedBroadcasts = new ArrayList<>();
 
+    /**
+     * The records in mOrderedBroadcasts behind its head, keyed by user and action, so that
+     * a broadcast superseding one of them can find it without scanning the whole queue.
+     * The head is not indexed since it has started dispatching and cannot be replaced.
+     */
+    final ArrayMap<String, ArrayList<BroadcastRecord>> mWaitingOrderedBroadcasts =
+            new ArrayMap<>();
+
+    // Ordered queue statistics, for dumpsys.
+    int mMaxOrderedDepth;
+    long mOrderedReplacedCount;
+    long mOrderedCoalescedCount;
+
     /**
      * Historical data of past broadcasts, for debugging.  This is a ring buffer
      * whose last element is at mHistoryNext.
@@ -219,10 +260,44 @@ public final class BroadcastQueue {
     }
 
     public void enqueueOrderedBroadcastLocked(BroadcastRecord r) {
+        if (!mOrderedBroadcasts.isEmpty()) {
+            final String key = waitingKey(r);
+            ArrayList<BroadcastRecord> waiting = mWaitingOrderedBroadcasts.get(key);
+            if (waiting == null) {
+                waiting = new ArrayList<>(2);
+                mWaitingOrderedBroadcasts.put(key, waiting);
+            }
+            waiting.add(r);
+        }
         mOrderedBroadcasts.add(r);
+        mMaxOrderedDepth = Math.max(mMaxOrderedDepth, mOrderedBroadcasts.size());
         enqueueBroadcastHelper(r);
     }
 
+    private static String waitingKey(BroadcastRecord r) {
+        return r.userId + ":" + r.intent.getAction();
+    }
+
+    /**
+     * Called when the head of mOrderedBroadcasts is removed, to take the record that
+     * becomes the new head out of the waiting index.
+     */
+    private void removeOrderedHeadLocked() {
+        mOrderedBroadcasts.remove(0);
+        if (mOrderedBroadcasts.isEmpty()) {
+            return;
+        }
+        final BroadcastRecord head = mOrderedBroadcasts.get(0);
+        final String key = waitingKey(head);
+        final ArrayList<BroadcastRecord> waiting = mWaitingOrderedBroadcasts.get(key);
+        if (waiting != null) {
+            waiting.remove(head);
+            if (waiting.isEmpty()) {
+                mWaitingOrderedBroadcasts.remove(key);
+            }
+        }
+    }
+
     /**
      * Don't call this method directly; call enqueueParallelBroadcastLocked or
      * enqueueOrderedBroadcastLocked.
@@ -250,7 +325,56 @@ public final class BroadcastQueue {
      * the old one.
      */
     public final BroadcastRecord replaceOrderedBroadcastLocked(BroadcastRecord r) {
-        return replaceBroadcastLocked(mOrderedBroadcasts, r, "ORDERED");
+        final BroadcastRecord old = replaceWaitingOrderedBroadcastLocked(r, false);
+        if (old != null) {
+            mOrderedReplacedCount++;
+        }
+        return old;
+    }
+
+    /**
+     * Like {@link #replaceOrderedBroadcastLocked}, for broadcasts whose action is in
+     * {@link ActivityManagerConstants#BROADCAST_COALESCE_ACTIONS}.  Only replaces a queued
+     * broadcast sent by the same uid, and only if neither of the two was sent ordered or
+     * asked for a result, since nobody is then told that the old one was dropped.
+     */
+    public final BroadcastRecord coalesceOrderedBroadcastLocked(BroadcastRecord r) {
+        if (r.ordered || r.resultTo != null) {
+            return null;
+        }
+        final BroadcastRecord old = replaceWaitingOrderedBroadcastLocked(r, true);
+        if (old != null) {
+            mOrderedCoalescedCount++;
+        }
+        return old;
+    }
+
+    private BroadcastRecord replaceWaitingOrderedBroadcastLocked(BroadcastRecord r,
+            boolean coalesce) {
+        final ArrayList<BroadcastRecord> waiting = mWaitingOrderedBroadcasts.get(waitingKey(r));
+        if (waiting == null) {
+            return null;
+        }
+        final Intent intent = r.intent;
+        for (int i = waiting.size() - 1; i >= 0; i--) {
+            final BroadcastRecord old = waiting.get(i);
+            if (!intent.filterEquals(old.intent)) {
+                continue;
+            }
+            if (coalesce && (old.ordered || old.resultTo != null
+                    || old.callingUid != r.callingUid)) {
+                continue;
+            }
+            if (DEBUG_BROADCAST) {
+                Slog.v(TAG_BROADCAST, "***** DROPPING ORDERED [" + mQueueName + "]: " + intent);
+            }
+            // Records are compared by identity here, which is much cheaper than matching
+            // the intent of every queued record.
+            mOrderedBroadcasts.set(mOrderedBroadcasts.lastIndexOf(old), r);
+            waiting.set(i, r);
+            return old;
+        }
+        return null;
     }
 
     private BroadcastRecord replaceBroadcastLocked(ArrayList<BroadcastRecord> queue,
@@ -517,6 +641,60 @@ public final class BroadcastQueue {
         }
     }
 
+    /**
+     * Sends the parallel broadcast <var>r</var> to the receivers collected in
+     * {@link #mParallelBatchStorage}, with one call per process.
+     *
+     * @return The number of calls made.
+     */
+    private int sendParallelBatchLocked(BroadcastRecord r) {
+        final ArrayMap<ProcessRecord, ArrayList<IBinder>> batch = mParallelBatchStorage;
+        final int size = batch.size();
+        for (int i = 0; i < size; i++) {
+            final ProcessRecord app = batch.keyAt(i);
+            final ArrayList<IBinder> receivers = batch.valueAt(i);
+            try {
+                if (receivers.size() == 1) {
+                    performReceiveLocked(app, IIntentReceiver.Stub.asInterface(receivers.get(0)),
+                            new Intent(r.intent), r.resultCode, r.resultData, r.resultExtras,
+                            r.ordered, r.initialSticky, r.userId);
+                } else if (app.thread != null) {
+                    try {
+                        app.thread.scheduleRegisteredReceivers(receivers, new Intent(r.intent),
+                                r.resultCode, r.resultData, r.resultExtras, r.ordered,
+                                r.initialSticky, r.userId, app.repProcState);
+                    } catch (RemoteException ex) {
+                        // Same treatment as performReceiveLocked() gives a failed call.
+                        Slog.w(TAG, "Can't deliver broadcast to " + app.processName
+                                + " (pid " + app.pid + "). Crashing it.");
+                        app.scheduleCrash("can't deliver broadcast");
+                        throw ex;
+                    }
+                } else {
+                    throw new RemoteException("app.thread must not be null");
+                }
+            } catch (RemoteException e) {
+                Slog.w(TAG, "Failure sending broadcast " + r.intent + " to "
+                        + receivers.size() + " receivers in " + app, e);
+            }
+        }
+        batch.clear();
+        return size;
+    }
+
+    private void noteParallelDispatchLocked(BroadcastRecord r, int receiverCount,
+            int binderCalls, long dispatchStartNanos) {
+        final long dispatchUs = (SystemClock.elapsedRealtimeNanos() - dispatchStartNanos) / 1000;
+        final long queuedMs = Math.max(0, r.dispatchClockTime - r.enqueueClockTime);
+        mParallelDispatchCount++;
+        mParallelReceiverCount += receiverCount;
+        mParallelBinderCalls += binderCalls;
+        mParallelDispatchTotalUs += dispatchUs;
+        mParallelDispatchMaxUs = Math.max(mParallelDispatchMaxUs, dispatchUs);
+        mParallelQueueTotalMs += queuedMs;
+        mParallelQueueMaxMs = Math.max(mParallelQueueMaxMs, queuedMs);
+    }
+
     private void deliverToRegisteredReceiverLocked(BroadcastRecord r,
             BroadcastFilter filter, boolean ordered, int index) {
         boolean skip = false;
@@ -702,6 +880,14 @@ public final class BroadcastQueue {
                 if (ordered) {
                     skipReceiverLocked(r);
                 }
+            } else if (mParallelBatch != null && !ordered
+                    && filter.receiverList.app != null) {
+                ArrayList<IBinder> receivers = mParallelBatch.get(filter.receiverList.app);
+                if (receivers == null) {
+                    receivers = new ArrayList<>();
+                    mParallelBatch.put(filter.receiverList.app, receivers);
+                }
+                receivers.add(filter.receiverList.receiver.asBinder());
             } else {
                 performReceiveLocked(filter.receiverList.app, filter.receiverList.receiver,
                         new Intent(r.intent), r.resultCode, r.resultData,
@@ -858,13 +1044,27 @@ public final class BroadcastQueue {
             final int N = r.receivers.size();
             if (DEBUG_BROADCAST_LIGHT) Slog.v(TAG_BROADCAST, "Processing parallel broadcast ["
                     + mQueueName + "] " + r);
+            final long dispatchStart = SystemClock.elapsedRealtimeNanos();
+            if (BATCH_PARALLEL_DELIVERY) {
+                mParallelBatch = mParallelBatchStorage;
+            }
+            int delivered = 0;
             for (int i=0; i<N; i++) {
                 Object target = r.receivers.get(i);
                 if (DEBUG_BROADCAST)  Slog.v(TAG_BROADCAST,
                         "Delivering non-ordered on [" + mQueueName + "] to registered "
                         + target + ": " + r);
                 deliverToRegisteredReceiverLocked(r, (BroadcastFilter)target, false, i);
+                if (r.delivery[i] == BroadcastRecord.DELIVERY_DELIVERED) {
+                    delivered++;
+                }
+            }
+            int binderCalls = delivered;
+            if (mParallelBatch != null) {
+                mParallelBatch = null;
+                binderCalls = sendParallelBatchLocked(r);
             }
+            noteParallelDispatchLocked(r, delivered, binderCalls, dispatchStart);
             addBroadcastToHistoryLocked(r);
             if (DEBUG_BROADCAST_LIGHT) Slog.v(TAG_BROADCAST, "Done with parallel broadcast ["
                     + mQueueName + "] " + r);
@@ -996,7 +1196,7 @@ public final class BroadcastQueue {
                     mService.addBroadcastStatLocked(r.intent.getAction(), r.callerPackage,
                             r.manifestCount, r.manifestSkipCount, r.finishTime-r.dispatchTime);
                 }
-                mOrderedBroadcasts.remove(0);
+                removeOrderedHeadLocked();
                 r = null;
                 looped = true;
                 continue;
@@ -1717,6 +1917,37 @@ public final class BroadcastQueue {
             }
         }
 
+        if (dumpPackage == null && mParallelDispatchCount > 0) {
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            pw.print("  Parallel dispatch [" + mQueueName + "]: batched=");
+            pw.println(BATCH_PARALLEL_DELIVERY);
+            pw.print("    broadcasts="); pw.print(mParallelDispatchCount);
+            pw.print(" receivers="); pw.print(mParallelReceiverCount);
+            pw.print(" binderCalls="); pw.print(mParallelBinderCalls);
+            pw.print(" saved="); pw.println(mParallelReceiverCount - mParallelBinderCalls);
+            pw.print("    dispatch avg=");
+            pw.print(mParallelDispatchTotalUs / mParallelDispatchCount);
+            pw.print("us max="); pw.print(mParallelDispatchMaxUs);
+            pw.print("us, queued avg="); pw.print(mParallelQueueTotalMs / mParallelDispatchCount);
+            pw.print("ms max="); pw.print(mParallelQueueMaxMs); pw.println("ms");
+        }
+
+        if (dumpPackage == null && mMaxOrderedDepth > 0) {
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            pw.print("  Ordered queue [" + mQueueName + "]: depth=");
+            pw.print(mOrderedBroadcasts.size());
+            pw.print(" max="); pw.print(mMaxOrderedDepth);
+            pw.print(" waitingKeys="); pw.println(mWaitingOrderedBroadcasts.size());
+            pw.print("    replaced="); pw.print(mOrderedReplacedCount);
+            pw.print(" coalesced="); pw.println(mOrderedCoalescedCount);
+        }
+
         int i;
         boolean printed = false;
 
@@ -152,6 +152,7 @@ final class ProcessRecord {
     int completedAdjSeq;        // Sequence id for identifying oom_adj assignment cycles
     boolean containsCycle;      // Whether this app has encountered a cycle in the most recent update
     int lruSeq;                 // Sequence id for identifying LRU update cycles
+    int lruIndex = -1;          // Position in mLruProcesses; checked before use
     CompatibilityInfo compat;   // last used compatibility mode
     IBinder.DeathRecipient deathRecipient; // Who is watching for the death.
     ActiveInstrumentation instr;// Set to currently active instrumentation running in process
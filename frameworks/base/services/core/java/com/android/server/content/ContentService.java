@@ -53,9 +53,11 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ShellCallback;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.Pair;
 import android.util.Slog;
@@ -63,6 +65,7 @@ import android.util.SparseArray;
 import android.util.SparseIntArray;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.DumpUtils;
 import com.android.internal.util.IndentingPrintWriter;
@@ -132,6 +135,36 @@ public final class ContentService extends IContentService.Stub {
 
     private final ObserverNode mRootNode = new ObserverNode("");
 
+    /**
+     * How long notifications for an observer are held so that they can be delivered together
+     * in one {@link IContentObserver#onChangeBatch} call, or 0 to deliver each notification
+     * as it arrives.
+     */
+    private final long mNotifyBatchMs =
+            Math.max(0, SystemProperties.getLong("persist.sys.content.notify_batch_ms", 0));
+
+    /** Most URIs sent in one batched callback, to stay well clear of the binder size limit. */
+    private static final int MAX_URIS_PER_BATCH = 500;
+
+    /** Batched notifications waiting to be delivered, by observer binder. */
+    @GuardedBy("mPendingNotifies")
+    private final ArrayMap<IBinder, ArrayList<PendingNotify>> mPendingNotifies =
+            new ArrayMap<>();
+    @GuardedBy("mPendingNotifies")
+    private boolean mNotifyFlushScheduled;
+    @GuardedBy("mPendingNotifies")
+    private long mNotifyRequestCount;
+    @GuardedBy("mPendingNotifies")
+    private long mNotifyCoalescedCount;
+    @GuardedBy("mPendingNotifies")
+    private long mNotifyDuplicateCount;
+    @GuardedBy("mPendingNotifies")
+    private long mNotifyCallbackCount;
+    @GuardedBy("mPendingNotifies")
+    private int mMaxNotifyBatchSize;
+
+    private final Runnable mFlushNotifiesRunnable = this::flushPendingNotifies;
+
     private SyncManager mSyncManager = null;
     private final Object mSyncManagerLock = new Object();
 
@@ -237,6 +270,22 @@ public final class ContentService extends IContentService.Stub {
                 pw.print(" Total number of nodes: "); pw.println(counts[0]);
                 pw.print(" Total number of observers: "); pw.println(counts[1]);
             }
+            pw.println();
+            synchronized (mPendingNotifies) {
+                pw.print("Notify batching: ");
+                if (mNotifyBatchMs > 0) {
+                    pw.print(mNotifyBatchMs); pw.println("ms window");
+                } else {
+                    pw.println("disabled");
+                }
+                pw.print(" Notifications: "); pw.print(mNotifyRequestCount);
+                pw.print(", coalesced: "); pw.print(mNotifyCoalescedCount);
+                pw.print(" (duplicate uris dropped: "); pw.print(mNotifyDuplicateCount);
+                pw.print("), callbacks: "); pw.print(mNotifyCallbackCount);
+                pw.print(", max uris/batch: "); pw.println(mMaxNotifyBatchSize);
+                pw.print(" Observers with pending notifications: ");
+                pw.println(mPendingNotifies.size());
+            }
 
             synchronized (mCache) {
                 pw.println();
@@ -425,26 +474,30 @@ public final class ContentService extends IContentService.Stub {
                 mRootNode.collectObserversLocked(uri, 0, observer, observerWantsSelfNotifications,
                         flags, userHandle, calls);
             }
-            final int numCalls = calls.size();
-            for (int i=0; i<numCalls; i++) {
-                ObserverCall oc = calls.get(i);
-                try {
-                    oc.mObserver.onChange(oc.mSelfChange, uri, userHandle);
-                    if (DEBUG) Slog.d(TAG, "Notified " + oc.mObserver + " of " + "update at "
-                            + uri);
-                } catch (RemoteException ex) {
-                    synchronized (mRootNode) {
-                        Log.w(TAG, "Found dead observer, removing");
-                        IBinder binder = oc.mObserver.asBinder();
-                        final ArrayList<ObserverNode.ObserverEntry> list
-                                = oc.mNode.mObservers;
-                        int numList = list.size();
-                        for (int j=0; j<numList; j++) {
-                            ObserverNode.ObserverEntry oe = list.get(j);
-                            if (oe.observer.asBinder() == binder) {
-                                list.remove(j);
-                                j--;
-                                numList--;
+            if (mNotifyBatchMs > 0) {
+                enqueueNotifies(calls, uri, userHandle);
+            } else {
+                final int numCalls = calls.size();
+                for (int i=0; i<numCalls; i++) {
+                    ObserverCall oc = calls.get(i);
+                    try {
+                        oc.mObserver.onChange(oc.mSelfChange, uri, userHandle);
+                        if (DEBUG) Slog.d(TAG, "Notified " + oc.mObserver + " of " + "update at "
+                                + uri);
+                    } catch (RemoteException ex) {
+                        synchronized (mRootNode) {
+                            Log.w(TAG, "Found dead observer, removing");
+                            IBinder binder = oc.mObserver.asBinder();
+                            final ArrayList<ObserverNode.ObserverEntry> list
+                                    = oc.mNode.mObservers;
+                            int numList = list.size();
+                            for (int j=0; j<numList; j++) {
+                                ObserverNode.ObserverEntry oe = list.get(j);
+                                if (oe.observer.asBinder() == binder) {
+                                    list.remove(j);
+                                    j--;
+                                    numList--;
+                                }
                             }
                         }
                     }
@@ -467,6 +520,96 @@ public final class ContentService extends IContentService.Stub {
         }
     }
 
+    /**
+     * Queues the notification of <var>uri</var> for each observer in <var>calls</var>,
+     * merging it into any notification already waiting for the same observer.
+     */
+    private void enqueueNotifies(ArrayList<ObserverCall> calls, Uri uri, int userHandle) {
+        synchronized (mPendingNotifies) {
+            final int numCalls = calls.size();
+            for (int i = 0; i < numCalls; i++) {
+                final ObserverCall oc = calls.get(i);
+                mNotifyRequestCount++;
+                final IBinder binder = oc.mObserver.asBinder();
+                ArrayList<PendingNotify> pending = mPendingNotifies.get(binder);
+                if (pending == null) {
+                    pending = new ArrayList<>(1);
+                    mPendingNotifies.put(binder, pending);
+                }
+                PendingNotify batch = null;
+                for (int j = 0; j < pending.size(); j++) {
+                    final PendingNotify pn = pending.get(j);
+                    if (pn.mSelfChange == oc.mSelfChange && pn.mUserHandle == userHandle) {
+                        batch = pn;
+                        break;
+                    }
+                }
+                if (batch == null) {
+                    batch = new PendingNotify(oc.mObserver, oc.mSelfChange, userHandle);
+                    pending.add(batch);
+                } else {
+                    mNotifyCoalescedCount++;
+                }
+                if (batch.mUriSet.add(uri)) {
+                    batch.mUris.add(uri);
+                } else {
+                    mNotifyDuplicateCount++;
+                }
+            }
+            if (numCalls > 0 && !mNotifyFlushScheduled) {
+                BackgroundThread.getHandler().postDelayed(mFlushNotifiesRunnable,
+                        mNotifyBatchMs);
+                mNotifyFlushScheduled = true;
+            }
+        }
+    }
+
+    private void flushPendingNotifies() {
+        final ArrayList<PendingNotify> batches = new ArrayList<>();
+        synchronized (mPendingNotifies) {
+            mNotifyFlushScheduled = false;
+            for (int i = 0; i < mPendingNotifies.size(); i++) {
+                batches.addAll(mPendingNotifies.valueAt(i));
+            }
+            mPendingNotifies.clear();
+        }
+
+        int callbacks = 0;
+        int maxBatchSize = 0;
+        for (int i = 0; i < batches.size(); i++) {
+            final PendingNotify batch = batches.get(i);
+            final int numUris = batch.mUris.size();
+            maxBatchSize = Math.max(maxBatchSize, numUris);
+            for (int start = 0; start < numUris; start += MAX_URIS_PER_BATCH) {
+                final int end = Math.min(numUris, start + MAX_URIS_PER_BATCH);
+                try {
+                    if (end - start == 1) {
+                        batch.mObserver.onChange(batch.mSelfChange, batch.mUris.get(start),
+                                batch.mUserHandle);
+                    } else {
+                        batch.mObserver.onChangeBatch(batch.mSelfChange,
+                                batch.mUris.subList(start, end).toArray(new Uri[end - start]),
+                                batch.mUserHandle);
+                    }
+                    callbacks++;
+                    if (DEBUG) Slog.d(TAG, "Notified " + batch.mObserver + " of "
+                            + (end - start) + " updates");
+                } catch (RemoteException ex) {
+                    synchronized (mRootNode) {
+                        Log.w(TAG, "Found dead observer, removing");
+                        mRootNode.removeObserverLocked(batch.mObserver);
+                    }
+                    break;
+                }
+            }
+        }
+
+        synchronized (mPendingNotifies) {
+            mNotifyCallbackCount += callbacks;
+            mMaxNotifyBatchSize = Math.max(mMaxNotifyBatchSize, maxBatchSize);
+        }
+    }
+
     private int checkUriPermission(Uri uri, int pid, int uid, int modeFlags, int userHandle) {
         try {
             return ActivityManager.getService().checkUriPermission(
@@ -503,6 +646,24 @@ public final class ContentService extends IContentService.Stub {
         }
     }
 
+    /**
+     * Notifications waiting to be delivered to one observer, for one value of selfChange
+     * and one user.
+     */
+    private static final class PendingNotify {
+        final IContentObserver mObserver;
+        final boolean mSelfChange;
+        final int mUserHandle;
+        final ArrayList<Uri> mUris = new ArrayList<>();
+        final ArraySet<Uri> mUriSet = new ArraySet<>();
+
+        PendingNotify(IContentObserver observer, boolean selfChange, int userHandle) {
+            mObserver = observer;
+            mSelfChange = selfChange;
+            mUserHandle = userHandle;
+        }
+    }
+
     @Override
     public void requestSync(Account account, String authority, Bundle extras) {
         Bundle.setDefusable(extras, true);
@@ -1371,7 +1532,8 @@ public final class ContentService extends IContentService.Stub {
         public static final int DELETE_TYPE = 2;
 
         private String mName;
-        private ArrayList<ObserverNode> mChildren = new ArrayList<ObserverNode>();
+        // Keyed by segment name, so descending the tree doesn't scan every child.
+        private ArrayMap<String, ObserverNode> mChildren = new ArrayMap<String, ObserverNode>();
         private ArrayList<ObserverEntry> mObservers = new ArrayList<ObserverEntry>();
 
         public ObserverNode(String name) {
@@ -1403,7 +1565,7 @@ public final class ContentService extends IContentService.Stub {
                 }
                 for (int i=0; i<mChildren.size(); i++) {
                     counts[0]++;
-                    mChildren.get(i).dumpLocked(fd, pw, args, innerName, prefix,
+                    mChildren.valueAt(i).dumpLocked(fd, pw, args, innerName, prefix,
                             counts, pidCounts);
                 }
             }
@@ -1451,19 +1613,12 @@ public final class ContentService extends IContentService.Stub {
             if (segment == null) {
                 throw new IllegalArgumentException("Invalid Uri (" + uri + ") used for observer");
             }
-            int N = mChildren.size();
-            for (int i = 0; i < N; i++) {
-                ObserverNode node = mChildren.get(i);
-                if (node.mName.equals(segment)) {
-                    node.addObserverLocked(uri, index + 1, observer, notifyForDescendants,
-                            observersLock, uid, pid, userHandle);
-                    return;
-                }
+            ObserverNode node = mChildren.get(segment);
+            if (node == null) {
+                // No child found, create one
+                node = new ObserverNode(segment);
+                mChildren.put(segment, node);
             }
-
-            // No child found, create one
-            ObserverNode node = new ObserverNode(segment);
-            mChildren.add(node);
             node.addObserverLocked(uri, index + 1, observer, notifyForDescendants,
                     observersLock, uid, pid, userHandle);
         }
@@ -1471,9 +1626,9 @@ public final class ContentService extends IContentService.Stub {
         public boolean removeObserverLocked(IContentObserver observer) {
             int size = mChildren.size();
             for (int i = 0; i < size; i++) {
-                boolean empty = mChildren.get(i).removeObserverLocked(observer);
+                boolean empty = mChildren.valueAt(i).removeObserverLocked(observer);
                 if (empty) {
-                    mChildren.remove(i);
+                    mChildren.removeAt(i);
                     i--;
                     size--;
                 }
@@ -1567,16 +1722,18 @@ public final class ContentService extends IContentService.Stub {
                         flags, targetUserHandle, calls);
             }
 
-            int N = mChildren.size();
-            for (int i = 0; i < N; i++) {
-                ObserverNode node = mChildren.get(i);
-                if (segment == null || node.mName.equals(segment)) {
+            if (segment != null) {
+                ObserverNode node = mChildren.get(segment);
+                if (node != null) {
                     // We found the child,
                     node.collectObserversLocked(uri, index + 1, observer,
                             observerWantsSelfNotifications, flags, targetUserHandle, calls);
-                    if (segment != null) {
-                        break;
-                    }
+                }
+            } else {
+                int N = mChildren.size();
+                for (int i = 0; i < N; i++) {
+                    mChildren.valueAt(i).collectObserversLocked(uri, index + 1, observer,
+                            observerWantsSelfNotifications, flags, targetUserHandle, calls);
                 }
             }
         }
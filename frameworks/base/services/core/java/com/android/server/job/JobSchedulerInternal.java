@@ -91,6 +91,11 @@ public interface JobSchedulerInternal {
         public int countSystemServerJobsSaved = -1;
         public int countSystemSyncManagerJobsSaved = -1;
 
+        public int countFullWrites = 0;
+        public int countIncrementalWrites = 0;
+        public long countMutationsSaved = 0;
+        public long bytesSaved = 0;
+
         public JobStorePersistStats() {
         }
 
@@ -102,6 +107,11 @@ public interface JobSchedulerInternal {
             countAllJobsSaved = source.countAllJobsSaved;
             countSystemServerJobsSaved = source.countSystemServerJobsSaved;
             countSystemSyncManagerJobsSaved = source.countSystemSyncManagerJobsSaved;
+
+            countFullWrites = source.countFullWrites;
+            countIncrementalWrites = source.countIncrementalWrites;
+            countMutationsSaved = source.countMutationsSaved;
+            bytesSaved = source.bytesSaved;
         }
 
         @Override
@@ -113,7 +123,12 @@ public interface JobSchedulerInternal {
                     + " LastSave: "
                     + countAllJobsSaved + "/"
                     + countSystemServerJobsSaved + "/"
-                    + countSystemSyncManagerJobsSaved;
+                    + countSystemSyncManagerJobsSaved
+                    + " Writes: " + countFullWrites + " full/"
+                    + countIncrementalWrites + " incremental, "
+                    + bytesSaved + " bytes for " + countMutationsSaved + " changes"
+                    + (countMutationsSaved > 0
+                            ? " (" + (bytesSaved / countMutationsSaved) + " per change)" : "");
         }
     }
 }
@@ -31,15 +31,18 @@ import android.os.Handler;
 import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.text.format.DateUtils;
 import android.util.ArraySet;
 import android.util.AtomicFile;
+import android.util.LongSparseArray;
 import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.Xml;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.BitUtils;
@@ -53,7 +56,10 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -87,6 +93,18 @@ public final class JobStore {
     /** Threshold to adjust how often we want to write to the db. */
     private static final int MAX_OPS_BEFORE_WRITE = 1;
 
+    /**
+     * When set, changes to persisted jobs are appended to jobs.log rather than rewriting
+     * all of jobs.xml each time; see {@link JobStoreJournal}.
+     */
+    private static final boolean USE_JOURNAL =
+            SystemProperties.getBoolean("persist.sys.job.journal", false);
+
+    /** The log is compacted once it is this many times the size of its last compaction. */
+    private static final int JOURNAL_COMPACT_FACTOR = 2;
+    /** ...but never below this size. */
+    private static final long JOURNAL_MIN_COMPACT_BYTES = 64 * 1024;
+
     final Object mLock;
     final JobSet mJobSet; // per-caller-uid and per-source-uid tracking
     final Context mContext;
@@ -99,6 +117,22 @@ public final class JobStore {
 
     private static final Object sSingletonLock = new Object();
     private final AtomicFile mJobsFile;
+    private final AtomicFile mJournalFile;
+    private final boolean mUseJournal;
+
+    /** Changes not yet appended to the log, oldest first. */
+    @GuardedBy("mLock")
+    private final ArrayList<JournalOp> mPendingJournalOps = new ArrayList<>();
+    /** Set when the next write must rewrite the whole log rather than append to it. */
+    @GuardedBy("mLock")
+    private boolean mJournalNeedsCompaction;
+    /** Number of changes to persisted jobs since the last write. */
+    @GuardedBy("mLock")
+    private int mUnsavedMutations;
+
+    // Only touched while loading and then on the IoThread.
+    private long mJournalLength;
+    private long mJournalCompactedLength;
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -138,6 +172,8 @@ public final class JobStore {
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
         mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"), "jobs");
+        mJournalFile = new AtomicFile(new File(jobDir, "jobs.log"), "jobs");
+        mUseJournal = USE_JOURNAL;
 
         mJobSet = new JobSet();
 
@@ -152,7 +188,8 @@ public final class JobStore {
         // an incorrect historical timestamp.  That's fine; at worst we'll reboot with
         // a *correct* timestamp, see a bunch of overdue jobs, and run them; then
         // settle into normal operation.
-        mXmlTimestamp = mJobsFile.getLastModifiedTime();
+        mXmlTimestamp = shouldReadJournal()
+                ? mJournalFile.getLastModifiedTime() : mJobsFile.getLastModifiedTime();
         mRtcGood = (sSystemClock.millis() > mXmlTimestamp);
 
         readJobMapFromDisk(mJobSet, mRtcGood);
@@ -200,6 +237,7 @@ public final class JobStore {
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            noteMutationLocked(JobStoreJournal.OP_PUT, jobStatus);
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -237,8 +275,13 @@ public final class JobStore {
             }
             return false;
         }
-        if (writeBack && jobStatus.isPersisted()) {
-            maybeWriteStatusToDiskAsync();
+        if (jobStatus.isPersisted()) {
+            // Recorded even without writeBack, so that it goes out with the next write
+            // just as it would with a full rewrite.
+            noteMutationLocked(JobStoreJournal.OP_REMOVE, jobStatus);
+            if (writeBack) {
+                maybeWriteStatusToDiskAsync();
+            }
         }
         return removed;
     }
@@ -249,11 +292,14 @@ public final class JobStore {
      */
     public void removeJobsOfNonUsers(int[] whitelist) {
         mJobSet.removeJobsOfNonUsers(whitelist);
+        // We don't know which persisted jobs went away; rewrite the log next time.
+        mJournalNeedsCompaction = true;
     }
 
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        noteMutationLocked(JobStoreJournal.OP_CLEAR, null);
         maybeWriteStatusToDiskAsync();
     }
 
@@ -314,9 +360,67 @@ public final class JobStore {
     private static final String XML_TAG_ONEOFF = "one-off";
     private static final String XML_TAG_EXTRAS = "extras";
 
+    /** A change to the persisted jobs, waiting to be appended to the log. */
+    private static final class JournalOp {
+        final byte op;
+        final int uid;
+        final int jobId;
+        /** Snapshot of the job for OP_PUT. */
+        final JobStatus job;
+
+        JournalOp(byte op, int uid, int jobId, JobStatus job) {
+            this.op = op;
+            this.uid = uid;
+            this.jobId = jobId;
+            this.job = job;
+        }
+    }
+
+    private void noteMutationLocked(byte op, @Nullable JobStatus job) {
+        mUnsavedMutations++;
+        if (!mUseJournal) {
+            return;
+        }
+        if (op == JobStoreJournal.OP_REMOVE) {
+            // The log is keyed by (uid, jobId), so don't let removing an old instance
+            // drop a replacement that is already in the set.
+            final JobStatus current = mJobSet.get(job.getUid(), job.getJobId());
+            if (current != null && current.isPersisted()) {
+                op = JobStoreJournal.OP_PUT;
+                job = current;
+            }
+        }
+        if (op == JobStoreJournal.OP_CLEAR) {
+            mPendingJournalOps.add(new JournalOp(op, 0, 0, null));
+        } else {
+            mPendingJournalOps.add(new JournalOp(op, job.getUid(), job.getJobId(),
+                    (op == JobStoreJournal.OP_PUT) ? new JobStatus(job) : null));
+        }
+    }
+
+    private void noteWriteLocked(boolean full, int mutations, long bytes) {
+        if (full) {
+            mPersistInfo.countFullWrites++;
+        } else {
+            mPersistInfo.countIncrementalWrites++;
+        }
+        mPersistInfo.countMutationsSaved += mutations;
+        mPersistInfo.bytesSaved += bytes;
+    }
+
+    /**
+     * Whether the log, rather than jobs.xml, holds the latest state.  Both can exist
+     * briefly after switching between the two modes; the newer one wins.
+     */
+    private boolean shouldReadJournal() {
+        return mJournalFile.exists() && (!mJobsFile.exists()
+                || mJournalFile.getLastModifiedTime() >= mJobsFile.getLastModifiedTime());
+    }
+
     /**
      * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * track incremental changes.  With {@link #USE_JOURNAL} the changes are instead appended
+     * to the log, which is only rewritten in one swath when it needs compacting.
      */
     private void maybeWriteStatusToDiskAsync() {
         mDirtyOperations++;
@@ -342,7 +446,16 @@ public final class JobStore {
         @Override
         public void run() {
             final long startElapsed = sElapsedRealtimeClock.millis();
+            if (mUseJournal) {
+                writeJournal();
+                if (DEBUG) {
+                    Slog.v(TAG, "Finished writing log, took " + (sElapsedRealtimeClock.millis()
+                            - startElapsed) + "ms");
+                }
+                return;
+            }
             final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            final int mutations;
             synchronized (mLock) {
                 // Clone the jobs so we can release the lock before writing.
                 mJobSet.forEachJob(null, (job) -> {
@@ -350,15 +463,130 @@ public final class JobStore {
                         storeCopy.add(new JobStatus(job));
                     }
                 });
+                mutations = mUnsavedMutations;
+                mUnsavedMutations = 0;
+            }
+            final long bytes = writeJobsMapImpl(storeCopy);
+            if (bytes > 0) {
+                synchronized (mLock) {
+                    noteWriteLocked(true, mutations, bytes);
+                }
             }
-            writeJobsMapImpl(storeCopy);
             if (DEBUG) {
                 Slog.v(TAG, "Finished writing, took " + (sElapsedRealtimeClock.millis()
                         - startElapsed) + "ms");
             }
         }
 
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
+        /**
+         * Appends the pending changes to the log, or rewrites it from scratch if it has
+         * grown too large or an earlier append failed.
+         */
+        private void writeJournal() {
+            final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            final ArrayList<JournalOp> ops;
+            final int mutations;
+            final boolean compact;
+            synchronized (mLock) {
+                compact = mJournalNeedsCompaction || mJournalLength == 0
+                        || mJournalLength > Math.max(JOURNAL_MIN_COMPACT_BYTES,
+                                JOURNAL_COMPACT_FACTOR * mJournalCompactedLength);
+                if (compact) {
+                    mJobSet.forEachJob(null, (job) -> {
+                        if (job.isPersisted()) {
+                            storeCopy.add(new JobStatus(job));
+                        }
+                    });
+                    mJournalNeedsCompaction = false;
+                    ops = null;
+                } else {
+                    ops = new ArrayList<>(mPendingJournalOps);
+                }
+                mPendingJournalOps.clear();
+                mutations = mUnsavedMutations;
+                mUnsavedMutations = 0;
+            }
+
+            long bytes = 0;
+            try {
+                if (compact) {
+                    bytes = compactJournal(storeCopy);
+                } else {
+                    final JobStoreJournal.Writer writer = new JobStoreJournal.Writer();
+                    for (int i = 0; i < ops.size(); i++) {
+                        final JournalOp op = ops.get(i);
+                        switch (op.op) {
+                            case JobStoreJournal.OP_PUT:
+                                writer.put(op.uid, op.jobId, writeJobToBlob(op.job));
+                                break;
+                            case JobStoreJournal.OP_REMOVE:
+                                writer.remove(op.uid, op.jobId);
+                                break;
+                            case JobStoreJournal.OP_CLEAR:
+                                writer.clear();
+                                break;
+                        }
+                    }
+                    if (writer.count() == 0) {
+                        return;
+                    }
+                    final byte[] records = writer.toByteArray();
+                    mJournalLength = JobStoreJournal.append(mJournalFile.getBaseFile(),
+                            mJournalLength, records);
+                    bytes = records.length;
+                }
+            } catch (IOException | XmlPullParserException e) {
+                Slog.w(TAG, "Error writing job log, will rewrite it next time", e);
+                synchronized (mLock) {
+                    mJournalNeedsCompaction = true;
+                }
+                return;
+            }
+            synchronized (mLock) {
+                noteWriteLocked(compact, mutations, bytes);
+            }
+        }
+
+        private long compactJournal(List<JobStatus> jobList)
+                throws IOException, XmlPullParserException {
+            int numSystemJobs = 0;
+            int numSyncJobs = 0;
+            final JobStoreJournal.Writer writer = new JobStoreJournal.Writer();
+            writer.writeHeader();
+            for (int i = 0; i < jobList.size(); i++) {
+                final JobStatus jobStatus = jobList.get(i);
+                writer.put(jobStatus.getUid(), jobStatus.getJobId(), writeJobToBlob(jobStatus));
+                if (jobStatus.getUid() == Process.SYSTEM_UID) {
+                    numSystemJobs++;
+                    if (isSyncJob(jobStatus)) {
+                        numSyncJobs++;
+                    }
+                }
+            }
+            final byte[] data = writer.toByteArray();
+
+            FileOutputStream fos = mJournalFile.startWrite(SystemClock.uptimeMillis());
+            try {
+                fos.write(data);
+                fos.getFD().sync();
+            } catch (IOException e) {
+                mJournalFile.failWrite(fos);
+                throw e;
+            }
+            mJournalFile.finishWrite(fos);
+            mJournalLength = mJournalCompactedLength = data.length;
+            // The log is now the newest copy; the xml can go.
+            mJobsFile.delete();
+
+            mPersistInfo.countAllJobsSaved = jobList.size();
+            mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
+            mPersistInfo.countSystemSyncManagerJobsSaved = numSyncJobs;
+            return data.length;
+        }
+
+        /** @return The number of bytes written, or 0 if the write failed. */
+        private long writeJobsMapImpl(List<JobStatus> jobList) {
+            long bytesWritten = 0;
             int numJobs = 0;
             int numSystemJobs = 0;
             int numSyncJobs = 0;
@@ -400,6 +628,12 @@ public final class JobStore {
                 fos.write(baos.toByteArray());
                 mJobsFile.finishWrite(fos);
                 mDirtyOperations = 0;
+                bytesWritten = baos.size();
+                if (mJournalFile.exists()) {
+                    // Journaling was turned off; jobs.xml is the newest copy again.
+                    mJournalFile.delete();
+                    mJournalLength = 0;
+                }
             } catch (IOException e) {
                 if (DEBUG) {
                     Slog.v(TAG, "Error writing out job data.", e);
@@ -413,6 +647,7 @@ public final class JobStore {
                 mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
                 mPersistInfo.countSystemSyncManagerJobsSaved = numSyncJobs;
             }
+            return bytesWritten;
         }
 
         /** Write out a tag with data comprising the required fields and priority of this job and
@@ -544,6 +779,96 @@ public final class JobStore {
                 out.endTag(null, XML_TAG_ONEOFF);
             }
         }
+
+        /**
+         * Binary form of a job for the log, holding the same fields as the xml above.  The
+         * uid and job id are stored in the log record itself.
+         */
+        private byte[] writeJobToBlob(JobStatus jobStatus)
+                throws IOException, XmlPullParserException {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            final JobInfo job = jobStatus.getJob();
+
+            out.writeUTF(jobStatus.getServiceComponent().getPackageName());
+            out.writeUTF(jobStatus.getServiceComponent().getClassName());
+            writeNullableString(out, jobStatus.getSourcePackageName());
+            writeNullableString(out, jobStatus.getSourceTag());
+            out.writeInt(jobStatus.getSourceUserId());
+            out.writeInt(jobStatus.getPriority());
+            out.writeInt(jobStatus.getFlags());
+            out.writeInt(jobStatus.getInternalFlags());
+            out.writeLong(jobStatus.getLastSuccessfulRunTime());
+            out.writeLong(jobStatus.getLastFailedRunTime());
+
+            out.writeBoolean(jobStatus.hasConnectivityConstraint());
+            if (jobStatus.hasConnectivityConstraint()) {
+                final NetworkRequest network = job.getRequiredNetwork();
+                out.writeLong(BitUtils.packBits(network.networkCapabilities.getCapabilities()));
+                out.writeLong(BitUtils.packBits(
+                        network.networkCapabilities.getUnwantedCapabilities()));
+                out.writeLong(BitUtils.packBits(network.networkCapabilities.getTransportTypes()));
+            }
+            out.writeBoolean(jobStatus.hasIdleConstraint());
+            out.writeBoolean(jobStatus.hasChargingConstraint());
+            out.writeBoolean(jobStatus.hasBatteryNotLowConstraint());
+
+            out.writeBoolean(job.isPeriodic());
+            if (job.isPeriodic()) {
+                out.writeLong(job.getIntervalMillis());
+                out.writeLong(job.getFlexMillis());
+            }
+            final Pair<Long, Long> utcJobTimes = jobStatus.getPersistedUtcTimes();
+            final long nowRTC = sSystemClock.millis();
+            final long nowElapsed = sElapsedRealtimeClock.millis();
+            long delayWallclock = JobStatus.NO_EARLIEST_RUNTIME;
+            long deadlineWallclock = JobStatus.NO_LATEST_RUNTIME;
+            if (jobStatus.hasTimingDelayConstraint()) {
+                delayWallclock = (utcJobTimes == null)
+                        ? nowRTC + (jobStatus.getEarliestRunTime() - nowElapsed)
+                        : utcJobTimes.first;
+            }
+            if (jobStatus.hasDeadlineConstraint()) {
+                deadlineWallclock = (utcJobTimes == null)
+                        ? nowRTC + (jobStatus.getLatestRunTimeElapsed() - nowElapsed)
+                        : utcJobTimes.second;
+            }
+            out.writeLong(delayWallclock);
+            out.writeLong(deadlineWallclock);
+
+            final boolean hasBackoff =
+                    job.getInitialBackoffMillis() != JobInfo.DEFAULT_INITIAL_BACKOFF_MILLIS
+                    || job.getBackoffPolicy() != JobInfo.DEFAULT_BACKOFF_POLICY;
+            out.writeBoolean(hasBackoff);
+            if (hasBackoff) {
+                out.writeLong(job.getInitialBackoffMillis());
+                out.writeInt(job.getBackoffPolicy());
+            }
+
+            // Extras are rare and arbitrarily shaped, so they keep their xml form.
+            final PersistableBundle extras = job.getExtras();
+            if (extras == null || extras.isEmpty()) {
+                out.writeInt(0);
+            } else {
+                final ByteArrayOutputStream xml = new ByteArrayOutputStream();
+                final XmlSerializer serializer = new FastXmlSerializer();
+                serializer.setOutput(xml, StandardCharsets.UTF_8.name());
+                serializer.startDocument(null, true);
+                writeBundleToXml(extras, serializer);
+                serializer.endDocument();
+                out.writeInt(xml.size());
+                xml.writeTo(out);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private void writeNullableString(DataOutputStream out, String s) throws IOException {
+            out.writeBoolean(s != null);
+            if (s != null) {
+                out.writeUTF(s);
+            }
+        }
     };
 
     /**
@@ -594,9 +919,11 @@ public final class JobStore {
             int numSyncJobs = 0;
             try {
                 List<JobStatus> jobs;
-                FileInputStream fis = mJobsFile.openRead();
+                final boolean fromJournal = shouldReadJournal();
+                FileInputStream fis = fromJournal ? mJournalFile.openRead() : mJobsFile.openRead();
                 synchronized (mLock) {
-                    jobs = readJobMapImpl(fis, rtcGood);
+                    jobs = fromJournal ? readJournalImpl(fis, rtcGood)
+                            : readJobMapImpl(fis, rtcGood);
                     if (jobs != null) {
                         long now = sElapsedRealtimeClock.millis();
                         IActivityManager am = ActivityManager.getService();
@@ -633,6 +960,37 @@ public final class JobStore {
             Slog.i(TAG, "Read " + numJobs + " jobs");
         }
 
+        /**
+         * Replays jobs.log, only decoding the jobs that are still live at its end.
+         */
+        private List<JobStatus> readJournalImpl(FileInputStream fis, boolean rtcIsGood) {
+            final LongSparseArray<byte[]> blobs = new LongSparseArray<>();
+            final long validLength = JobStoreJournal.replay(fis, mJournalFile.getBaseFile(),
+                    blobs);
+            mJournalLength = mJournalCompactedLength = validLength;
+            if (validLength == 0) {
+                return null;
+            }
+            final List<JobStatus> jobs = new ArrayList<JobStatus>(blobs.size());
+            for (int i = 0; i < blobs.size(); i++) {
+                final long key = blobs.keyAt(i);
+                final int uid = (int) (key >> 32);
+                final int jobId = (int) key;
+                try {
+                    final JobStatus persistedJob = restoreJobFromBlob(rtcIsGood, uid, jobId,
+                            blobs.valueAt(i));
+                    if (DEBUG) {
+                        Slog.d(TAG, "Read out " + persistedJob);
+                    }
+                    jobs.add(persistedJob);
+                } catch (IOException | XmlPullParserException | RuntimeException e) {
+                    Slog.d(TAG, "Error reading job " + jobId + " for uid " + uid
+                            + " from log, skipping.", e);
+                }
+            }
+            return jobs;
+        }
+
         private List<JobStatus> readJobMapImpl(FileInputStream fis, boolean rtcIsGood)
                 throws XmlPullParserException, IOException {
             XmlPullParser parser = Xml.newPullParser();
@@ -785,29 +1143,8 @@ public final class JobStore {
                     val = parser.getAttributeValue(null, "flex");
                     final long flexMillis = (val != null) ? Long.valueOf(val) : periodMillis;
                     jobBuilder.setPeriodic(periodMillis, flexMillis);
-                    // As a sanity check, cap the recreated run time to be no later than flex+period
-                    // from now. This is the latest the periodic could be pushed out. This could
-                    // happen if the periodic ran early (at flex time before period), and then the
-                    // device rebooted.
-                    if (elapsedRuntimes.second > elapsedNow + periodMillis + flexMillis) {
-                        final long clampedLateRuntimeElapsed = elapsedNow + flexMillis
-                                + periodMillis;
-                        final long clampedEarlyRuntimeElapsed = clampedLateRuntimeElapsed
-                                - flexMillis;
-                        Slog.w(TAG,
-                                String.format("Periodic job for uid='%d' persisted run-time is" +
-                                                " too big [%s, %s]. Clamping to [%s,%s]",
-                                        uid,
-                                        DateUtils.formatElapsedTime(elapsedRuntimes.first / 1000),
-                                        DateUtils.formatElapsedTime(elapsedRuntimes.second / 1000),
-                                        DateUtils.formatElapsedTime(
-                                                clampedEarlyRuntimeElapsed / 1000),
-                                        DateUtils.formatElapsedTime(
-                                                clampedLateRuntimeElapsed / 1000))
-                        );
-                        elapsedRuntimes =
-                                Pair.create(clampedEarlyRuntimeElapsed, clampedLateRuntimeElapsed);
-                    }
+                    elapsedRuntimes = clampPeriodicRuntimes(uid, elapsedRuntimes, elapsedNow,
+                            periodMillis, flexMillis);
                 } catch (NumberFormatException e) {
                     Slog.d(TAG, "Error reading periodic execution criteria, skipping.");
                     return null;
@@ -877,6 +1214,146 @@ public final class JobStore {
             return js;
         }
 
+        /**
+         * As a sanity check, cap the recreated run time to be no later than flex+period
+         * from now. This is the latest the periodic could be pushed out. This could
+         * happen if the periodic ran early (at flex time before period), and then the
+         * device rebooted.
+         */
+        private Pair<Long, Long> clampPeriodicRuntimes(int uid, Pair<Long, Long> elapsedRuntimes,
+                long elapsedNow, long periodMillis, long flexMillis) {
+            if (elapsedRuntimes.second > elapsedNow + periodMillis + flexMillis) {
+                final long clampedLateRuntimeElapsed = elapsedNow + flexMillis
+                        + periodMillis;
+                final long clampedEarlyRuntimeElapsed = clampedLateRuntimeElapsed
+                        - flexMillis;
+                Slog.w(TAG,
+                        String.format("Periodic job for uid='%d' persisted run-time is" +
+                                        " too big [%s, %s]. Clamping to [%s,%s]",
+                                uid,
+                                DateUtils.formatElapsedTime(elapsedRuntimes.first / 1000),
+                                DateUtils.formatElapsedTime(elapsedRuntimes.second / 1000),
+                                DateUtils.formatElapsedTime(
+                                        clampedEarlyRuntimeElapsed / 1000),
+                                DateUtils.formatElapsedTime(
+                                        clampedLateRuntimeElapsed / 1000))
+                );
+                return Pair.create(clampedEarlyRuntimeElapsed, clampedLateRuntimeElapsed);
+            }
+            return elapsedRuntimes;
+        }
+
+        /**
+         * Counterpart of {@link #restoreJobFromXml} for the binary form written to the log.
+         */
+        private JobStatus restoreJobFromBlob(boolean rtcIsGood, int uid, int jobId, byte[] blob)
+                throws IOException, XmlPullParserException {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(blob));
+            final String packageName = in.readUTF();
+            final String className = in.readUTF();
+            final JobInfo.Builder jobBuilder =
+                    new JobInfo.Builder(jobId, new ComponentName(packageName, className));
+            jobBuilder.setPersisted(true);
+            String sourcePackageName = readNullableString(in);
+            final String sourceTag = readNullableString(in);
+            final int sourceUserId = in.readInt();
+            jobBuilder.setPriority(in.readInt());
+            jobBuilder.setFlags(in.readInt());
+            final int internalFlags = in.readInt();
+            final long lastSuccessfulRunTime = in.readLong();
+            final long lastFailedRunTime = in.readLong();
+
+            if (in.readBoolean()) {
+                final long capabilities = in.readLong();
+                final long unwantedCapabilities = in.readLong();
+                final long transportTypes = in.readLong();
+                final NetworkRequest request = new NetworkRequest.Builder().build();
+                request.networkCapabilities.setCapabilities(
+                        BitUtils.unpackBits(capabilities),
+                        BitUtils.unpackBits(unwantedCapabilities));
+                request.networkCapabilities.setTransportTypes(
+                        BitUtils.unpackBits(transportTypes));
+                jobBuilder.setRequiredNetwork(request);
+            }
+            if (in.readBoolean()) {
+                jobBuilder.setRequiresDeviceIdle(true);
+            }
+            if (in.readBoolean()) {
+                jobBuilder.setRequiresCharging(true);
+            }
+            if (in.readBoolean()) {
+                jobBuilder.setRequiresBatteryNotLow(true);
+            }
+
+            final boolean periodic = in.readBoolean();
+            final long periodMillis = periodic ? in.readLong() : 0;
+            final long flexMillis = periodic ? in.readLong() : 0;
+            final long delayWallclock = in.readLong();
+            final long deadlineWallclock = in.readLong();
+            // Tuple of (earliest runtime, latest runtime) in UTC.
+            final Pair<Long, Long> rtcRuntimes = Pair.create(delayWallclock, deadlineWallclock);
+            if (in.readBoolean()) {
+                final long initialBackoff = in.readLong();
+                jobBuilder.setBackoffCriteria(initialBackoff, in.readInt());
+            }
+
+            PersistableBundle extras = null;
+            final int extrasLength = in.readInt();
+            if (extrasLength > 0) {
+                final byte[] xml = new byte[extrasLength];
+                in.readFully(xml);
+                final XmlPullParser parser = Xml.newPullParser();
+                parser.setInput(new ByteArrayInputStream(xml), StandardCharsets.UTF_8.name());
+                int eventType = parser.next();
+                while (eventType != XmlPullParser.START_TAG
+                        && eventType != XmlPullParser.END_DOCUMENT) {
+                    eventType = parser.next();
+                }
+                if (eventType == XmlPullParser.START_TAG
+                        && XML_TAG_EXTRAS.equals(parser.getName())) {
+                    extras = PersistableBundle.restoreFromXml(parser);
+                    jobBuilder.setExtras(extras);
+                }
+            }
+
+            final long elapsedNow = sElapsedRealtimeClock.millis();
+            Pair<Long, Long> elapsedRuntimes = convertRtcBoundsToElapsed(rtcRuntimes, elapsedNow);
+            if (periodic) {
+                jobBuilder.setPeriodic(periodMillis, flexMillis);
+                elapsedRuntimes = clampPeriodicRuntimes(uid, elapsedRuntimes, elapsedNow,
+                        periodMillis, flexMillis);
+            } else {
+                if (elapsedRuntimes.first != JobStatus.NO_EARLIEST_RUNTIME) {
+                    jobBuilder.setMinimumLatency(elapsedRuntimes.first - elapsedNow);
+                }
+                if (elapsedRuntimes.second != JobStatus.NO_LATEST_RUNTIME) {
+                    jobBuilder.setOverrideDeadline(elapsedRuntimes.second - elapsedNow);
+                }
+            }
+
+            // Migrate sync jobs forward from earlier, incomplete representation
+            if ("android".equals(sourcePackageName)
+                    && extras != null
+                    && extras.getBoolean("SyncManagerJob", false)) {
+                sourcePackageName = extras.getString("owningPackage", sourcePackageName);
+            }
+
+            JobSchedulerInternal service = LocalServices.getService(JobSchedulerInternal.class);
+            final int appBucket = JobSchedulerService.standbyBucketForPackage(sourcePackageName,
+                    sourceUserId, elapsedNow);
+            long currentHeartbeat = service != null ? service.currentHeartbeat() : 0;
+            return new JobStatus(
+                    jobBuilder.build(), uid, sourcePackageName, sourceUserId,
+                    appBucket, currentHeartbeat, sourceTag,
+                    elapsedRuntimes.first, elapsedRuntimes.second,
+                    lastSuccessfulRunTime, lastFailedRunTime,
+                    (rtcIsGood) ? null : rtcRuntimes, internalFlags);
+        }
+
+        private String readNullableString(DataInputStream in) throws IOException {
+            return in.readBoolean() ? in.readUTF() : null;
+        }
+
         private JobInfo.Builder buildBuilderFromXml(XmlPullParser parser) throws NumberFormatException {
             // Pull out required fields from <job> attributes.
             int jobId = Integer.parseInt(parser.getAttributeValue(null, "jobid"));
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.job;
+
+import android.util.LongSparseArray;
+import android.util.Slog;
+
+import com.android.internal.util.ChecksummedLog;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * On-disk format of the log-structured job store used when {@link JobStore} runs with
+ * journaling enabled.  Instead of rewriting jobs.xml on every change, each change is
+ * appended as a record to jobs.log, and the log is compacted (rewritten holding one
+ * record per live job) once it has grown well past the size of the live set.
+ *
+ * <pre>
+ *   file    := MAGIC:int VERSION:int record*
+ *   record  := length:int op:byte payload crc32(op payload):long
+ *   PUT     := uid:int jobId:int job
+ *   REMOVE  := uid:int jobId:int
+ *   CLEAR   := (empty)
+ * </pre>
+ *
+ * Records are keyed by (uid, jobId); a later PUT replaces an earlier one.  The encoding
+ * of a job itself is owned by {@link JobStore}.  Records are {@link ChecksummedLog} frames
+ * headed by their op, so a record that is truncated or fails its checksum ends the log and
+ * anything after it is dropped by the next append.
+ */
+final class JobStoreJournal {
+    private static final String TAG = "JobStore";
+
+    private static final int MAGIC = 0x4a4f424c; // "JOBL"
+    private static final int VERSION = 1;
+    static final int HEADER_LENGTH = 4 + 4;
+
+    /** Refuse to read records claiming to be larger than this. */
+    private static final int MAX_RECORD_LENGTH = 1024 * 1024;
+
+    private static final ChecksummedLog LOG = new ChecksummedLog(TAG, 1, MAX_RECORD_LENGTH);
+
+    static final byte OP_PUT = 1;
+    static final byte OP_REMOVE = 2;
+    static final byte OP_CLEAR = 3;
+
+    private JobStoreJournal() {
+    }
+
+    static long makeKey(int uid, int jobId) {
+        return (((long) uid) << 32) | (jobId & 0xffffffffL);
+    }
+
+    /**
+     * Builds records to be handed to {@link #append} or written out as a compacted log.
+     */
+    static final class Writer {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private final DataOutputStream mOut = new DataOutputStream(mBytes);
+        private final ByteArrayOutputStream mRecord = new ByteArrayOutputStream();
+        private final DataOutputStream mRecordOut = new DataOutputStream(mRecord);
+        private int mCount;
+
+        void writeHeader() throws IOException {
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+        }
+
+        void put(int uid, int jobId, byte[] job) throws IOException {
+            mRecordOut.writeByte(OP_PUT);
+            mRecordOut.writeInt(uid);
+            mRecordOut.writeInt(jobId);
+            mRecordOut.write(job);
+            finishRecord();
+        }
+
+        void remove(int uid, int jobId) throws IOException {
+            mRecordOut.writeByte(OP_REMOVE);
+            mRecordOut.writeInt(uid);
+            mRecordOut.writeInt(jobId);
+            finishRecord();
+        }
+
+        void clear() throws IOException {
+            mRecordOut.writeByte(OP_CLEAR);
+            finishRecord();
+        }
+
+        private void finishRecord() throws IOException {
+            mRecordOut.flush();
+            LOG.writeFrame(mOut, mRecord.toByteArray());
+            mRecord.reset();
+            mCount++;
+        }
+
+        /** @return The number of records written so far. */
+        int count() {
+            return mCount;
+        }
+
+        byte[] toByteArray() throws IOException {
+            mOut.flush();
+            return mBytes.toByteArray();
+        }
+    }
+
+    /**
+     * Replays a log, leaving the encoded form of every live job in <var>jobs</var>.
+     *
+     * @return The length of the valid prefix of the log, or 0 if it is not a job log.
+     */
+    static long replay(InputStream is, File file, LongSparseArray<byte[]> jobs) {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(is, 16 * 1024));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Slog.w(TAG, "Ignoring unrecognized job log " + file);
+                return 0;
+            }
+            return LOG.readFrames(in, HEADER_LENGTH, file, record -> applyRecord(record, jobs));
+        } catch (EOFException e) {
+            // Empty or torn header.
+            return 0;
+        } catch (IOException e) {
+            Slog.w(TAG, "Cannot read " + file, e);
+            return 0;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * @param record The op of the record followed by its payload.
+     */
+    private static boolean applyRecord(byte[] record, LongSparseArray<byte[]> jobs) {
+        final byte op = record[0];
+        switch (op) {
+            case OP_PUT:
+            case OP_REMOVE: {
+                if (record.length < 1 + 8) {
+                    return false;
+                }
+                final int uid = readInt(record, 1);
+                final int jobId = readInt(record, 5);
+                if (op == OP_PUT) {
+                    final byte[] job = new byte[record.length - 9];
+                    System.arraycopy(record, 9, job, 0, job.length);
+                    jobs.put(makeKey(uid, jobId), job);
+                } else {
+                    jobs.delete(makeKey(uid, jobId));
+                }
+                return true;
+            }
+            case OP_CLEAR:
+                jobs.clear();
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static int readInt(byte[] b, int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16)
+                | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    /**
+     * Appends records to the log and syncs it, first dropping anything past
+     * <var>validLength</var>.
+     *
+     * @return The new length of the log.
+     */
+    static long append(File file, long validLength, byte[] records) throws IOException {
+        return ChecksummedLog.append(file, validLength, records);
+    }
+}
@@ -32,6 +32,7 @@ import static android.text.format.DateUtils.WEEK_IN_MILLIS;
 
 import static com.android.server.net.NetworkStatsService.TAG;
 
+import android.annotation.Nullable;
 import android.net.NetworkIdentity;
 import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
@@ -525,6 +526,21 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         out.flush();
     }
 
+    /**
+     * Write this collection, combined with <var>base</var> when given, in the
+     * memory-mappable layout read by {@link NetworkStatsColumnarFile}.
+     */
+    public void writeColumnar(@Nullable NetworkStatsColumnarFile base, DataOutputStream out)
+            throws IOException {
+        final NetworkStatsColumnarFile.Writer writer = new NetworkStatsColumnarFile.Writer();
+        for (int i = 0; i < mStats.size(); i++) {
+            final Key key = mStats.keyAt(i);
+            writer.add(key.ident, key.uid, key.set, key.tag, mStats.valueAt(i));
+        }
+        writer.write(base, out);
+        out.flush();
+    }
+
     @Deprecated
     public void readLegacyNetwork(File file) throws IOException {
         final AtomicFile inputFile = new AtomicFile(file);
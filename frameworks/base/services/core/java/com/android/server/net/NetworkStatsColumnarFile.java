@@ -0,0 +1,560 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.NetworkStats.IFACE_ALL;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkStats.UID_ALL;
+
+import android.annotation.Nullable;
+import android.net.NetworkIdentity;
+import android.net.NetworkStats;
+import android.net.NetworkStatsHistory;
+import android.net.NetworkTemplate;
+
+import libcore.io.IoUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.NioUtils;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+/**
+ * Read-only, memory-mapped snapshot of a {@link NetworkStatsCollection} stored
+ * column by column, so that the history of a single UID and tag can be pulled
+ * out of it without inflating every {@link NetworkStatsHistory} on the heap.
+ *
+ * <pre>
+ *   file    := header idents padding keys columns
+ *   header  := MAGIC:int VERSION:int identCount:int keyCount:int bucketCount:int
+ *              identOffset:int keyOffset:int columnOffset:int
+ *   idents  := identCount * NetworkIdentitySet
+ *   key     := uid:int set:int tag:int ident:int first:int count:int
+ *              bucketDuration:long start:long end:long
+ *   columns := bucketCount * bucketStart:long, bucketCount * rxBytes:long,
+ *              bucketCount * rxPackets:long, bucketCount * txBytes:long,
+ *              bucketCount * txPackets:long, bucketCount * operations:long
+ * </pre>
+ *
+ * Keys are sorted by (uid, tag, set, ident), so all keys of a UID, or of a UID
+ * and tag, are adjacent and found by binary search.  Each key owns the range
+ * [first, first + count) of every column, with buckets in ascending start
+ * order, and records the time span it covers; that span and a binary search of
+ * the bucketStart column are the time index used to answer range queries.
+ * Active time is not stored, since it is never returned by a query.
+ */
+final class NetworkStatsColumnarFile implements Closeable {
+    /** File header magic number: "ANSC" */
+    private static final int FILE_MAGIC = 0x414E5343;
+    private static final int VERSION_INIT = 1;
+
+    private static final int HEADER_LENGTH = 8 * 4;
+    private static final int KEY_LENGTH = 6 * 4 + 3 * 8;
+    private static final int COLUMN_COUNT = 6;
+
+    private static final int KEY_UID = 0;
+    private static final int KEY_SET = 4;
+    private static final int KEY_TAG = 8;
+    private static final int KEY_IDENT = 12;
+    private static final int KEY_FIRST = 16;
+    private static final int KEY_COUNT = 20;
+    private static final int KEY_BUCKET_DURATION = 24;
+    private static final int KEY_START = 32;
+    private static final int KEY_END = 40;
+
+    private static final int COLUMN_BUCKET_START = 0;
+    private static final int COLUMN_RX_BYTES = 1;
+    private static final int COLUMN_RX_PACKETS = 2;
+    private static final int COLUMN_TX_BYTES = 3;
+    private static final int COLUMN_TX_PACKETS = 4;
+    private static final int COLUMN_OPERATIONS = 5;
+
+    private final File mFile;
+    private final long mLength;
+    private final NetworkIdentitySet[] mIdents;
+    private final int mKeyCount;
+    private final int mBucketCount;
+    private final int mKeyOffset;
+    private final int mColumnOffset;
+
+    private MappedByteBuffer mBuffer;
+
+    private NetworkStatsColumnarFile(File file, MappedByteBuffer buffer) throws IOException {
+        mFile = file;
+        mLength = buffer.capacity();
+        mBuffer = buffer;
+
+        if (buffer.getInt(0) != FILE_MAGIC) {
+            throw new ProtocolException("unexpected magic: " + buffer.getInt(0));
+        }
+        if (buffer.getInt(4) != VERSION_INIT) {
+            throw new ProtocolException("unexpected version: " + buffer.getInt(4));
+        }
+        final int identCount = buffer.getInt(8);
+        mKeyCount = buffer.getInt(12);
+        mBucketCount = buffer.getInt(16);
+        final int identOffset = buffer.getInt(20);
+        mKeyOffset = buffer.getInt(24);
+        mColumnOffset = buffer.getInt(28);
+        if (identCount < 0 || mKeyCount < 0 || mBucketCount < 0
+                || identOffset < HEADER_LENGTH || mKeyOffset < identOffset
+                || mColumnOffset < (long) mKeyOffset + (long) mKeyCount * KEY_LENGTH
+                || mLength < mColumnOffset + (long) mBucketCount * 8 * COLUMN_COUNT) {
+            throw new ProtocolException("truncated or corrupt " + file);
+        }
+
+        // Identities are few and needed by every query, so keep them inflated
+        final byte[] identBytes = new byte[mKeyOffset - identOffset];
+        final ByteBuffer dup = buffer.duplicate();
+        dup.position(identOffset);
+        dup.get(identBytes);
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(identBytes));
+        mIdents = new NetworkIdentitySet[identCount];
+        for (int i = 0; i < identCount; i++) {
+            mIdents[i] = new NetworkIdentitySet(in);
+        }
+    }
+
+    /**
+     * Map the given file, which must have been written by {@link Writer}.
+     */
+    public static NetworkStatsColumnarFile open(File file) throws IOException {
+        final FileInputStream fis = new FileInputStream(file);
+        MappedByteBuffer buffer = null;
+        try {
+            final FileChannel channel = fis.getChannel();
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new NetworkStatsColumnarFile(file, buffer);
+        } catch (IOException | RuntimeException e) {
+            if (buffer != null) {
+                NioUtils.freeDirectBuffer(buffer);
+            }
+            throw e;
+        } finally {
+            // The mapping stays valid once the descriptor is closed
+            IoUtils.closeQuietly(fis);
+        }
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /** Size of the mapping, in bytes. */
+    public long getLength() {
+        return mLength;
+    }
+
+    public int getKeyCount() {
+        return mKeyCount;
+    }
+
+    public int getBucketCount() {
+        return mBucketCount;
+    }
+
+    /**
+     * Combine all {@link NetworkStatsHistory} in this file which match the
+     * requested parameters into <var>combined</var>, copying only buckets that
+     * atomically occur in the inclusive time range, like
+     * {@link NetworkStatsHistory#recordHistory(NetworkStatsHistory, long, long)}.
+     *
+     * @return The number of buckets that were read.
+     */
+    public int recordHistory(NetworkStatsHistory combined, NetworkTemplate template, int uid,
+            int set, int tag, long start, long end) {
+        final ByteBuffer buffer = checkOpen();
+
+        // Resolve the template against each identity at most once
+        byte[] matches = null;
+
+        final NetworkStats.Entry entry = new NetworkStats.Entry(
+                IFACE_ALL, UID_ALL, SET_DEFAULT, TAG_NONE, 0L, 0L, 0L, 0L, 0L);
+        int read = 0;
+        for (int i = findFirstKey(uid, tag); i < mKeyCount; i++) {
+            final int key = mKeyOffset + i * KEY_LENGTH;
+            if (buffer.getInt(key + KEY_UID) != uid || buffer.getInt(key + KEY_TAG) != tag) {
+                break;
+            }
+            if (!NetworkStats.setMatches(set, buffer.getInt(key + KEY_SET))) continue;
+            if (buffer.getLong(key + KEY_END) < start || buffer.getLong(key + KEY_START) > end) {
+                continue;
+            }
+
+            final int ident = buffer.getInt(key + KEY_IDENT);
+            if (matches == null) {
+                matches = new byte[mIdents.length];
+            }
+            if (matches[ident] == 0) {
+                matches[ident] = templateMatches(template, mIdents[ident]) ? (byte) 1 : (byte) 2;
+            }
+            if (matches[ident] != 1) continue;
+
+            final long bucketDuration = buffer.getLong(key + KEY_BUCKET_DURATION);
+            final int first = buffer.getInt(key + KEY_FIRST);
+            final int last = first + buffer.getInt(key + KEY_COUNT);
+            for (int j = findFirstBucket(first, last, start); j < last; j++) {
+                final long bucketStart = getColumn(COLUMN_BUCKET_START, j);
+                final long bucketEnd = bucketStart + bucketDuration;
+                if (bucketEnd > end) break;
+
+                entry.rxBytes = getColumn(COLUMN_RX_BYTES, j);
+                entry.rxPackets = getColumn(COLUMN_RX_PACKETS, j);
+                entry.txBytes = getColumn(COLUMN_TX_BYTES, j);
+                entry.txPackets = getColumn(COLUMN_TX_PACKETS, j);
+                entry.operations = getColumn(COLUMN_OPERATIONS, j);
+                combined.recordData(bucketStart, bucketEnd, entry);
+                read++;
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Record every bucket of the given key into <var>history</var>.
+     */
+    private void recordKey(int i, NetworkStatsHistory history) {
+        final ByteBuffer buffer = checkOpen();
+        final int key = mKeyOffset + i * KEY_LENGTH;
+        final long bucketDuration = buffer.getLong(key + KEY_BUCKET_DURATION);
+        final int first = buffer.getInt(key + KEY_FIRST);
+        final int last = first + buffer.getInt(key + KEY_COUNT);
+        final NetworkStats.Entry entry = new NetworkStats.Entry(
+                IFACE_ALL, UID_ALL, SET_DEFAULT, TAG_NONE, 0L, 0L, 0L, 0L, 0L);
+        for (int j = first; j < last; j++) {
+            final long bucketStart = getColumn(COLUMN_BUCKET_START, j);
+            entry.rxBytes = getColumn(COLUMN_RX_BYTES, j);
+            entry.rxPackets = getColumn(COLUMN_RX_PACKETS, j);
+            entry.txBytes = getColumn(COLUMN_TX_BYTES, j);
+            entry.txPackets = getColumn(COLUMN_TX_PACKETS, j);
+            entry.operations = getColumn(COLUMN_OPERATIONS, j);
+            history.recordData(bucketStart, bucketStart + bucketDuration, entry);
+        }
+    }
+
+    /**
+     * Find the index of the first key sorting at or after (uid, tag).
+     */
+    private int findFirstKey(int uid, int tag) {
+        int lo = 0;
+        int hi = mKeyCount;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int key = mKeyOffset + mid * KEY_LENGTH;
+            int res = Integer.compare(mBuffer.getInt(key + KEY_UID), uid);
+            if (res == 0) {
+                res = Integer.compare(mBuffer.getInt(key + KEY_TAG), tag);
+            }
+            if (res < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Find the first bucket in [first, last) starting at or after the given time.
+     */
+    private int findFirstBucket(int first, int last, long start) {
+        int lo = first;
+        int hi = last;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (getColumn(COLUMN_BUCKET_START, mid) < start) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private long getColumn(int column, int index) {
+        return mBuffer.getLong(mColumnOffset + ((column * mBucketCount) + index) * 8);
+    }
+
+    private ByteBuffer checkOpen() {
+        if (mBuffer == null) {
+            throw new IllegalStateException("closed " + mFile);
+        }
+        return mBuffer;
+    }
+
+    @Override
+    public void close() {
+        if (mBuffer != null) {
+            NioUtils.freeDirectBuffer(mBuffer);
+            mBuffer = null;
+        }
+    }
+
+    private static boolean templateMatches(NetworkTemplate template, NetworkIdentitySet identSet) {
+        for (NetworkIdentity ident : identSet) {
+            if (template.matches(ident)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gathers the histories of a collection and writes them out in the
+     * columnar format, optionally on top of an existing file.
+     */
+    static final class Writer {
+        private final ArrayList<Item> mItems = new ArrayList<>();
+        private final HashMap<NetworkIdentitySet, Integer> mIdentIndex = new HashMap<>();
+        private final ArrayList<NetworkIdentitySet> mIdents = new ArrayList<>();
+
+        /**
+         * A key to write, with its buckets either in {@link #history} or, when
+         * that is null, still in the base file under {@link #baseKey}.
+         */
+        private static class Item implements Comparable<Item> {
+            final int uid;
+            final int set;
+            final int tag;
+            final int ident;
+            NetworkStatsHistory history;
+            int baseKey = -1;
+
+            Item(int uid, int set, int tag, int ident) {
+                this.uid = uid;
+                this.set = set;
+                this.tag = tag;
+                this.ident = ident;
+            }
+
+            @Override
+            public int compareTo(Item another) {
+                int res = Integer.compare(uid, another.uid);
+                if (res == 0) {
+                    res = Integer.compare(tag, another.tag);
+                }
+                if (res == 0) {
+                    res = Integer.compare(set, another.set);
+                }
+                if (res == 0) {
+                    res = Integer.compare(ident, another.ident);
+                }
+                return res;
+            }
+        }
+
+        void add(NetworkIdentitySet ident, int uid, int set, int tag,
+                NetworkStatsHistory history) {
+            if (history.size() == 0) return;
+            final Item item = new Item(uid, set, tag, indexOf(ident));
+            item.history = history;
+            mItems.add(item);
+        }
+
+        private int indexOf(NetworkIdentitySet ident) {
+            Integer index = mIdentIndex.get(ident);
+            if (index == null) {
+                index = mIdents.size();
+                mIdentIndex.put(ident, index);
+                mIdents.add(ident);
+            }
+            return index;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            write(null, out);
+        }
+
+        /**
+         * Write the histories added so far combined with everything in
+         * <var>base</var>.  Keys only found in <var>base</var> are copied
+         * bucket by bucket without being inflated, so only the keys that were
+         * added are held on the heap.
+         */
+        void write(@Nullable NetworkStatsColumnarFile base, DataOutputStream out)
+                throws IOException {
+            if (base != null) {
+                // Base idents go first so that base keys keep their order
+                final ArrayList<Item> added = new ArrayList<>(mItems);
+                final ArrayList<NetworkIdentitySet> addedIdents = new ArrayList<>(mIdents);
+                mItems.clear();
+                mIdents.clear();
+                mIdentIndex.clear();
+                for (NetworkIdentitySet ident : base.mIdents) {
+                    indexOf(ident);
+                }
+                final ByteBuffer buffer = base.checkOpen();
+                for (int i = 0; i < base.mKeyCount; i++) {
+                    final int key = base.mKeyOffset + i * KEY_LENGTH;
+                    final Item item = new Item(buffer.getInt(key + KEY_UID),
+                            buffer.getInt(key + KEY_SET), buffer.getInt(key + KEY_TAG),
+                            buffer.getInt(key + KEY_IDENT));
+                    item.baseKey = i;
+                    mItems.add(item);
+                }
+                for (int i = 0; i < added.size(); i++) {
+                    final Item item = added.get(i);
+                    final Item remapped = new Item(item.uid, item.set, item.tag,
+                            indexOf(addedIdents.get(item.ident)));
+                    remapped.history = item.history;
+                    mItems.add(remapped);
+                }
+            }
+            Collections.sort(mItems);
+
+            // Fold added histories into the base key they share, if any
+            int kept = 0;
+            for (int i = 0; i < mItems.size(); i++) {
+                final Item item = mItems.get(i);
+                if (kept > 0 && mItems.get(kept - 1).compareTo(item) == 0) {
+                    final Item into = mItems.get(kept - 1);
+                    final Item from = item.baseKey >= 0 ? item : into;
+                    final NetworkStatsHistory history = item.baseKey >= 0 ? into.history
+                            : item.history;
+                    final NetworkStatsHistory merged = new NetworkStatsHistory(
+                            history.getBucketDuration(), history.size());
+                    if (from.baseKey >= 0) {
+                        base.recordKey(from.baseKey, merged);
+                    }
+                    merged.recordEntireHistory(history);
+                    into.history = merged;
+                    into.baseKey = -1;
+                } else {
+                    mItems.set(kept++, item);
+                }
+            }
+            mItems.subList(kept, mItems.size()).clear();
+
+            final ByteBuffer baseBuffer = base != null ? base.checkOpen() : null;
+            long bucketCount = 0;
+            for (int i = 0; i < mItems.size(); i++) {
+                bucketCount += countOf(mItems.get(i), base);
+            }
+
+            final ByteArrayOutputStream identBytes = new ByteArrayOutputStream();
+            final DataOutputStream identOut = new DataOutputStream(identBytes);
+            for (int i = 0; i < mIdents.size(); i++) {
+                mIdents.get(i).writeToStream(identOut);
+            }
+            identOut.flush();
+
+            final int identOffset = HEADER_LENGTH;
+            final int keyOffset = align(identOffset + identBytes.size());
+            final long columnOffset = (long) keyOffset + (long) mItems.size() * KEY_LENGTH;
+            if (columnOffset + bucketCount * 8 * COLUMN_COUNT > Integer.MAX_VALUE) {
+                throw new IOException("collection too large for columnar format");
+            }
+
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(VERSION_INIT);
+            out.writeInt(mIdents.size());
+            out.writeInt(mItems.size());
+            out.writeInt((int) bucketCount);
+            out.writeInt(identOffset);
+            out.writeInt(keyOffset);
+            out.writeInt((int) columnOffset);
+
+            identBytes.writeTo(out);
+            for (int i = identOffset + identBytes.size(); i < keyOffset; i++) {
+                out.writeByte(0);
+            }
+
+            int first = 0;
+            for (int i = 0; i < mItems.size(); i++) {
+                final Item item = mItems.get(i);
+                final int count = countOf(item, base);
+                out.writeInt(item.uid);
+                out.writeInt(item.set);
+                out.writeInt(item.tag);
+                out.writeInt(item.ident);
+                out.writeInt(first);
+                out.writeInt(count);
+                if (item.history != null) {
+                    out.writeLong(item.history.getBucketDuration());
+                    out.writeLong(item.history.getStart());
+                    out.writeLong(item.history.getEnd());
+                } else {
+                    final int key = base.mKeyOffset + item.baseKey * KEY_LENGTH;
+                    out.writeLong(baseBuffer.getLong(key + KEY_BUCKET_DURATION));
+                    out.writeLong(baseBuffer.getLong(key + KEY_START));
+                    out.writeLong(baseBuffer.getLong(key + KEY_END));
+                }
+                first += count;
+            }
+
+            final NetworkStatsHistory.Entry entry = new NetworkStatsHistory.Entry();
+            for (int column = 0; column < COLUMN_COUNT; column++) {
+                for (int i = 0; i < mItems.size(); i++) {
+                    final Item item = mItems.get(i);
+                    final NetworkStatsHistory history = item.history;
+                    if (history != null) {
+                        for (int j = 0; j < history.size(); j++) {
+                            history.getValues(j, entry);
+                            out.writeLong(valueOf(column, entry));
+                        }
+                    } else {
+                        final int key = base.mKeyOffset + item.baseKey * KEY_LENGTH;
+                        final int baseFirst = baseBuffer.getInt(key + KEY_FIRST);
+                        final int baseLast = baseFirst + baseBuffer.getInt(key + KEY_COUNT);
+                        for (int j = baseFirst; j < baseLast; j++) {
+                            out.writeLong(base.getColumn(column, j));
+                        }
+                    }
+                }
+            }
+        }
+
+        private static int countOf(Item item, @Nullable NetworkStatsColumnarFile base) {
+            if (item.history != null) {
+                return item.history.size();
+            }
+            return base.mBuffer.getInt(base.mKeyOffset + item.baseKey * KEY_LENGTH + KEY_COUNT);
+        }
+
+        private static long valueOf(int column, NetworkStatsHistory.Entry entry) {
+            final long value;
+            switch (column) {
+                case COLUMN_BUCKET_START: return entry.bucketStart;
+                case COLUMN_RX_BYTES: value = entry.rxBytes; break;
+                case COLUMN_RX_PACKETS: value = entry.rxPackets; break;
+                case COLUMN_TX_BYTES: value = entry.txBytes; break;
+                case COLUMN_TX_PACKETS: value = entry.txPackets; break;
+                case COLUMN_OPERATIONS: value = entry.operations; break;
+                default: throw new IllegalArgumentException("unknown column " + column);
+            }
+            // Fields the history doesn't track come back as UNKNOWN
+            return value < 0 ? 0 : value;
+        }
+
+        private static int align(int offset) {
+            return (offset + 7) & ~7;
+        }
+    }
+}
@@ -19,6 +19,8 @@ package com.android.server.net;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.TrafficStats.KB_IN_BYTES;
 import static android.net.TrafficStats.MB_IN_BYTES;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 import static android.text.format.DateUtils.YEAR_IN_MILLIS;
 
 import static com.android.internal.util.Preconditions.checkNotNull;
@@ -31,7 +33,9 @@ import android.net.NetworkTemplate;
 import android.net.TrafficStats;
 import android.os.Binder;
 import android.os.DropBoxManager;
+import android.os.SystemClock;
 import android.service.NetworkStatsRecorderProto;
+import android.util.AtomicFile;
 import android.util.Log;
 import android.util.MathUtils;
 import android.util.Slog;
@@ -45,9 +49,11 @@ import libcore.io.IoUtils;
 
 import com.google.android.collect.Sets;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -75,6 +81,13 @@ public class NetworkStatsRecorder {
     /** Dump before deleting in {@link #recoverFromWtf()}. */
     private static final boolean DUMP_BEFORE_DELETE = true;
 
+    /** Append to the columnar snapshot once this many persists have piled up on top of it. */
+    private static final int COLUMNAR_MAX_PERSISTS = 16;
+    /** Rebuild the columnar snapshot once it is this old, so rotated-out data ages out. */
+    private static final long COLUMNAR_MAX_AGE = DAY_IN_MILLIS;
+    /** Don't try writing the columnar snapshot again this soon after it failed. */
+    private static final long COLUMNAR_RETRY_DELAY = HOUR_IN_MILLIS;
+
     private final FileRotator mRotator;
     private final NonMonotonicObserver<String> mObserver;
     private final DropBoxManager mDropBox;
@@ -93,6 +106,29 @@ public class NetworkStatsRecorder {
 
     private WeakReference<NetworkStatsCollection> mComplete;
 
+    /**
+     * Where to keep a memory-mapped {@link NetworkStatsColumnarFile} snapshot
+     * of everything persisted by {@link #mRotator}, or null when disabled.
+     * Queries answered from the snapshot combine it with
+     * {@link #mColumnarDelta} and {@link #mPending} instead of loading the
+     * complete history.
+     */
+    private final File mColumnarFile;
+    private NetworkStatsColumnarFile mColumnar;
+    /** Everything persisted since {@link #mColumnar} was written. */
+    private final NetworkStatsCollection mColumnarDelta;
+    private long mColumnarWrittenRealtime;
+    private int mColumnarPersists;
+    /** When writing the snapshot last failed, or 0 if it didn't. */
+    private long mColumnarFailedRealtime;
+
+    private int mColumnarRebuildCount;
+    private int mColumnarAppendCount;
+    private int mColumnarFailureCount;
+    private long mColumnarRebuildMillis;
+    private long mColumnarQueryCount;
+    private long mColumnarBucketsRead;
+
     /**
      * Non-persisted recorder, with only one bucket. Used by {@link NetworkStatsObservers}.
      */
@@ -111,6 +147,9 @@ public class NetworkStatsRecorder {
         mSinceBoot = new NetworkStatsCollection(mBucketDuration);
 
         mPendingRewriter = null;
+
+        mColumnarFile = null;
+        mColumnarDelta = null;
     }
 
     /**
@@ -118,6 +157,16 @@ public class NetworkStatsRecorder {
      */
     public NetworkStatsRecorder(FileRotator rotator, NonMonotonicObserver<String> observer,
             DropBoxManager dropBox, String cookie, long bucketDuration, boolean onlyTags) {
+        this(rotator, observer, dropBox, cookie, bucketDuration, onlyTags, null);
+    }
+
+    /**
+     * Persisted recorder that also answers history queries from a
+     * memory-mapped columnar snapshot stored in the given file.
+     */
+    public NetworkStatsRecorder(FileRotator rotator, NonMonotonicObserver<String> observer,
+            DropBoxManager dropBox, String cookie, long bucketDuration, boolean onlyTags,
+            @Nullable File columnarFile) {
         mRotator = checkNotNull(rotator, "missing FileRotator");
         mObserver = checkNotNull(observer, "missing NonMonotonicObserver");
         mDropBox = checkNotNull(dropBox, "missing DropBoxManager");
@@ -130,6 +179,11 @@ public class NetworkStatsRecorder {
         mSinceBoot = new NetworkStatsCollection(bucketDuration);
 
         mPendingRewriter = new CombiningRewriter(mPending);
+
+        // A snapshot left behind by a previous boot may be missing later
+        // persists, so it is always rewritten before first use.
+        mColumnarFile = columnarFile;
+        mColumnarDelta = columnarFile != null ? new NetworkStatsCollection(bucketDuration) : null;
     }
 
     public void setPersistThreshold(long thresholdBytes) {
@@ -185,6 +239,154 @@ public class NetworkStatsRecorder {
         return res;
     }
 
+    public boolean isColumnarEnabled() {
+        return mColumnarFile != null;
+    }
+
+    /**
+     * Combine all history matching the requested parameters, as
+     * {@link NetworkStatsCollection#getHistory} does on the complete history.
+     * When a columnar snapshot is enabled, only the matching buckets are read
+     * from it and the complete history is not loaded.
+     */
+    public NetworkStatsHistory getHistoryLocked(NetworkTemplate template, int uid, int set,
+            int tag, int fields, long start, long end,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid) {
+        final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
+        final NetworkStatsColumnarFile columnar = (complete == null && mColumnarFile != null)
+                ? getOrWriteColumnarLocked() : null;
+        if (columnar == null) {
+            final NetworkStatsCollection res = complete != null ? complete
+                    : getOrLoadCompleteLocked();
+            return res.getHistory(template, null, uid, set, tag, fields, start, end,
+                    accessLevel, callerUid);
+        }
+
+        // Reuse the collection checks for access and for the two small
+        // in-memory collections layered on top of the snapshot
+        final NetworkStatsHistory combined = mColumnarDelta.getHistory(template, null, uid, set,
+                tag, fields, start, end, accessLevel, callerUid);
+        combined.recordEntireHistory(mPending.getHistory(template, null, uid, set, tag, fields,
+                start, end, accessLevel, callerUid));
+        if (start != end) {
+            mColumnarBucketsRead += columnar.recordHistory(combined, template, uid, set, tag,
+                    start, end);
+        }
+        mColumnarQueryCount++;
+        return combined;
+    }
+
+    private NetworkStatsColumnarFile getOrWriteColumnarLocked() {
+        checkNotNull(mRotator, "missing FileRotator");
+        final long startRealtime = SystemClock.elapsedRealtime();
+        if (mColumnar != null && startRealtime - mColumnarWrittenRealtime < COLUMNAR_MAX_AGE) {
+            return mColumnar;
+        }
+        if (mColumnarFailedRealtime != 0
+                && startRealtime - mColumnarFailedRealtime < COLUMNAR_RETRY_DELAY) {
+            return null;
+        }
+        invalidateColumnarLocked();
+
+        if (LOGD) Slog.d(TAG, "getOrWriteColumnarLocked() writing snapshot for " + mCookie);
+        try {
+            // Fold in one rotated file at a time, so that the complete
+            // history is never inflated; pending stats are layered on at
+            // query time
+            mRotator.readMatching(in -> {
+                final NetworkStatsCollection chunk = new NetworkStatsCollection(mBucketDuration);
+                chunk.read(in);
+                writeColumnarLocked(chunk);
+            }, Long.MIN_VALUE, Long.MAX_VALUE);
+            if (mColumnar == null) {
+                writeColumnarLocked(new NetworkStatsCollection(mBucketDuration));
+            }
+        } catch (IOException e) {
+            onColumnarWriteFailedLocked(e);
+        } catch (OutOfMemoryError e) {
+            onColumnarWriteFailedLocked(e);
+        }
+
+        final long now = SystemClock.elapsedRealtime();
+        mColumnarWrittenRealtime = now;
+        mColumnarRebuildCount++;
+        mColumnarRebuildMillis += now - startRealtime;
+        return mColumnar;
+    }
+
+    /**
+     * Append everything persisted since the columnar snapshot was written to
+     * it, so that {@link #mColumnarDelta} stays small.
+     */
+    private void appendColumnarLocked() {
+        if (LOGD) Slog.d(TAG, "appendColumnarLocked() appending to snapshot for " + mCookie);
+        final long startRealtime = SystemClock.elapsedRealtime();
+        try {
+            writeColumnarLocked(mColumnarDelta);
+            mColumnarDelta.reset();
+            mColumnarPersists = 0;
+        } catch (IOException e) {
+            onColumnarWriteFailedLocked(e);
+        } catch (OutOfMemoryError e) {
+            onColumnarWriteFailedLocked(e);
+        }
+        mColumnarAppendCount++;
+        mColumnarRebuildMillis += SystemClock.elapsedRealtime() - startRealtime;
+    }
+
+    /**
+     * Replace the columnar snapshot with one that also contains
+     * <var>added</var>, reading the current snapshot rather than the
+     * rotated files.
+     */
+    private void writeColumnarLocked(NetworkStatsCollection added) throws IOException {
+        final AtomicFile file = new AtomicFile(mColumnarFile);
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            added.writeColumnar(mColumnar, out);
+            file.finishWrite(fos);
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            file.failWrite(fos);
+            throw e;
+        }
+
+        // The old mapping stays valid until closed, even though its file is gone
+        final NetworkStatsColumnarFile previous = mColumnar;
+        mColumnar = NetworkStatsColumnarFile.open(mColumnarFile);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Give up on the columnar snapshot for {@link #COLUMNAR_RETRY_DELAY}, so
+     * that queries fall back to the complete history instead of retrying the
+     * write every time.
+     */
+    private void onColumnarWriteFailedLocked(Throwable e) {
+        Slog.w(TAG, "problem writing columnar stats for " + mCookie, e);
+        invalidateColumnarLocked();
+        mColumnarFailedRealtime = SystemClock.elapsedRealtime();
+        mColumnarFailureCount++;
+    }
+
+    /**
+     * Drop the columnar snapshot after persisted history changed in a way
+     * that {@link #mColumnarDelta} can't describe.
+     */
+    private void invalidateColumnarLocked() {
+        if (mColumnarFile == null) return;
+        if (mColumnar != null) {
+            mColumnar.close();
+            mColumnar = null;
+            new AtomicFile(mColumnarFile).delete();
+        }
+        mColumnarDelta.reset();
+        mColumnarPersists = 0;
+    }
+
     private NetworkStatsCollection loadLocked(long start, long end) {
         if (LOGD) Slog.d(TAG, "loadLocked() reading from disk for " + mCookie);
         final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration);
@@ -310,6 +512,14 @@ public class NetworkStatsRecorder {
         checkNotNull(mRotator, "missing FileRotator");
         if (mPending.isDirty()) {
             if (LOGD) Slog.d(TAG, "forcePersistLocked() writing for " + mCookie);
+            if (mColumnar != null) {
+                // Pending stats are about to move to disk; keep them visible
+                // to queries answered from the snapshot.
+                mColumnarDelta.recordCollection(mPending);
+                if (++mColumnarPersists >= COLUMNAR_MAX_PERSISTS) {
+                    appendColumnarLocked();
+                }
+            }
             try {
                 mRotator.rewriteActive(mPendingRewriter, currentTimeMillis);
                 mRotator.maybeRotate(currentTimeMillis);
@@ -341,6 +551,7 @@ public class NetworkStatsRecorder {
                 recoverFromWtf();
             }
         }
+        invalidateColumnarLocked();
 
         // Remove any pending stats
         if (mPending != null) {
@@ -436,6 +647,7 @@ public class NetworkStatsRecorder {
 
         // legacy file still exists; start empty to avoid double importing
         mRotator.deleteAll();
+        invalidateColumnarLocked();
 
         final NetworkStatsCollection collection = new NetworkStatsCollection(mBucketDuration);
         collection.readLegacyNetwork(file);
@@ -456,6 +668,7 @@ public class NetworkStatsRecorder {
 
         // legacy file still exists; start empty to avoid double importing
         mRotator.deleteAll();
+        invalidateColumnarLocked();
 
         final NetworkStatsCollection collection = new NetworkStatsCollection(mBucketDuration);
         collection.readLegacyUid(file, mOnlyTags);
@@ -475,6 +688,23 @@ public class NetworkStatsRecorder {
         if (mPending != null) {
             pw.print("Pending bytes: "); pw.println(mPending.getTotalBytes());
         }
+        if (mColumnarFile != null) {
+            pw.print("Columnar snapshot: ");
+            if (mColumnar != null) {
+                pw.print("keys="); pw.print(mColumnar.getKeyCount());
+                pw.print(" buckets="); pw.print(mColumnar.getBucketCount());
+                pw.print(" mapped="); pw.print(mColumnar.getLength());
+                pw.print(" persists="); pw.print(mColumnarPersists);
+            } else {
+                pw.print("none");
+            }
+            pw.print(" rebuilds="); pw.print(mColumnarRebuildCount);
+            pw.print(" appends="); pw.print(mColumnarAppendCount);
+            pw.print(" failures="); pw.print(mColumnarFailureCount);
+            pw.print(" rebuildMs="); pw.print(mColumnarRebuildMillis);
+            pw.print(" queries="); pw.print(mColumnarQueryCount);
+            pw.print(" bucketsRead="); pw.println(mColumnarBucketsRead);
+        }
         if (fullHistory) {
             pw.println("Complete history:");
             getOrLoadCompleteLocked().dump(pw);
@@ -517,5 +747,6 @@ public class NetworkStatsRecorder {
         }
 
         mRotator.deleteAll();
+        invalidateColumnarLocked();
     }
 }
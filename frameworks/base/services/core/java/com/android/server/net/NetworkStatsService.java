@@ -109,6 +109,7 @@ import android.os.Messenger;
 import android.os.PowerManager;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.Trace;
 import android.os.UserHandle;
 import android.provider.Settings;
@@ -179,6 +180,14 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
     private static final String TAG_NETSTATS_ERROR = "netstats_error";
 
+    /**
+     * Answer UID history queries from a memory-mapped columnar snapshot
+     * instead of loading the complete UID history onto the heap.
+     */
+    private static final boolean USE_COLUMNAR_UID_STATS =
+            SystemProperties.getBoolean("persist.sys.netstats.columnar", false);
+    private static final String SUFFIX_COLUMNAR = ".columnar";
+
     private final Context mContext;
     private final INetworkManagementService mNetworkManager;
     private final AlarmManager mAlarmManager;
@@ -384,8 +393,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             // create data recorders along with historical rotators
             mDevRecorder = buildRecorder(PREFIX_DEV, mSettings.getDevConfig(), false);
             mXtRecorder = buildRecorder(PREFIX_XT, mSettings.getXtConfig(), false);
-            mUidRecorder = buildRecorder(PREFIX_UID, mSettings.getUidConfig(), false);
-            mUidTagRecorder = buildRecorder(PREFIX_UID_TAG, mSettings.getUidTagConfig(), true);
+            mUidRecorder = buildRecorder(PREFIX_UID, mSettings.getUidConfig(), false,
+                    USE_COLUMNAR_UID_STATS);
+            mUidTagRecorder = buildRecorder(PREFIX_UID_TAG, mSettings.getUidTagConfig(), true,
+                    USE_COLUMNAR_UID_STATS);
 
             updatePersistThresholdsLocked();
 
@@ -432,11 +443,20 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
     private NetworkStatsRecorder buildRecorder(
             String prefix, NetworkStatsSettings.Config config, boolean includeTags) {
+        return buildRecorder(prefix, config, includeTags, false);
+    }
+
+    private NetworkStatsRecorder buildRecorder(String prefix, NetworkStatsSettings.Config config,
+            boolean includeTags, boolean columnar) {
         final DropBoxManager dropBox = (DropBoxManager) mContext.getSystemService(
                 Context.DROPBOX_SERVICE);
+        // FileRotator ignores names without a start-end range, so the
+        // snapshot can live next to the files it was built from.
+        final File columnarFile = columnar ? new File(mBaseDir, prefix + SUFFIX_COLUMNAR) : null;
         return new NetworkStatsRecorder(new FileRotator(
                 mBaseDir, prefix, config.rotateAgeMillis, config.deleteAgeMillis),
-                mNonMonotonicObserver, dropBox, prefix, config.bucketDuration, includeTags);
+                mNonMonotonicObserver, dropBox, prefix, config.bucketDuration, includeTags,
+                columnarFile);
     }
 
     @GuardedBy("mStatsLock")
@@ -594,6 +614,25 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 }
             }
 
+            private NetworkStatsHistory getUidHistory(NetworkTemplate template, int uid, int set,
+                    int tag, int fields, long start, long end) {
+                final boolean tagged = (tag != TAG_NONE);
+                synchronized (mStatsLock) {
+                    final NetworkStatsRecorder recorder = tagged ? mUidTagRecorder : mUidRecorder;
+                    final NetworkStatsCollection loaded = tagged ? mUidTagComplete : mUidComplete;
+                    if (loaded == null && recorder.isColumnarEnabled()) {
+                        // Read just this UID from the mapped snapshot, and
+                        // don't pin the complete history for this session.
+                        return recorder.getHistoryLocked(template, uid, set, tag, fields,
+                                start, end, mAccessLevel, mCallingUid);
+                    }
+                }
+                final NetworkStatsCollection complete = tagged ? getUidTagComplete()
+                        : getUidComplete();
+                return complete.getHistory(template, null, uid, set, tag, fields, start, end,
+                        mAccessLevel, mCallingUid);
+            }
+
             @Override
             public int[] getRelevantUids() {
                 return getUidComplete().getRelevantUids(mAccessLevel);
@@ -642,13 +681,8 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             public NetworkStatsHistory getHistoryForUid(
                     NetworkTemplate template, int uid, int set, int tag, int fields) {
                 // NOTE: We don't augment UID-level statistics
-                if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, null, uid, set, tag, fields,
-                            Long.MIN_VALUE, Long.MAX_VALUE, mAccessLevel, mCallingUid);
-                } else {
-                    return getUidTagComplete().getHistory(template, null, uid, set, tag, fields,
-                            Long.MIN_VALUE, Long.MAX_VALUE, mAccessLevel, mCallingUid);
-                }
+                return getUidHistory(template, uid, set, tag, fields,
+                        Long.MIN_VALUE, Long.MAX_VALUE);
             }
 
             @Override
@@ -656,12 +690,8 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     NetworkTemplate template, int uid, int set, int tag, int fields,
                     long start, long end) {
                 // NOTE: We don't augment UID-level statistics
-                if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, null, uid, set, tag, fields,
-                            start, end, mAccessLevel, mCallingUid);
-                } else if (uid == Binder.getCallingUid()) {
-                    return getUidTagComplete().getHistory(template, null, uid, set, tag, fields,
-                            start, end, mAccessLevel, mCallingUid);
+                if (tag == TAG_NONE || uid == Binder.getCallingUid()) {
+                    return getUidHistory(template, uid, set, tag, fields, start, end);
                 } else {
                     throw new SecurityException("Calling package " + mCallingPackage
                             + " cannot access tag information from a different uid");
@@ -4507,7 +4507,12 @@ public class NotificationManagerService extends SystemService {
                     }
 
                     applyZenModeLocked(r);
-                    mRankingHelper.sort(mNotificationList);
+                    if (mRankingHandler.isSortPending()) {
+                        // Other records' signals may be stale; rank everything.
+                        mRankingHelper.sort(mNotificationList);
+                    } else {
+                        mRankingHelper.sort(mNotificationList, r, old);
+                    }
 
                     if (notification.getSmallIcon() != null) {
                         StatusBarNotification oldSbn = (old != null) ? old.sbn : null;
@@ -5425,6 +5430,10 @@ public class NotificationManagerService extends SystemService {
             sendMessage(msg);
         }
 
+        public boolean isSortPending() {
+            return hasMessages(MESSAGE_RANKING_SORT);
+        }
+
         public void requestReconsideration(RankingReconsideration recon) {
             Message m = Message.obtain(this,
                     NotificationManagerService.MESSAGE_RECONSIDER_RANKING, recon);
@@ -17,5 +17,7 @@ package com.android.server.notification;
 
 public interface RankingHandler {
     public void requestSort();
+    /** Whether a sort requested through {@link #requestSort} has yet to run. */
+    public boolean isSortPending();
     public void requestReconsideration(RankingReconsideration recon);
 }
\ No newline at end of file
@@ -19,6 +19,7 @@ import static android.app.NotificationManager.IMPORTANCE_NONE;
 
 import android.annotation.IntDef;
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationChannelGroup;
@@ -30,6 +31,7 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ParceledListSlice;
 import android.metrics.LogMaker;
 import android.os.Build;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings.Secure;
 import android.service.notification.NotificationListenerService.Ranking;
@@ -91,6 +93,22 @@ public class RankingHelper implements RankingConfig {
     private static final int DEFAULT_VISIBILITY = NotificationManager.VISIBILITY_NO_OVERRIDE;
     private static final int DEFAULT_IMPORTANCE = NotificationManager.IMPORTANCE_UNSPECIFIED;
     private static final boolean DEFAULT_SHOW_BADGE = true;
+
+    /**
+     * When set, posting a single notification re-ranks just that record and its group
+     * instead of sorting the whole list; see {@link #sort(ArrayList, NotificationRecord,
+     * NotificationRecord)}.
+     */
+    static final boolean INCREMENTAL_SORT =
+            SystemProperties.getBoolean("persist.sys.notification.incremental_sort", false);
+
+    /**
+     * Gap left between consecutive authoritative ranks by a full sort, so that later
+     * records can be slotted in without renumbering the rest.  Ranks are written as four
+     * hex digits into the global sort key, so the gap shrinks for very long lists.
+     */
+    private static final int RANK_SPACING = 64;
+    private static final int MAX_RANK = 0xffff;
     /**
      * Default value for what fields are user locked. See {@link LockableAppFields} for all lockable
      * fields.
@@ -111,6 +129,10 @@ public class RankingHelper implements RankingConfig {
 
     private final ArrayMap<String, Record> mRecords = new ArrayMap<>(); // pkg|uid => Record
     private final ArrayMap<String, NotificationRecord> mProxyByGroupTmp = new ArrayMap<>();
+    // Group proxies the current global sort keys were built with.
+    private final ArrayMap<String, NotificationRecord> mLastProxyByGroup = new ArrayMap<>();
+    private int mFullSortCount;
+    private int mIncrementalSortCount;
     private final ArrayMap<String, Record> mRestoredWithoutUids = new ArrayMap<>(); // pkg => Record
 
     private final Context mContext;
@@ -467,11 +489,14 @@ public class RankingHelper implements RankingConfig {
         // rank each record individually
         Collections.sort(notificationList, mPreliminaryComparator);
 
+        final int spacing = INCREMENTAL_SORT
+                ? Math.max(1, Math.min(RANK_SPACING, MAX_RANK / Math.max(N, 1))) : 1;
         synchronized (mProxyByGroupTmp) {
+            mFullSortCount++;
             // record individual ranking result and nominate proxies for each group
             for (int i = N - 1; i >= 0; i--) {
                 final NotificationRecord record = notificationList.get(i);
-                record.setAuthoritativeRank(i);
+                record.setAuthoritativeRank(i * spacing);
                 final String groupKey = record.getGroupKey();
                 NotificationRecord existingProxy = mProxyByGroupTmp.get(groupKey);
                 if (existingProxy == null) {
@@ -483,38 +508,184 @@ public class RankingHelper implements RankingConfig {
             for (int i = 0; i < N; i++) {
                 final NotificationRecord record = notificationList.get(i);
                 NotificationRecord groupProxy = mProxyByGroupTmp.get(record.getGroupKey());
-                String groupSortKey = record.getNotification().getSortKey();
-
-                // We need to make sure the developer provided group sort key (gsk) is handled
-                // correctly:
-                //   gsk="" < gsk=non-null-string < gsk=null
-                //
-                // We enforce this by using different prefixes for these three cases.
-                String groupSortKeyPortion;
-                if (groupSortKey == null) {
-                    groupSortKeyPortion = "nsk";
-                } else if (groupSortKey.equals("")) {
-                    groupSortKeyPortion = "esk";
+                record.setGlobalSortKey(buildGlobalSortKey(record, groupProxy));
+            }
+            mLastProxyByGroup.clear();
+            if (INCREMENTAL_SORT) {
+                mLastProxyByGroup.putAll(mProxyByGroupTmp);
+            }
+            mProxyByGroupTmp.clear();
+        }
+
+        // Do a second ranking pass, using group proxies
+        Collections.sort(notificationList, mFinalComparator);
+    }
+
+    /**
+     * Re-ranks <var>notificationList</var> after <var>changed</var> was added to it or
+     * replaced <var>old</var> in it, assuming nothing else about the list changed since
+     * the last sort other than removals.  Only the changed record, its group, and groups
+     * whose proxy has since gone away are re-keyed and moved; when that cannot be done,
+     * or {@link #INCREMENTAL_SORT} is off, this is a full {@link #sort}.  That includes
+     * <var>old</var> still being in the list, and <var>changed</var> having moved to another
+     * group than <var>old</var> was in.
+     */
+    public void sort(ArrayList<NotificationRecord> notificationList,
+            NotificationRecord changed, @Nullable NotificationRecord old) {
+        if (!INCREMENTAL_SORT || !sortIncremental(notificationList, changed, old)) {
+            sort(notificationList);
+        }
+    }
+
+    private boolean sortIncremental(ArrayList<NotificationRecord> notificationList,
+            NotificationRecord changed, @Nullable NotificationRecord old) {
+        final int N = notificationList.size();
+        if (N == 0) {
+            return false;
+        }
+        if (old != null && !old.getGroupKey().equals(changed.getGroupKey())) {
+            // Both the group left and the group joined need new proxies and keys.
+            return false;
+        }
+
+        synchronized (mProxyByGroupTmp) {
+            // Put everything else back into preliminary order using the ranks from the last
+            // sort, packed as (rank, index) so that this is a primitive sort.  Also find the
+            // current proxy of each group, which like sort() above is its last record in
+            // preliminary order.
+            final long[] byRank = new long[N - 1];
+            int count = 0;
+            int changedIndex = -1;
+            for (int i = 0; i < N; i++) {
+                final NotificationRecord record = notificationList.get(i);
+                if (record == changed) {
+                    changedIndex = i;
+                    continue;
+                }
+                if (record == old || record.getGlobalSortKey() == null
+                        || count == byRank.length) {
+                    // Not replaced, never ranked, or changed appears more than once.
+                    mProxyByGroupTmp.clear();
+                    return false;
+                }
+                byRank[count++] = (((long) record.getAuthoritativeRank()) << 32) | i;
+                final NotificationRecord proxy = mProxyByGroupTmp.get(record.getGroupKey());
+                if (proxy == null
+                        || record.getAuthoritativeRank() > proxy.getAuthoritativeRank()) {
+                    mProxyByGroupTmp.put(record.getGroupKey(), record);
+                }
+            }
+            if (changedIndex < 0) {
+                mProxyByGroupTmp.clear();
+                return false;
+            }
+            Arrays.sort(byRank);
+
+            // Find where the changed record goes, after any equal ones as a stable sort would.
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                final NotificationRecord other = notificationList.get((int) byRank[mid]);
+                if (mPreliminaryComparator.compare(other, changed) <= 0) {
+                    lo = mid + 1;
                 } else {
-                    groupSortKeyPortion = "gsk=" + groupSortKey;
+                    hi = mid;
                 }
+            }
+            final int prevRank = (lo > 0) ? (int) (byRank[lo - 1] >> 32) : -1;
+            final int nextRank = (lo < count) ? (int) (byRank[lo] >> 32) : MAX_RANK + 1;
+            if (nextRank - prevRank < 2) {
+                // No room left between the neighbors; renumber everything.
+                mProxyByGroupTmp.clear();
+                return false;
+            }
+            mIncrementalSortCount++;
+            changed.setAuthoritativeRank((prevRank + nextRank) / 2);
+            final String groupKey = changed.getGroupKey();
+            final NotificationRecord proxy = mProxyByGroupTmp.get(groupKey);
+            if (proxy == null || changed.getAuthoritativeRank() > proxy.getAuthoritativeRank()) {
+                mProxyByGroupTmp.put(groupKey, changed);
+            }
 
-                boolean isGroupSummary = record.getNotification().isGroupSummary();
-                record.setGlobalSortKey(
-                        String.format("intrsv=%c:grnk=0x%04x:gsmry=%c:%s:rnk=0x%04x",
-                        record.isRecentlyIntrusive()
-                                && record.getImportance() > NotificationManager.IMPORTANCE_MIN
-                                ? '0' : '1',
-                        groupProxy.getAuthoritativeRank(),
-                        isGroupSummary ? '0' : '1',
-                        groupSortKeyPortion,
-                        record.getAuthoritativeRank()));
+            // Besides the changed record's group, any group whose proxy went away (the old
+            // record, or a cancelled one) needs new keys.  Pull those groups out of the list.
+            final ArrayList<NotificationRecord> moved = new ArrayList<>();
+            int kept = 0;
+            for (int i = 0; i < N; i++) {
+                final NotificationRecord record = notificationList.get(i);
+                final String key = record.getGroupKey();
+                if (key.equals(groupKey)
+                        || mProxyByGroupTmp.get(key) != mLastProxyByGroup.get(key)) {
+                    moved.add(record);
+                } else {
+                    notificationList.set(kept++, record);
+                }
+            }
+            notificationList.subList(kept, N).clear();
+
+            // Everyone else keeps their key, so the rest of the list is still in order.
+            for (int i = 0; i < moved.size(); i++) {
+                final NotificationRecord record = moved.get(i);
+                record.setGlobalSortKey(buildGlobalSortKey(record,
+                        mProxyByGroupTmp.get(record.getGroupKey())));
+                int index = Collections.binarySearch(notificationList, record, mFinalComparator);
+                if (index < 0) {
+                    index = -index - 1;
+                }
+                notificationList.add(index, record);
             }
+            mLastProxyByGroup.clear();
+            mLastProxyByGroup.putAll(mProxyByGroupTmp);
             mProxyByGroupTmp.clear();
         }
+        return true;
+    }
 
-        // Do a second ranking pass, using group proxies
-        Collections.sort(notificationList, mFinalComparator);
+    /**
+     * Builds the global sort key
+     * {@code intrsv=%c:grnk=0x%04x:gsmry=%c:%s:rnk=0x%04x}, without going through
+     * String.format as this runs for every record on every sort.
+     */
+    private static String buildGlobalSortKey(NotificationRecord record,
+            NotificationRecord groupProxy) {
+        String groupSortKey = record.getNotification().getSortKey();
+
+        // We need to make sure the developer provided group sort key (gsk) is handled
+        // correctly:
+        //   gsk="" < gsk=non-null-string < gsk=null
+        //
+        // We enforce this by using different prefixes for these three cases.
+        String groupSortKeyPortion;
+        if (groupSortKey == null) {
+            groupSortKeyPortion = "nsk";
+        } else if (groupSortKey.equals("")) {
+            groupSortKeyPortion = "esk";
+        } else {
+            groupSortKeyPortion = "gsk=" + groupSortKey;
+        }
+
+        boolean isGroupSummary = record.getNotification().isGroupSummary();
+        final StringBuilder sb = new StringBuilder(48 + groupSortKeyPortion.length());
+        sb.append("intrsv=").append(record.isRecentlyIntrusive()
+                && record.getImportance() > NotificationManager.IMPORTANCE_MIN
+                ? '0' : '1');
+        sb.append(":grnk=0x");
+        appendHex4(sb, groupProxy.getAuthoritativeRank());
+        sb.append(":gsmry=").append(isGroupSummary ? '0' : '1');
+        sb.append(':').append(groupSortKeyPortion);
+        sb.append(":rnk=0x");
+        appendHex4(sb, record.getAuthoritativeRank());
+        return sb.toString();
+    }
+
+    /** Same as {@code %04x}. */
+    private static void appendHex4(StringBuilder sb, int value) {
+        final String hex = Integer.toHexString(value);
+        for (int i = hex.length(); i < 4; i++) {
+            sb.append('0');
+        }
+        sb.append(hex);
     }
 
     public int indexOf(ArrayList<NotificationRecord> notificationList, NotificationRecord target) {
@@ -1096,6 +1267,12 @@ public class RankingHelper implements RankingConfig {
             pw.println(mSignalExtractors[i].getClass().getSimpleName());
         }
 
+        pw.print(prefix);
+        pw.print("sorts: full=");
+        pw.print(mFullSortCount);
+        pw.print(" incremental=");
+        pw.println(mIncrementalSortCount);
+
         pw.print(prefix);
         pw.println("per-package config:");
 
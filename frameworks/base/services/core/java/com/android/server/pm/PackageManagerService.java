@@ -441,6 +441,13 @@ public class PackageManagerService extends IPackageManager.Stub
     private static final boolean ENABLE_FREE_CACHE_V2 =
             SystemProperties.getBoolean("fw.free_cache_v2", true);
 
+    /**
+     * Whether to scan package directories on a thread-pool sized from the number of cores,
+     * largest packages first, see {@link ParallelPackageParser}.
+     */
+    private static final boolean PARALLEL_SCAN_LARGEST_FIRST =
+            SystemProperties.getBoolean("pm.boot.parallel_scan_largest_first", false);
+
     private static final int RADIO_UID = Process.PHONE_UID;
     private static final int LOG_UID = Process.LOG_UID;
     private static final int NFC_UID = Process.NFC_UID;
@@ -2864,6 +2871,8 @@ public class PackageManagerService extends IPackageManager.Stub
             deleteTempPackageFiles();
 
             final int cachedSystemApps = PackageParser.sCachedPackageReadCount.get();
+            final long cachedSystemBytes = PackageParser.sCachedPackageReadBytes.get();
+            final long cachedSystemNanos = PackageParser.sCachedPackageReadNanos.get();
 
             // Remove any shared userIDs that have no associated packages
             // 删除不相干的共享 userID
@@ -2874,7 +2883,9 @@ public class PackageManagerService extends IPackageManager.Stub
                     + " ms, packageCount: " + systemPackagesCount
                     + " , timePerPackage: "
                     + (systemPackagesCount == 0 ? 0 : systemScanTime / systemPackagesCount)
-                    + " , cached: " + cachedSystemApps);
+                    + " , cached: " + cachedSystemApps
+                    + " (" + cachedSystemBytes + " bytes, "
+                    + (cachedSystemNanos / 1000000) + " ms)");
             if (mIsUpgrade && systemPackagesCount > 0) {
                 MetricsLogger.histogram(null, "ota_package_manager_system_app_avg_scan_time",
                         ((int) systemScanTime) / systemPackagesCount);
@@ -3015,6 +3026,10 @@ public class PackageManagerService extends IPackageManager.Stub
 
                 final int cachedNonSystemApps = PackageParser.sCachedPackageReadCount.get()
                                 - cachedSystemApps;
+                final long cachedNonSystemBytes = PackageParser.sCachedPackageReadBytes.get()
+                                - cachedSystemBytes;
+                final long cachedNonSystemNanos = PackageParser.sCachedPackageReadNanos.get()
+                                - cachedSystemNanos;
 
                 final long dataScanTime = SystemClock.uptimeMillis() - systemScanTime - startTime;
                 final int dataPackagesCount = mPackages.size() - systemPackagesCount;
@@ -3022,7 +3037,9 @@ public class PackageManagerService extends IPackageManager.Stub
                         + " ms, packageCount: " + dataPackagesCount
                         + " , timePerPackage: "
                         + (dataPackagesCount == 0 ? 0 : dataScanTime / dataPackagesCount)
-                        + " , cached: " + cachedNonSystemApps);
+                        + " , cached: " + cachedNonSystemApps
+                        + " (" + cachedNonSystemBytes + " bytes, "
+                        + (cachedNonSystemNanos / 1000000) + " ms)");
                 if (mIsUpgrade && dataPackagesCount > 0) {
                     MetricsLogger.histogram(null, "ota_package_manager_data_app_avg_scan_time",
                             ((int) dataScanTime) / dataPackagesCount);
@@ -8454,9 +8471,9 @@ public class PackageManagerService extends IPackageManager.Stub
         }
         try (ParallelPackageParser parallelPackageParser = new ParallelPackageParser(
                 mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
-                mParallelPackageParserCallback)) {
+                mParallelPackageParserCallback, PARALLEL_SCAN_LARGEST_FIRST)) {
             // Submit files for parsing in parallel
-            int fileCount = 0;
+            final ArrayList<File> packageFiles = new ArrayList<>(files.length);
             for (File file : files) {
                 final boolean isPackage = (isApkFile(file) || file.isDirectory())
                         && !PackageInstallerService.isStageName(file.getName());
@@ -8464,9 +8481,10 @@ public class PackageManagerService extends IPackageManager.Stub
                     // Ignore entries which are not packages
                     continue;
                 }
-                parallelPackageParser.submit(file, parseFlags);
-                fileCount++;
+                packageFiles.add(file);
             }
+            parallelPackageParser.submitAll(packageFiles, parseFlags);
+            int fileCount = packageFiles.size();
 
             // Process results one by one
             for (; fileCount > 0; fileCount--) {
@@ -8507,6 +8525,9 @@ public class PackageManagerService extends IPackageManager.Stub
                     removeCodePathLI(parseResult.scanFile);
                 }
             }
+            if (DEBUG_PACKAGE_SCANNING || PARALLEL_SCAN_LARGEST_FIRST) {
+                parallelPackageParser.logParseTimes(scanDir);
+            }
         }
     }
 
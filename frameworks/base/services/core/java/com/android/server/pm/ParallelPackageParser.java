@@ -18,49 +18,89 @@ package com.android.server.pm;
 
 import android.content.pm.PackageParser;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.util.DisplayMetrics;
+import android.util.Slog;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ConcurrentUtils;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 
 /**
  * Helper class for parallel parsing of packages using {@link PackageParser}.
- * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
+ * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}, or, in
+ * largest-first mode, of one thread per available core, largest packages first.
  * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
  */
 class ParallelPackageParser implements AutoCloseable {
+    private static final String TAG = "ParallelPackageParser";
 
     private static final int QUEUE_CAPACITY = 10;
     private static final int MAX_THREADS = 4;
 
+    /** Upper bound on the size of the thread-pool in largest-first mode. */
+    private static final int MAX_LARGEST_FIRST_THREADS = 8;
+
+    /** Number of slowest packages reported by {@link #logParseTimes}. */
+    private static final int SLOWEST_PACKAGES_TO_LOG = 5;
+
     private final String[] mSeparateProcesses;
     private final boolean mOnlyCore;
     private final DisplayMetrics mMetrics;
     private final File mCacheDir;
     private final PackageParser.Callback mPackageParserCallback;
+    private final boolean mLargestFirst;
     private volatile String mInterruptedInThread;
 
     private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
 
-    private final ExecutorService mService = ConcurrentUtils.newFixedThreadPool(MAX_THREADS,
-            "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
+    private final ExecutorService mService;
+
+    /**
+     * Number of packages submitted whose result hasn't been taken yet.  shutdownNow() only
+     * returns the tasks that haven't started, so {@link #close} relies on this.
+     */
+    private final AtomicInteger mOutstanding = new AtomicInteger();
+
+    /** Parse times of the results handed out by {@link #take}, for {@link #logParseTimes}. */
+    @GuardedBy("mParseTimes")
+    private final ArrayList<ParseTime> mParseTimes = new ArrayList<>();
+    private final long mStartTime = SystemClock.uptimeMillis();
 
     ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
             DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback) {
+        this(separateProcesses, onlyCoreApps, metrics, cacheDir, callback,
+                false /* largestFirst */);
+    }
+
+    /**
+     * @param largestFirst if true, parse on a thread-pool sized from the number of
+     *        available cores, and have {@link #submitAll} start with the largest packages
+     *        so that a single big APK doesn't end up alone on the critical path.
+     */
+    ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
+            DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback,
+            boolean largestFirst) {
         mSeparateProcesses = separateProcesses;
         mOnlyCore = onlyCoreApps;
         mMetrics = metrics;
         mCacheDir = cacheDir;
         mPackageParserCallback = callback;
+        mLargestFirst = largestFirst;
+        mService = ConcurrentUtils.newFixedThreadPool(getThreadCount(),
+                "package-parsing-thread", Process.THREAD_PRIORITY_FOREGROUND);
     }
 
     static class ParseResult {
@@ -68,6 +108,7 @@ class ParallelPackageParser implements AutoCloseable {
         PackageParser.Package pkg; // Parsed package
         File scanFile; // File that was parsed
         Throwable throwable; // Set if an error occurs during parsing
+        long parseTime; // Time spent parsing, in ms
 
         @Override
         public String toString() {
@@ -75,10 +116,58 @@ class ParallelPackageParser implements AutoCloseable {
                     "pkg=" + pkg +
                     ", scanFile=" + scanFile +
                     ", throwable=" + throwable +
+                    ", parseTime=" + parseTime +
                     '}';
         }
     }
 
+    /**
+     * What {@link #logParseTimes} needs of a {@link ParseResult}, without holding on to the
+     * parsed package.
+     */
+    private static final class ParseTime {
+        final File scanFile;
+        final long parseTime;
+
+        ParseTime(File scanFile, long parseTime) {
+            this.scanFile = scanFile;
+            this.parseTime = parseTime;
+        }
+    }
+
+    /**
+     * In largest-first mode, use one thread per core, leaving one core for the thread
+     * consuming the results, but never fewer than one or more than
+     * {@link #MAX_LARGEST_FIRST_THREADS}.
+     */
+    private int getThreadCount() {
+        if (!mLargestFirst) {
+            return MAX_THREADS;
+        }
+        final int cores = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cores - 1, MAX_LARGEST_FIRST_THREADS));
+    }
+
+    /**
+     * Returns the on-disk size of a package: the APK itself, or the sum of the APKs in a
+     * cluster package directory.
+     */
+    private static long getPackageSize(File scanFile) {
+        if (!scanFile.isDirectory()) {
+            return scanFile.length();
+        }
+        long size = 0;
+        final File[] files = scanFile.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (PackageParser.isApkFile(file)) {
+                    size += file.length();
+                }
+            }
+        }
+        return size;
+    }
+
     /**
      * Take the parsed package from the parsing queue, waiting if necessary until the element
      * appears in the queue.
@@ -89,7 +178,12 @@ class ParallelPackageParser implements AutoCloseable {
             if (mInterruptedInThread != null) {
                 throw new InterruptedException("Interrupted in " + mInterruptedInThread);
             }
-            return mQueue.take();
+            final ParseResult result = mQueue.take();
+            mOutstanding.decrementAndGet();
+            synchronized (mParseTimes) {
+                mParseTimes.add(new ParseTime(result.scanFile, result.parseTime));
+            }
+            return result;
         } catch (InterruptedException e) {
             // We cannot recover from interrupt here
             Thread.currentThread().interrupt();
@@ -97,14 +191,44 @@ class ParallelPackageParser implements AutoCloseable {
         }
     }
 
+    /**
+     * Submits all files for parsing.  In largest-first mode they are submitted largest
+     * first, otherwise in the given order.
+     * @param scanFiles files to scan
+     * @param parseFlags parse flags
+     */
+    public void submitAll(List<File> scanFiles, int parseFlags) {
+        if (!mLargestFirst) {
+            for (int i = 0; i < scanFiles.size(); i++) {
+                submit(scanFiles.get(i), parseFlags);
+            }
+            return;
+        }
+        final int count = scanFiles.size();
+        final long[] sizes = new long[count];
+        final ArrayList<Integer> order = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            sizes[i] = getPackageSize(scanFiles.get(i));
+            order.add(i);
+        }
+        Collections.sort(order, (a, b) -> Long.compare(sizes[b], sizes[a]));
+        for (int i = 0; i < count; i++) {
+            final int index = order.get(i);
+            submit(scanFiles.get(index), parseFlags);
+        }
+    }
+
     /**
      * Submits the file for parsing
      * @param scanFile file to scan
      * @param parseFlags parse falgs
      */
     public void submit(File scanFile, int parseFlags) {
+        mOutstanding.incrementAndGet();
         mService.submit(() -> {
             ParseResult pr = new ParseResult();
+            pr.scanFile = scanFile;
+            final long startTime = SystemClock.uptimeMillis();
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parallel parsePackage [" + scanFile + "]");
             try {
                 PackageParser pp = new PackageParser();
@@ -113,11 +237,11 @@ class ParallelPackageParser implements AutoCloseable {
                 pp.setDisplayMetrics(mMetrics);
                 pp.setCacheDir(mCacheDir);
                 pp.setCallback(mPackageParserCallback);
-                pr.scanFile = scanFile;
                 pr.pkg = parsePackage(pp, scanFile, parseFlags);
             } catch (Throwable e) {
                 pr.throwable = e;
             } finally {
+                pr.parseTime = SystemClock.uptimeMillis() - startTime;
                 Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
             }
             try {
@@ -138,12 +262,46 @@ class ParallelPackageParser implements AutoCloseable {
         return packageParser.parsePackage(scanFile, parseFlags, true /* useCaches */);
     }
 
+    /**
+     * Logs the wall time since this parser was created against the total parse time of the
+     * packages taken so far, along with the slowest packages, which bound how fast the scan
+     * of <var>scanDir</var> can be.
+     */
+    public void logParseTimes(File scanDir) {
+        final ArrayList<ParseTime> results;
+        synchronized (mParseTimes) {
+            results = new ArrayList<>(mParseTimes);
+        }
+        if (results.isEmpty()) {
+            return;
+        }
+        long totalParseTime = 0;
+        for (int i = 0; i < results.size(); i++) {
+            totalParseTime += results.get(i).parseTime;
+        }
+        Collections.sort(results, (a, b) -> Long.compare(b.parseTime, a.parseTime));
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append("Parsed ").append(results.size()).append(" packages in ").append(scanDir)
+                .append(": wall=").append(SystemClock.uptimeMillis() - mStartTime)
+                .append("ms, parse=").append(totalParseTime).append("ms, threads=")
+                .append(getThreadCount())
+                .append(", slowest:");
+        for (int i = 0; i < Math.min(SLOWEST_PACKAGES_TO_LOG, results.size()); i++) {
+            final ParseTime result = results.get(i);
+            sb.append(' ').append(result.scanFile.getName()).append('=')
+                    .append(result.parseTime).append("ms");
+        }
+        Slog.i(TAG, sb.toString());
+    }
+
     @Override
     public void close() {
         List<Runnable> unfinishedTasks = mService.shutdownNow();
-        if (!unfinishedTasks.isEmpty()) {
+        final int outstanding = mOutstanding.get();
+        if (outstanding != 0 || !unfinishedTasks.isEmpty()) {
             throw new IllegalStateException("Not all tasks finished before calling close: "
-                    + unfinishedTasks);
+                    + outstanding + " results not taken, unstarted=" + unfinishedTasks);
         }
     }
 }
@@ -69,6 +69,7 @@ import android.provider.Settings.SettingNotFoundException;
 import android.service.dreams.DreamManagerInternal;
 import android.service.vr.IVrManager;
 import android.service.vr.IVrStateCallbacks;
+import android.util.ArrayMap;
 import android.util.KeyValueListParser;
 import android.util.PrintWriterPrinter;
 import android.util.Slog;
@@ -167,6 +168,7 @@ public final class PowerManagerService extends SystemService
     private static final int WAKE_LOCK_STAY_AWAKE = 1 << 5; // only set if already awake
     private static final int WAKE_LOCK_DOZE = 1 << 6;
     private static final int WAKE_LOCK_DRAW = 1 << 7;
+    private static final int WAKE_LOCK_SUMMARY_BITS = 8;
 
     // Summarizes the user activity state.
     private static final int USER_ACTIVITY_SCREEN_BRIGHT = 1 << 0;
@@ -265,12 +267,16 @@ public final class PowerManagerService extends SystemService
     // There should only be a few of these.
     private final ArrayList<SuspendBlocker> mSuspendBlockers = new ArrayList<SuspendBlocker>();
 
-    // Table of all wake locks acquired by applications.
-    private final ArrayList<WakeLock> mWakeLocks = new ArrayList<WakeLock>();
+    // Table of all wake locks acquired by applications, by their client token.
+    private final ArrayMap<IBinder, WakeLock> mWakeLocks = new ArrayMap<IBinder, WakeLock>();
 
     // A bitfield that summarizes the state of all active wakelocks.
     private int mWakeLockSummary;
 
+    // For each WAKE_LOCK_* summary bit, the number of wake locks in mWakeLocks whose
+    // summary flags include it, so the summary doesn't have to visit every wake lock.
+    private final int[] mWakeLockSummaryCounts = new int[WAKE_LOCK_SUMMARY_BITS];
+
     // Have we scheduled a message to check for long wake locks?  This is when we will check.
     private long mNotifyLongScheduled;
 
@@ -975,16 +981,15 @@ public final class PowerManagerService extends SystemService
                         + ", tag=\"" + tag + "\", ws=" + ws + ", uid=" + uid + ", pid=" + pid);
             }
 
-            WakeLock wakeLock;
-            int index = findWakeLockIndexLocked(lock);
+            WakeLock wakeLock = mWakeLocks.get(lock);
             boolean notifyAcquire;
-            if (index >= 0) {
-                wakeLock = mWakeLocks.get(index);
+            if (wakeLock != null) {
                 if (!wakeLock.hasSameProperties(flags, tag, ws, uid, pid)) {
                     // Update existing wake lock.  This shouldn't happen but is harmless.
                     notifyWakeLockChangingLocked(wakeLock, flags, tag, packageName,
                             uid, pid, ws, historyTag);
                     wakeLock.updateProperties(flags, tag, packageName, ws, historyTag, uid, pid);
+                    updateWakeLockSummaryCountsLocked(wakeLock);
                 }
                 notifyAcquire = false;
             } else {
@@ -1002,8 +1007,9 @@ public final class PowerManagerService extends SystemService
                 } catch (RemoteException ex) {
                     throw new IllegalArgumentException("Wake lock is already dead.");
                 }
-                mWakeLocks.add(wakeLock);
+                mWakeLocks.put(lock, wakeLock);
                 setWakeLockDisabledStateLocked(wakeLock);
+                updateWakeLockSummaryCountsLocked(wakeLock);
                 notifyAcquire = true;
             }
 
@@ -1052,8 +1058,8 @@ public final class PowerManagerService extends SystemService
 
     private void releaseWakeLockInternal(IBinder lock, int flags) {
         synchronized (mLock) {
-            int index = findWakeLockIndexLocked(lock);
-            if (index < 0) {
+            WakeLock wakeLock = mWakeLocks.get(lock);
+            if (wakeLock == null) {
                 if (DEBUG_SPEW) {
                     Slog.d(TAG, "releaseWakeLockInternal: lock=" + Objects.hashCode(lock)
                             + " [not found], flags=0x" + Integer.toHexString(flags));
@@ -1061,7 +1067,6 @@ public final class PowerManagerService extends SystemService
                 return;
             }
 
-            WakeLock wakeLock = mWakeLocks.get(index);
             if (DEBUG_SPEW) {
                 Slog.d(TAG, "releaseWakeLockInternal: lock=" + Objects.hashCode(lock)
                         + " [" + wakeLock.mTag + "], flags=0x" + Integer.toHexString(flags));
@@ -1072,7 +1077,7 @@ public final class PowerManagerService extends SystemService
             }
 
             wakeLock.mLock.unlinkToDeath(wakeLock, 0);
-            removeWakeLockLocked(wakeLock, index);
+            removeWakeLockLocked(wakeLock);
         }
     }
 
@@ -1083,17 +1088,18 @@ public final class PowerManagerService extends SystemService
                         + " [" + wakeLock.mTag + "]");
             }
 
-            int index = mWakeLocks.indexOf(wakeLock);
-            if (index < 0) {
+            if (mWakeLocks.get(wakeLock.mLock) != wakeLock) {
                 return;
             }
 
-            removeWakeLockLocked(wakeLock, index);
+            removeWakeLockLocked(wakeLock);
         }
     }
 
-    private void removeWakeLockLocked(WakeLock wakeLock, int index) {
-        mWakeLocks.remove(index);
+    private void removeWakeLockLocked(WakeLock wakeLock) {
+        mWakeLocks.remove(wakeLock.mLock);
+        addWakeLockSummaryCountsLocked(wakeLock.mSummaryFlags, -1);
+        wakeLock.mSummaryFlags = 0;
         UidState state = wakeLock.mUidState;
         state.mNumWakeLocks--;
         if (state.mNumWakeLocks <= 0 &&
@@ -1120,8 +1126,8 @@ public final class PowerManagerService extends SystemService
     private void updateWakeLockWorkSourceInternal(IBinder lock, WorkSource ws, String historyTag,
             int callingUid) {
         synchronized (mLock) {
-            int index = findWakeLockIndexLocked(lock);
-            if (index < 0) {
+            WakeLock wakeLock = mWakeLocks.get(lock);
+            if (wakeLock == null) {
                 if (DEBUG_SPEW) {
                     Slog.d(TAG, "updateWakeLockWorkSourceInternal: lock=" + Objects.hashCode(lock)
                             + " [not found], ws=" + ws);
@@ -1130,7 +1136,6 @@ public final class PowerManagerService extends SystemService
                         + " from uid " + callingUid);
             }
 
-            WakeLock wakeLock = mWakeLocks.get(index);
             if (DEBUG_SPEW) {
                 Slog.d(TAG, "updateWakeLockWorkSourceInternal: lock=" + Objects.hashCode(lock)
                         + " [" + wakeLock.mTag + "], ws=" + ws);
@@ -1146,14 +1151,25 @@ public final class PowerManagerService extends SystemService
         }
     }
 
-    private int findWakeLockIndexLocked(IBinder lock) {
-        final int count = mWakeLocks.size();
-        for (int i = 0; i < count; i++) {
-            if (mWakeLocks.get(i).mLock == lock) {
-                return i;
-            }
+    /**
+     * Brings mWakeLockSummaryCounts up to date with the summary flags of the given wake lock,
+     * which must be in mWakeLocks.  Call whenever its level or disabled state may have changed.
+     */
+    private void updateWakeLockSummaryCountsLocked(WakeLock wakeLock) {
+        final int summaryFlags = getWakeLockSummaryFlags(wakeLock);
+        if (summaryFlags != wakeLock.mSummaryFlags) {
+            addWakeLockSummaryCountsLocked(wakeLock.mSummaryFlags, -1);
+            addWakeLockSummaryCountsLocked(summaryFlags, 1);
+            wakeLock.mSummaryFlags = summaryFlags;
+        }
+    }
+
+    private void addWakeLockSummaryCountsLocked(int summaryFlags, int delta) {
+        while (summaryFlags != 0) {
+            final int bit = Integer.numberOfTrailingZeros(summaryFlags);
+            mWakeLockSummaryCounts[bit] += delta;
+            summaryFlags &= ~(1 << bit);
         }
-        return -1;
     }
 
     private void notifyWakeLockAcquiredLocked(WakeLock wakeLock) {
@@ -1440,7 +1456,7 @@ public final class PowerManagerService extends SystemService
             int numWakeLocksCleared = 0;
             final int numWakeLocks = mWakeLocks.size();
             for (int i = 0; i < numWakeLocks; i++) {
-                final WakeLock wakeLock = mWakeLocks.get(i);
+                final WakeLock wakeLock = mWakeLocks.valueAt(i);
                 switch (wakeLock.mFlags & PowerManager.WAKE_LOCK_LEVEL_MASK) {
                     case PowerManager.FULL_WAKE_LOCK:
                     case PowerManager.SCREEN_BRIGHT_WAKE_LOCK:
@@ -1787,17 +1803,23 @@ public final class PowerManagerService extends SystemService
     private void updateWakeLockSummaryLocked(int dirty) {
         if ((dirty & (DIRTY_WAKE_LOCKS | DIRTY_WAKEFULNESS)) != 0) {
             mWakeLockSummary = 0;
+            for (int i = 0; i < WAKE_LOCK_SUMMARY_BITS; i++) {
+                if (mWakeLockSummaryCounts[i] > 0) {
+                    mWakeLockSummary |= 1 << i;
+                }
+            }
 
             final int numProfiles = mProfilePowerState.size();
             for (int i = 0; i < numProfiles; i++) {
                 mProfilePowerState.valueAt(i).mWakeLockSummary = 0;
             }
 
-            final int numWakeLocks = mWakeLocks.size();
+            // Profiles need to know which users each wake lock is held for, so they still
+            // look at every wake lock.
+            final int numWakeLocks = numProfiles > 0 ? mWakeLocks.size() : 0;
             for (int i = 0; i < numWakeLocks; i++) {
-                final WakeLock wakeLock = mWakeLocks.get(i);
-                final int wakeLockFlags = getWakeLockSummaryFlags(wakeLock);
-                mWakeLockSummary |= wakeLockFlags;
+                final WakeLock wakeLock = mWakeLocks.valueAt(i);
+                final int wakeLockFlags = wakeLock.mSummaryFlags;
                 for (int j = 0; j < numProfiles; j++) {
                     final ProfilePowerState profile = mProfilePowerState.valueAt(j);
                     if (wakeLockAffectsUser(wakeLock, profile.mUserId)) {
@@ -1904,7 +1926,7 @@ public final class PowerManagerService extends SystemService
             long nextCheckTime = Long.MAX_VALUE;
             final int numWakeLocks = mWakeLocks.size();
             for (int i = 0; i < numWakeLocks; i++) {
-                final WakeLock wakeLock = mWakeLocks.get(i);
+                final WakeLock wakeLock = mWakeLocks.valueAt(i);
                 if ((wakeLock.mFlags & PowerManager.WAKE_LOCK_LEVEL_MASK)
                         == PowerManager.PARTIAL_WAKE_LOCK) {
                     if (wakeLock.mNotifiedAcquired && !wakeLock.mNotifiedLong) {
@@ -2955,7 +2977,7 @@ public final class PowerManagerService extends SystemService
         boolean changed = false;
         final int numWakeLocks = mWakeLocks.size();
         for (int i = 0; i < numWakeLocks; i++) {
-            final WakeLock wakeLock = mWakeLocks.get(i);
+            final WakeLock wakeLock = mWakeLocks.valueAt(i);
             if ((wakeLock.mFlags & PowerManager.WAKE_LOCK_LEVEL_MASK)
                     == PowerManager.PARTIAL_WAKE_LOCK) {
                 if (setWakeLockDisabledStateLocked(wakeLock)) {
@@ -3003,6 +3025,7 @@ public final class PowerManagerService extends SystemService
             }
             if (wakeLock.mDisabled != disabled) {
                 wakeLock.mDisabled = disabled;
+                updateWakeLockSummaryCountsLocked(wakeLock);
                 return true;
             }
         }
@@ -3234,6 +3257,7 @@ public final class PowerManagerService extends SystemService
             pw.println("  mHalAutoSuspendModeEnabled=" + mHalAutoSuspendModeEnabled);
             pw.println("  mHalInteractiveModeEnabled=" + mHalInteractiveModeEnabled);
             pw.println("  mWakeLockSummary=0x" + Integer.toHexString(mWakeLockSummary));
+            pw.println("  mWakeLockSummaryCounts=" + Arrays.toString(mWakeLockSummaryCounts));
             pw.print("  mNotifyLongScheduled=");
             if (mNotifyLongScheduled == 0) {
                 pw.print("(none)");
@@ -3372,8 +3396,8 @@ public final class PowerManagerService extends SystemService
 
             pw.println();
             pw.println("Wake Locks: size=" + mWakeLocks.size());
-            for (WakeLock wl : mWakeLocks) {
-                pw.println("  " + wl);
+            for (int i = 0; i < mWakeLocks.size(); i++) {
+                pw.println("  " + mWakeLocks.valueAt(i));
             }
 
             pw.println();
@@ -3718,8 +3742,8 @@ public final class PowerManagerService extends SystemService
 
             mHandler.getLooper().writeToProto(proto, PowerManagerServiceDumpProto.LOOPER);
 
-            for (WakeLock wl : mWakeLocks) {
-                wl.writeToProto(proto, PowerManagerServiceDumpProto.WAKE_LOCKS);
+            for (int i = 0; i < mWakeLocks.size(); i++) {
+                mWakeLocks.valueAt(i).writeToProto(proto, PowerManagerServiceDumpProto.WAKE_LOCKS);
             }
 
             for (SuspendBlocker sb : mSuspendBlockers) {
@@ -3872,6 +3896,8 @@ public final class PowerManagerService extends SystemService
         public boolean mNotifiedAcquired;
         public boolean mNotifiedLong;
         public boolean mDisabled;
+        // The summary flags this wake lock is counted under in mWakeLockSummaryCounts.
+        public int mSummaryFlags;
 
         public WakeLock(IBinder lock, int flags, String tag, String packageName,
                 WorkSource workSource, String historyTag, int ownerUid, int ownerPid,
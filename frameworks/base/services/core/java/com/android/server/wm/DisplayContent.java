@@ -638,6 +638,8 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         // Only used if default window
         final boolean someoneLosingFocus = !mService.mLosingFocus.isEmpty();
 
+        mTmpApplySurfaceChangesTransactionState.windowCount++;
+
         // Update effect.
         w.mObscured = mTmpApplySurfaceChangesTransactionState.obscured;
         if (!mTmpApplySurfaceChangesTransactionState.obscured) {
@@ -2943,6 +2945,11 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         return mTmpApplySurfaceChangesTransactionState.focusDisplayed;
     }
 
+    /** Returns the number of windows visited by the last applySurfaceChangesTransaction. */
+    int getSurfacePlacementWindowCount() {
+        return mTmpApplySurfaceChangesTransactionState.windowCount;
+    }
+
     private void updateBounds() {
         calculateBounds(mTmpBounds);
         setBounds(mTmpBounds);
@@ -3193,6 +3200,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         boolean focusDisplayed;
         float preferredRefreshRate;
         int preferredModeId;
+        int windowCount;
 
         void reset() {
             displayHasContent = false;
@@ -3201,6 +3209,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
             focusDisplayed = false;
             preferredRefreshRate = 0;
             preferredModeId = 0;
+            windowCount = 0;
         }
     }
 
@@ -33,6 +33,7 @@ import android.os.UserHandle;
 import android.util.ArraySet;
 import android.util.EventLog;
 import android.util.Slog;
+import android.util.SparseArray;
 import android.util.SparseIntArray;
 import android.util.proto.ProtoOutputStream;
 import android.view.Display;
@@ -113,6 +114,25 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
     private boolean mSustainedPerformanceModeEnabled = false;
     private boolean mSustainedPerformanceModeCurrent = false;
 
+    /**
+     * What a secondary display's windows contributed to the global state above during its
+     * last surface placement pass, so the pass can be skipped while nothing on it changes.
+     */
+    private static final class DisplayPlacementState {
+        Session holdScreen;
+        WindowState holdScreenWindow;
+        WindowState obscuringWindow;
+        float screenBrightness;
+        long userActivityTimeout;
+        boolean sustainedPerformanceMode;
+        // mObscureApplicationContentOnSecondaryDisplays when the display was last placed.
+        boolean obscureApplicationContent;
+    }
+
+    // Keyed by display id.
+    private final SparseArray<DisplayPlacementState> mDisplayPlacementStates =
+            new SparseArray<>();
+
     boolean mWallpaperMayChange = false;
     // During an orientation change, we track whether all windows have rendered
     // at the new orientation, and this will be false from changing orientation until that occurs.
@@ -846,10 +866,89 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
 
         boolean focusDisplayed = false;
 
+        final WindowSurfacePlacer surfacePlacer = mService.mWindowPlacerLocked;
         final int count = mChildren.size();
         for (int j = 0; j < count; ++j) {
             final DisplayContent dc = mChildren.get(j);
+            if (dc.isDefaultDisplay || !surfacePlacer.isScopedPlacementEnabled()) {
+                focusDisplayed |= dc.applySurfaceChangesTransaction(recoveringMemory);
+                surfacePlacer.noteDisplayPlaced(dc.getSurfacePlacementWindowCount(),
+                        false /* skipped */);
+                continue;
+            }
+
+            DisplayPlacementState state = mDisplayPlacementStates.get(dc.getDisplayId());
+            if (state != null && !recoveringMemory && canSkipSurfacePlacement(dc, state)) {
+                // Nothing on this display changed, so just replay what its windows contributed.
+                if (state.holdScreenWindow != null) {
+                    mHoldScreen = state.holdScreen;
+                    mHoldScreenWindow = state.holdScreenWindow;
+                }
+                if (state.obscuringWindow != null) {
+                    mObscuringWindow = state.obscuringWindow;
+                }
+                if (mScreenBrightness < 0) {
+                    mScreenBrightness = state.screenBrightness;
+                }
+                if (mUserActivityTimeout < 0) {
+                    mUserActivityTimeout = state.userActivityTimeout;
+                }
+                mSustainedPerformanceModeCurrent |= state.sustainedPerformanceMode;
+                surfacePlacer.noteDisplayPlaced(0, true /* skipped */);
+                continue;
+            }
+
+            // Place the display against cleared global state to find out what its windows
+            // contribute, then merge that into the state of the displays before it.
+            final Session holdScreen = mHoldScreen;
+            final WindowState holdScreenWindow = mHoldScreenWindow;
+            final WindowState obscuringWindow = mObscuringWindow;
+            final float screenBrightness = mScreenBrightness;
+            final long userActivityTimeout = mUserActivityTimeout;
+            final boolean sustainedPerformanceMode = mSustainedPerformanceModeCurrent;
+            mHoldScreen = null;
+            mHoldScreenWindow = null;
+            mObscuringWindow = null;
+            mScreenBrightness = -1;
+            mUserActivityTimeout = -1;
+            mSustainedPerformanceModeCurrent = false;
+
             focusDisplayed |= dc.applySurfaceChangesTransaction(recoveringMemory);
+            surfacePlacer.noteDisplayPlaced(dc.getSurfacePlacementWindowCount(),
+                    false /* skipped */);
+
+            if (state == null) {
+                state = new DisplayPlacementState();
+                mDisplayPlacementStates.put(dc.getDisplayId(), state);
+            }
+            state.holdScreen = mHoldScreen;
+            state.holdScreenWindow = mHoldScreenWindow;
+            state.obscuringWindow = mObscuringWindow;
+            state.screenBrightness = mScreenBrightness;
+            state.userActivityTimeout = mUserActivityTimeout;
+            state.sustainedPerformanceMode = mSustainedPerformanceModeCurrent;
+            state.obscureApplicationContent = mObscureApplicationContentOnSecondaryDisplays;
+
+            if (mHoldScreenWindow == null) {
+                mHoldScreen = holdScreen;
+                mHoldScreenWindow = holdScreenWindow;
+            }
+            if (mObscuringWindow == null) {
+                mObscuringWindow = obscuringWindow;
+            }
+            if (screenBrightness >= 0) {
+                mScreenBrightness = screenBrightness;
+            }
+            if (userActivityTimeout >= 0) {
+                mUserActivityTimeout = userActivityTimeout;
+            }
+            mSustainedPerformanceModeCurrent |= sustainedPerformanceMode;
+        }
+
+        for (int i = mDisplayPlacementStates.size() - 1; i >= 0; i--) {
+            if (getDisplayContent(mDisplayPlacementStates.keyAt(i)) == null) {
+                mDisplayPlacementStates.removeAt(i);
+            }
         }
 
         if (focusDisplayed) {
@@ -862,6 +961,21 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
         SurfaceControl.mergeToGlobalTransaction(mDisplayTransaction);
     }
 
+    /**
+     * Returns whether the surface placement pass over the windows of secondary display
+     * <var>dc</var> can be skipped, because nothing that could change its outcome has happened
+     * since the pass that produced <var>state</var>.
+     */
+    private boolean canSkipSurfacePlacement(DisplayContent dc, DisplayPlacementState state) {
+        return !mService.mWindowPlacerLocked.isDisplayDirtyForPlacement(dc)
+                && !dc.isLayoutNeeded()
+                && dc.pendingLayoutChanges == 0
+                && state.obscureApplicationContent == mObscureApplicationContentOnSecondaryDisplays
+                && !mService.mDisplayFrozen
+                && mService.mWaitingForDrawnCallback == null
+                && !dc.isSelfOrChildAnimating();
+    }
+
     /**
      * Handles resizing windows during surface placement.
      *
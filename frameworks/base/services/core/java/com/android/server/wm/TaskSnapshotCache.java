@@ -16,11 +16,17 @@
 
 package com.android.server.wm;
 
+import static com.android.server.wm.TaskSnapshotPersister.USE_SNAPSHOT_PIPELINE;
+
 import android.annotation.Nullable;
+import android.app.ActivityManager;
 import android.app.ActivityManager.TaskSnapshot;
+import android.graphics.GraphicBuffer;
 import android.util.ArrayMap;
 import android.util.LruCache;
 
+import com.android.internal.annotations.GuardedBy;
+
 import java.io.PrintWriter;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -34,12 +40,47 @@ class TaskSnapshotCache {
 
     private final WindowManagerService mService;
     private final TaskSnapshotLoader mLoader;
+    private final TaskSnapshotPersister mPersister;
     private final ArrayMap<AppWindowToken, Integer> mAppTaskMap = new ArrayMap<>();
     private final ArrayMap<Integer, CacheEntry> mRunningCache = new ArrayMap<>();
 
-    TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader) {
+    /**
+     * Reduced resolution snapshots recently restored from disk, so that scrolling back and forth
+     * in recents doesn't decode the same files again. Sized in bytes of snapshot buffer, and
+     * only used with {@link TaskSnapshotPersister#USE_SNAPSHOT_PIPELINE}. This is internally
+     * synchronized, as it is accessed without holding the window manager lock.
+     */
+    private final LruCache<Integer, TaskSnapshot> mReducedCache;
+
+    /**
+     * Orders restoring into {@link #mReducedCache} against invalidating it; see
+     * {@link #tryRestoreFromDisk}.
+     */
+    private final Object mReducedCacheLock = new Object();
+
+    /**
+     * Bumped whenever an entry of {@link #mReducedCache} is invalidated, so that a snapshot
+     * loaded from disk before that isn't put back afterwards.
+     */
+    @GuardedBy("mReducedCacheLock")
+    private int mReducedCacheGeneration;
+    private static final int REDUCED_CACHE_MAX_BYTES =
+            (ActivityManager.isLowRamDeviceStatic() ? 4 : 16) * 1024 * 1024;
+
+    TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader,
+            TaskSnapshotPersister persister) {
         mService = service;
         mLoader = loader;
+        mPersister = persister;
+        mReducedCache = USE_SNAPSHOT_PIPELINE
+                ? new LruCache<Integer, TaskSnapshot>(REDUCED_CACHE_MAX_BYTES) {
+                    @Override
+                    protected int sizeOf(Integer taskId, TaskSnapshot snapshot) {
+                        final GraphicBuffer buffer = snapshot.getSnapshot();
+                        return buffer.getWidth() * buffer.getHeight() * 4;
+                    }
+                }
+                : null;
     }
 
     void putSnapshot(Task task, TaskSnapshot snapshot) {
@@ -47,6 +88,7 @@ class TaskSnapshotCache {
         if (entry != null) {
             mAppTaskMap.remove(entry.topApp);
         }
+        invalidateReducedSnapshot(task.mTaskId);
         final AppWindowToken top = task.getTopChild();
         mAppTaskMap.put(top, task.mTaskId);
         mRunningCache.put(task.mTaskId, new CacheEntry(snapshot, task.getTopChild()));
@@ -77,13 +119,52 @@ class TaskSnapshotCache {
      * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
      */
     private TaskSnapshot tryRestoreFromDisk(int taskId, int userId, boolean reducedResolution) {
+        final boolean useReducedCache = reducedResolution && mReducedCache != null;
+        int generation = 0;
+        if (useReducedCache) {
+            final TaskSnapshot cached = mReducedCache.get(taskId);
+            if (cached != null) {
+                return cached;
+            }
+            synchronized (mReducedCacheLock) {
+                generation = mReducedCacheGeneration;
+            }
+        }
         final TaskSnapshot snapshot = mLoader.loadTask(taskId, userId, reducedResolution);
         if (snapshot == null) {
             return null;
         }
+        if (useReducedCache) {
+            synchronized (mReducedCacheLock) {
+                // Don't keep what may be a half written file, or one that has been replaced
+                // while it was being loaded.
+                if (generation == mReducedCacheGeneration
+                        && !mPersister.isWritePending(taskId)) {
+                    mReducedCache.put(taskId, snapshot);
+                }
+            }
+        }
         return snapshot;
     }
 
+    /**
+     * Called by {@link TaskSnapshotPersister} once the files of a task have been written or
+     * deleted.
+     */
+    void onTaskSnapshotWritten(int taskId) {
+        invalidateReducedSnapshot(taskId);
+    }
+
+    private void invalidateReducedSnapshot(int taskId) {
+        if (mReducedCache == null) {
+            return;
+        }
+        synchronized (mReducedCacheLock) {
+            mReducedCacheGeneration++;
+            mReducedCache.remove(taskId);
+        }
+    }
+
     /**
      * Called when an app token has been removed
      */
@@ -109,6 +190,9 @@ class TaskSnapshotCache {
     }
 
     private void removeRunningEntry(int taskId) {
+        // The running entry may have been newer than what was cached from disk; the next
+        // restore should read whatever the persister wrote last.
+        invalidateReducedSnapshot(taskId);
         final CacheEntry entry = mRunningCache.get(taskId);
         if (entry != null) {
             mAppTaskMap.remove(entry.topApp);
@@ -126,6 +210,13 @@ class TaskSnapshotCache {
             pw.println(triplePrefix + "topApp=" + entry.topApp);
             pw.println(triplePrefix + "snapshot=" + entry.snapshot);
         }
+        if (mReducedCache != null) {
+            pw.println(doublePrefix + "ReducedCache entries=" + mReducedCache.snapshot().size()
+                    + " bytes=" + mReducedCache.size() + "/" + mReducedCache.maxSize()
+                    + " hits=" + mReducedCache.hitCount()
+                    + " misses=" + mReducedCache.missCount()
+                    + " evictions=" + mReducedCache.evictionCount());
+        }
     }
 
     private static final class CacheEntry {
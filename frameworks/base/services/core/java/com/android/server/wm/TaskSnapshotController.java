@@ -117,7 +117,8 @@ class TaskSnapshotController {
 
     TaskSnapshotController(WindowManagerService service) {
         mService = service;
-        mCache = new TaskSnapshotCache(mService, mLoader);
+        mCache = new TaskSnapshotCache(mService, mLoader, mPersister);
+        mPersister.setWriteListener(mCache::onTaskSnapshotWritten);
         mIsRunningOnTv = mService.mContext.getPackageManager().hasSystemFeature(
                 PackageManager.FEATURE_LEANBACK);
         mIsRunningOnIoT = mService.mContext.getPackageManager().hasSystemFeature(
@@ -452,5 +453,6 @@ class TaskSnapshotController {
 
     void dump(PrintWriter pw, String prefix) {
         mCache.dump(pw, prefix);
+        mPersister.dump(pw, prefix);
     }
 }
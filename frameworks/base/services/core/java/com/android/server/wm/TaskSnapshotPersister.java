@@ -27,6 +27,7 @@ import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.util.ArraySet;
 import android.util.Slog;
 
@@ -38,7 +39,15 @@ import com.android.server.wm.nano.WindowManagerProtos.TaskSnapshotProto;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Persists {@link TaskSnapshot}s to disk.
@@ -57,18 +66,51 @@ class TaskSnapshotPersister {
     private static final String PROTO_EXTENSION = ".proto";
     private static final String BITMAP_EXTENSION = ".jpg";
     private static final int MAX_STORE_QUEUE_DEPTH = 2;
+    private static final int INVALID_TASK_ID = -1;
+
+    /**
+     * Encode the full sized and reduced bitmaps of a snapshot concurrently, and keep recently
+     * loaded reduced snapshots in memory (see {@link TaskSnapshotCache}).
+     */
+    static final boolean USE_SNAPSHOT_PIPELINE =
+            SystemProperties.getBoolean("persist.sys.wm.snapshot_pipeline", false);
+    private static final long ENCODE_THREAD_KEEP_ALIVE_MS = 10 * 1000;
 
     @GuardedBy("mLock")
     private final ArrayDeque<WriteQueueItem> mWriteQueue = new ArrayDeque<>();
     @GuardedBy("mLock")
     private final ArrayDeque<StoreWriteQueueItem> mStoreQueueItems = new ArrayDeque<>();
     @GuardedBy("mLock")
+    private WriteQueueItem mWritingItem;
+    @GuardedBy("mLock")
     private boolean mQueueIdling;
     @GuardedBy("mLock")
     private boolean mPaused;
     private boolean mStarted;
     private final Object mLock = new Object();
     private final DirectoryResolver mDirectoryResolver;
+    private volatile WriteListener mWriteListener;
+
+    /**
+     * Encodes the full sized bitmap of a snapshot while the persister thread encodes the reduced
+     * one, or null when {@link #USE_SNAPSHOT_PIPELINE} is off.
+     */
+    private final ExecutorService mEncodeExecutor;
+
+    @GuardedBy("mLock")
+    private int mMaxQueueDepth;
+    @GuardedBy("mLock")
+    private int mStoreCount;
+    @GuardedBy("mLock")
+    private int mCoalescedStoreCount;
+    @GuardedBy("mLock")
+    private int mPurgedStoreCount;
+    @GuardedBy("mLock")
+    private int mEncodeCount;
+    @GuardedBy("mLock")
+    private long mEncodeTotalMs;
+    @GuardedBy("mLock")
+    private long mEncodeMaxMs;
 
     /**
      * The list of ids of the tasks that have been persisted since {@link #removeObsoleteFiles} was
@@ -79,6 +121,18 @@ class TaskSnapshotPersister {
 
     TaskSnapshotPersister(DirectoryResolver resolver) {
         mDirectoryResolver = resolver;
+        if (USE_SNAPSHOT_PIPELINE && !DISABLE_FULL_SIZED_BITMAPS) {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+                    ENCODE_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                    r -> new Thread(() -> {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }, "TaskSnapshotEncoder"));
+            executor.allowCoreThreadTimeOut(true);
+            mEncodeExecutor = executor;
+        } else {
+            mEncodeExecutor = null;
+        }
     }
 
     /**
@@ -101,6 +155,16 @@ class TaskSnapshotPersister {
     void persistSnapshot(int taskId, int userId, TaskSnapshot snapshot) {
         synchronized (mLock) {
             mPersistedTaskIdsSinceLastRemoveObsolete.add(taskId);
+            mStoreCount++;
+            // A store that hasn't been written yet would be overwritten anyway; write the newer
+            // snapshot in its place instead of queueing the task twice.
+            for (StoreWriteQueueItem item : mStoreQueueItems) {
+                if (item.mTaskId == taskId && item.mUserId == userId) {
+                    item.mSnapshot = snapshot;
+                    mCoalescedStoreCount++;
+                    return;
+                }
+            }
             sendToQueueLocked(new StoreWriteQueueItem(taskId, userId, snapshot));
         }
     }
@@ -114,6 +178,15 @@ class TaskSnapshotPersister {
     void onTaskRemovedFromRecents(int taskId, int userId) {
         synchronized (mLock) {
             mPersistedTaskIdsSinceLastRemoveObsolete.remove(taskId);
+            // Stores still waiting in the queue would only be deleted again.
+            final Iterator<StoreWriteQueueItem> it = mStoreQueueItems.iterator();
+            while (it.hasNext()) {
+                final StoreWriteQueueItem item = it.next();
+                if (item.mTaskId == taskId && item.mUserId == userId) {
+                    it.remove();
+                    mWriteQueue.remove(item);
+                }
+            }
             sendToQueueLocked(new DeleteWriteQueueItem(taskId, userId));
         }
     }
@@ -159,6 +232,7 @@ class TaskSnapshotPersister {
         mWriteQueue.offer(item);
         item.onQueuedLocked();
         ensureStoreQueueDepthLocked();
+        mMaxQueueDepth = Math.max(mMaxQueueDepth, mWriteQueue.size());
         if (!mPaused) {
             mLock.notifyAll();
         }
@@ -169,6 +243,7 @@ class TaskSnapshotPersister {
         while (mStoreQueueItems.size() > MAX_STORE_QUEUE_DEPTH) {
             final StoreWriteQueueItem item = mStoreQueueItems.poll();
             mWriteQueue.remove(item);
+            mPurgedStoreCount++;
             Slog.i(TAG, "Queue is too deep! Purged item with taskid=" + item.mTaskId);
         }
     }
@@ -212,10 +287,62 @@ class TaskSnapshotPersister {
         }
     }
 
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + "SnapshotPersister");
+            final String doublePrefix = prefix + "  ";
+            pw.print(doublePrefix); pw.print("queueDepth="); pw.print(mWriteQueue.size());
+            pw.print(" maxQueueDepth="); pw.print(mMaxQueueDepth);
+            pw.print(" paused="); pw.println(mPaused);
+            pw.print(doublePrefix); pw.print("stores="); pw.print(mStoreCount);
+            pw.print(" coalesced="); pw.print(mCoalescedStoreCount);
+            pw.print(" purged="); pw.println(mPurgedStoreCount);
+            pw.print(doublePrefix); pw.print("encodes="); pw.print(mEncodeCount);
+            pw.print(" avgEncodeMs=");
+            pw.print(mEncodeCount > 0 ? mEncodeTotalMs / mEncodeCount : 0);
+            pw.print(" maxEncodeMs="); pw.print(mEncodeMaxMs);
+            pw.print(" parallelEncode="); pw.println(mEncodeExecutor != null);
+        }
+    }
+
+    /**
+     * Sets the listener to notify once the files of a task have been written or deleted.
+     */
+    void setWriteListener(WriteListener listener) {
+        mWriteListener = listener;
+    }
+
+    /**
+     * @return {@code true} if the files of the task are about to be or are being written or
+     *         deleted, so what is on disk right now shouldn't be kept around.
+     */
+    boolean isWritePending(int taskId) {
+        synchronized (mLock) {
+            if (mWritingItem != null && mWritingItem.getTaskId() == taskId) {
+                return true;
+            }
+            for (WriteQueueItem item : mWriteQueue) {
+                if (item.getTaskId() == taskId) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
     interface DirectoryResolver {
         File getSystemDirectoryForUser(int userId);
     }
 
+    interface WriteListener {
+
+        /**
+         * Called on the persister thread, without holding any lock, after the files of a task
+         * have been written or deleted.
+         */
+        void onTaskSnapshotWritten(int taskId);
+    }
+
     private Thread mPersister = new Thread("TaskSnapshotPersister") {
         public void run() {
             android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
@@ -230,9 +357,17 @@ class TaskSnapshotPersister {
                             next.onDequeuedLocked();
                         }
                     }
+                    mWritingItem = next;
                 }
                 if (next != null) {
                     next.write();
+                    synchronized (mLock) {
+                        mWritingItem = null;
+                    }
+                    final WriteListener listener = mWriteListener;
+                    if (listener != null && next.getTaskId() != INVALID_TASK_ID) {
+                        listener.onTaskSnapshotWritten(next.getTaskId());
+                    }
                     SystemClock.sleep(DELAY_MS);
                 }
                 synchronized (mLock) {
@@ -254,6 +389,14 @@ class TaskSnapshotPersister {
     private abstract class WriteQueueItem {
         abstract void write();
 
+        /**
+         * @return The id of the task whose files this item writes, or {@link #INVALID_TASK_ID} if
+         *         it isn't about a single task.
+         */
+        int getTaskId() {
+            return INVALID_TASK_ID;
+        }
+
         /**
          * Called when this queue item has been put into the queue.
          */
@@ -270,7 +413,9 @@ class TaskSnapshotPersister {
     private class StoreWriteQueueItem extends WriteQueueItem {
         private final int mTaskId;
         private final int mUserId;
-        private final TaskSnapshot mSnapshot;
+        @GuardedBy("mLock")
+        private TaskSnapshot mSnapshot;
+        private TaskSnapshot mWritingSnapshot;
 
         StoreWriteQueueItem(int taskId, int userId, TaskSnapshot snapshot) {
             mTaskId = taskId;
@@ -278,6 +423,11 @@ class TaskSnapshotPersister {
             mSnapshot = snapshot;
         }
 
+        @Override
+        int getTaskId() {
+            return mTaskId;
+        }
+
         @GuardedBy("mLock")
         @Override
         void onQueuedLocked() {
@@ -288,6 +438,7 @@ class TaskSnapshotPersister {
         @Override
         void onDequeuedLocked() {
             mStoreQueueItems.remove(this);
+            mWritingSnapshot = mSnapshot;
         }
 
         @Override
@@ -310,15 +461,15 @@ class TaskSnapshotPersister {
 
         boolean writeProto() {
             final TaskSnapshotProto proto = new TaskSnapshotProto();
-            proto.orientation = mSnapshot.getOrientation();
-            proto.insetLeft = mSnapshot.getContentInsets().left;
-            proto.insetTop = mSnapshot.getContentInsets().top;
-            proto.insetRight = mSnapshot.getContentInsets().right;
-            proto.insetBottom = mSnapshot.getContentInsets().bottom;
-            proto.isRealSnapshot = mSnapshot.isRealSnapshot();
-            proto.windowingMode = mSnapshot.getWindowingMode();
-            proto.systemUiVisibility = mSnapshot.getSystemUiVisibility();
-            proto.isTranslucent = mSnapshot.isTranslucent();
+            proto.orientation = mWritingSnapshot.getOrientation();
+            proto.insetLeft = mWritingSnapshot.getContentInsets().left;
+            proto.insetTop = mWritingSnapshot.getContentInsets().top;
+            proto.insetRight = mWritingSnapshot.getContentInsets().right;
+            proto.insetBottom = mWritingSnapshot.getContentInsets().bottom;
+            proto.isRealSnapshot = mWritingSnapshot.isRealSnapshot();
+            proto.windowingMode = mWritingSnapshot.getWindowingMode();
+            proto.systemUiVisibility = mWritingSnapshot.getSystemUiVisibility();
+            proto.isTranslucent = mWritingSnapshot.isTranslucent();
             final byte[] bytes = TaskSnapshotProto.toByteArray(proto);
             final File file = getProtoFile(mTaskId, mUserId);
             final AtomicFile atomicFile = new AtomicFile(file);
@@ -336,46 +487,83 @@ class TaskSnapshotPersister {
         }
 
         boolean writeBuffer() {
-            final Bitmap bitmap = Bitmap.createHardwareBitmap(mSnapshot.getSnapshot());
+            final Bitmap bitmap = Bitmap.createHardwareBitmap(mWritingSnapshot.getSnapshot());
             if (bitmap == null) {
                 Slog.e(TAG, "Invalid task snapshot hw bitmap");
                 return false;
             }
 
+            final long startTime = SystemClock.elapsedRealtime();
             final Bitmap swBitmap = bitmap.copy(Config.ARGB_8888, false /* isMutable */);
-            final File reducedFile = getReducedResolutionBitmapFile(mTaskId, mUserId);
-            final Bitmap reduced = mSnapshot.isReducedResolution()
-                    ? swBitmap
-                    : Bitmap.createScaledBitmap(swBitmap,
-                            (int) (bitmap.getWidth() * REDUCED_SCALE),
-                            (int) (bitmap.getHeight() * REDUCED_SCALE), true /* filter */);
-            try {
-                FileOutputStream reducedFos = new FileOutputStream(reducedFile);
-                reduced.compress(JPEG, QUALITY, reducedFos);
-                reducedFos.close();
-            } catch (IOException e) {
-                Slog.e(TAG, "Unable to open " + reducedFile +" for persisting.", e);
-                return false;
-            }
 
             // For snapshots with reduced resolution, do not create or save full sized bitmaps
-            if (mSnapshot.isReducedResolution()) {
-                swBitmap.recycle();
-                return true;
+            final boolean writeFull = !mWritingSnapshot.isReducedResolution();
+            final File file = writeFull ? getBitmapFile(mTaskId, mUserId) : null;
+            Future<Boolean> fullResult = null;
+            if (writeFull && mEncodeExecutor != null) {
+                fullResult = mEncodeExecutor.submit(() -> writeJpeg(swBitmap, file));
             }
 
-            final File file = getBitmapFile(mTaskId, mUserId);
-            try {
-                FileOutputStream fos = new FileOutputStream(file);
-                swBitmap.compress(JPEG, QUALITY, fos);
-                fos.close();
-            } catch (IOException e) {
-                Slog.e(TAG, "Unable to open " + file + " for persisting.", e);
-                return false;
+            final File reducedFile = getReducedResolutionBitmapFile(mTaskId, mUserId);
+            final Bitmap reduced = writeFull
+                    ? Bitmap.createScaledBitmap(swBitmap,
+                            (int) (bitmap.getWidth() * REDUCED_SCALE),
+                            (int) (bitmap.getHeight() * REDUCED_SCALE), true /* filter */)
+                    : swBitmap;
+            boolean success = writeJpeg(reduced, reducedFile);
+
+            if (writeFull) {
+                if (fullResult != null) {
+                    success &= waitForEncode(fullResult, file);
+                } else if (success) {
+                    success = writeJpeg(swBitmap, file);
+                }
+                reduced.recycle();
             }
-            reduced.recycle();
             swBitmap.recycle();
-            return true;
+            noteEncodeTime(SystemClock.elapsedRealtime() - startTime);
+            return success;
+        }
+    }
+
+    private static boolean writeJpeg(Bitmap bitmap, File file) {
+        try {
+            FileOutputStream fos = new FileOutputStream(file);
+            bitmap.compress(JPEG, QUALITY, fos);
+            fos.close();
+        } catch (IOException e) {
+            Slog.e(TAG, "Unable to open " + file + " for persisting.", e);
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean waitForEncode(Future<Boolean> result, File file) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return result.get();
+                } catch (InterruptedException e) {
+                    // Keep waiting, the bitmaps can't be recycled while they are being encoded.
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Slog.e(TAG, "Unable to encode " + file, e.getCause());
+                    return false;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void noteEncodeTime(long durationMs) {
+        synchronized (mLock) {
+            mEncodeCount++;
+            mEncodeTotalMs += durationMs;
+            mEncodeMaxMs = Math.max(mEncodeMaxMs, durationMs);
         }
     }
 
@@ -388,6 +576,11 @@ class TaskSnapshotPersister {
             mUserId = userId;
         }
 
+        @Override
+        int getTaskId() {
+            return mTaskId;
+        }
+
         @Override
         void write() {
             deleteSnapshot(mTaskId, mUserId);
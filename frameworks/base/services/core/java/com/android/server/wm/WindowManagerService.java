@@ -2297,7 +2297,7 @@ public class WindowManagerService extends IWindowManager.Stub
                                 WindowManagerPolicy.FINISH_LAYOUT_REDO_WALLPAPER;
                     }
                     win.setDisplayLayoutNeeded();
-                    mWindowPlacerLocked.requestTraversal();
+                    mWindowPlacerLocked.requestTraversal(win.getDisplayContent());
                 }
             }
         } finally {
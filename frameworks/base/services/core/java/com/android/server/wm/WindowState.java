@@ -3755,7 +3755,7 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
         if (dc != null && (mAttrs.flags & FLAG_SHOW_WALLPAPER) != 0) {
             dc.pendingLayoutChanges |= FINISH_LAYOUT_REDO_WALLPAPER;
             dc.setLayoutNeeded();
-            mService.mWindowPlacerLocked.requestTraversal();
+            mService.mWindowPlacerLocked.requestTraversal(dc);
         }
 
         for (int i = mChildren.size() - 1; i >= 0; i--) {
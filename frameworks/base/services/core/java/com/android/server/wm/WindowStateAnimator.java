@@ -1363,7 +1363,7 @@ class WindowStateAnimator {
         if (isEntrance && mWin.mAttrs.type == TYPE_INPUT_METHOD) {
             mWin.getDisplayContent().adjustForImeIfNeeded();
             mWin.setDisplayLayoutNeeded();
-            mService.mWindowPlacerLocked.requestTraversal();
+            mService.mWindowPlacerLocked.requestTraversal(mWin.getDisplayContent());
         }
 
         // Only apply an animation if the display isn't frozen.  If it is
@@ -57,9 +57,11 @@ import static com.android.server.wm.WindowManagerService.UPDATE_FOCUS_PLACING_SU
 
 import android.app.WindowConfiguration;
 import android.os.Debug;
+import android.os.SystemProperties;
 import android.os.Trace;
 import android.util.ArraySet;
 import android.util.Slog;
+import android.util.SparseBooleanArray;
 import android.util.SparseIntArray;
 import android.view.Display;
 import android.view.RemoteAnimationAdapter;
@@ -100,6 +102,31 @@ class WindowSurfacePlacer {
     private boolean mTraversalScheduled;
     private int mDeferDepth = 0;
 
+    /**
+     * When set, a traversal only applies surface changes on secondary displays that were
+     * named by {@link #requestTraversal(DisplayContent)}, or that need layout or are animating.
+     * Other secondary displays keep the results of their last pass.
+     */
+    private final boolean mScopedPlacementEnabled =
+            SystemProperties.getBoolean("persist.sys.wm.scoped_placement", false);
+
+    // Displays whose surfaces need to be placed by the next traversal. Requests that don't say
+    // which display they are for mark all of them.
+    private boolean mAllDisplaysDirty = true;
+    private final SparseBooleanArray mDirtyDisplays = new SparseBooleanArray();
+
+    // The dirty state being placed by the traversal in progress.
+    private boolean mPlacingAllDisplays;
+    private final SparseBooleanArray mPlacingDisplays = new SparseBooleanArray();
+
+    private long mTraversalCount;
+    private long mWindowsVisitedCount;
+    private int mMaxWindowsVisited;
+    private long mDisplaysPlacedCount;
+    private long mDisplaysSkippedCount;
+    private int mLastWindowsVisited;
+    private int mLastDisplaysSkipped;
+
     private static final class LayerAndToken {
         public int layer;
         public AppWindowToken token;
@@ -115,7 +142,7 @@ class WindowSurfacePlacer {
         mWallpaperControllerLocked = mService.mRoot.mWallpaperController;
         mPerformSurfacePlacement = () -> {
             synchronized (mService.mWindowMap) {
-                performSurfacePlacement();
+                performSurfacePlacementLoops(false /* force */);
             }
         };
     }
@@ -146,6 +173,12 @@ class WindowSurfacePlacer {
     }
 
     final void performSurfacePlacement(boolean force) {
+        // Direct calls don't say what changed, so every display gets placed.
+        mAllDisplaysDirty = true;
+        performSurfacePlacementLoops(force);
+    }
+
+    private void performSurfacePlacementLoops(boolean force) {
         if (mDeferDepth > 0 && !force) {
             return;
         }
@@ -203,11 +236,30 @@ class WindowSurfacePlacer {
             }
         }
 
+        // Requests made while placing are picked up by the next traversal.
+        mPlacingAllDisplays = mAllDisplaysDirty || !mScopedPlacementEnabled;
+        mPlacingDisplays.clear();
+        for (int i = mDirtyDisplays.size() - 1; i >= 0; i--) {
+            mPlacingDisplays.put(mDirtyDisplays.keyAt(i), true);
+        }
+        mAllDisplaysDirty = false;
+        mDirtyDisplays.clear();
+        mLastWindowsVisited = 0;
+        mLastDisplaysSkipped = 0;
+
         try {
             mService.mRoot.performSurfacePlacement(recoveringMemory);
 
             mInLayout = false;
 
+            mTraversalCount++;
+            mWindowsVisitedCount += mLastWindowsVisited;
+            mMaxWindowsVisited = Math.max(mMaxWindowsVisited, mLastWindowsVisited);
+            Trace.traceCounter(Trace.TRACE_TAG_WINDOW_MANAGER, "wmPlacementWindows",
+                    mLastWindowsVisited);
+            Trace.traceCounter(Trace.TRACE_TAG_WINDOW_MANAGER, "wmPlacementDisplaysSkipped",
+                    mLastDisplaysSkipped);
+
             if (mService.mRoot.isLayoutNeeded()) {
                 if (++mLayoutRepeatCount < 6) {
                     requestTraversal();
@@ -797,15 +849,64 @@ class WindowSurfacePlacer {
     }
 
     void requestTraversal() {
+        mAllDisplaysDirty = true;
+        scheduleTraversal();
+    }
+
+    /**
+     * Like {@link #requestTraversal()}, for a change that only affects the surfaces of windows
+     * on the given display.
+     */
+    void requestTraversal(DisplayContent dc) {
+        if (dc == null) {
+            mAllDisplaysDirty = true;
+        } else {
+            mDirtyDisplays.put(dc.getDisplayId(), true);
+        }
+        scheduleTraversal();
+    }
+
+    private void scheduleTraversal() {
         if (!mTraversalScheduled) {
             mTraversalScheduled = true;
             mService.mAnimationHandler.post(mPerformSurfacePlacement);
         }
     }
 
+    boolean isScopedPlacementEnabled() {
+        return mScopedPlacementEnabled;
+    }
+
+    /**
+     * Returns whether the traversal in progress was asked to place the surfaces of the given
+     * display. Always true unless scoped placement is enabled.
+     */
+    boolean isDisplayDirtyForPlacement(DisplayContent dc) {
+        return mPlacingAllDisplays || mPlacingDisplays.get(dc.getDisplayId());
+    }
+
+    /** Called for each display that the traversal in progress places or skips. */
+    void noteDisplayPlaced(int windowsVisited, boolean skipped) {
+        if (skipped) {
+            mLastDisplaysSkipped++;
+            mDisplaysSkippedCount++;
+        } else {
+            mLastWindowsVisited += windowsVisited;
+            mDisplaysPlacedCount++;
+        }
+    }
+
     public void dump(PrintWriter pw, String prefix) {
         pw.println(prefix + "mTraversalScheduled=" + mTraversalScheduled);
         pw.println(prefix + "mHoldScreenWindow=" + mService.mRoot.mHoldScreenWindow);
         pw.println(prefix + "mObscuringWindow=" + mService.mRoot.mObscuringWindow);
+        pw.println(prefix + "mScopedPlacementEnabled=" + mScopedPlacementEnabled);
+        pw.print(prefix); pw.print("traversals="); pw.print(mTraversalCount);
+        pw.print(" windowsVisited="); pw.print(mWindowsVisitedCount);
+        pw.print(" avg=");
+        pw.print(mTraversalCount > 0 ? mWindowsVisitedCount / mTraversalCount : 0);
+        pw.print(" max="); pw.println(mMaxWindowsVisited);
+        pw.print(prefix); pw.print("displaysPlaced="); pw.print(mDisplaysPlacedCount);
+        pw.print(" displaysSkipped="); pw.println(mDisplaysSkippedCount);
     }
 }